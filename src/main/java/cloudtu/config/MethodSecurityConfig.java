@@ -0,0 +1,67 @@
+package cloudtu.config;
+
+import cloudtu.security.CompiledPreInvocationAdvice;
+import cloudtu.security.RoleMaskMethodSecurityExpressionRoot;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.security.access.AccessDecisionManager;
+import org.springframework.security.access.AccessDecisionVoter;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.ExpressionBasedPreInvocationAdvice;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionOperations;
+import org.springframework.security.access.prepost.PreInvocationAuthorizationAdviceVoter;
+import org.springframework.security.access.vote.AbstractAccessDecisionManager;
+import org.springframework.security.access.vote.AffirmativeBased;
+import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
+import org.springframework.security.config.annotation.method.configuration.GlobalMethodSecurityConfiguration;
+import org.springframework.security.core.Authentication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 讓 {@code @PreAuthorize} 生效，並把運算式裡的 hasRole、hasAnyRole 改用角色 bitmask 檢查(RoleMaskMethodSecurityExpressionRoot)。
+ * auth.preAuthorize.compiled=true 時，只用到角色檢查的運算式會再進一步編譯成 bitmask 判斷(CompiledPreInvocationAdvice)，不用執行 SpEL
+ */
+@Configuration
+@Profile("!reactive") // reactive profile 用 ReactiveSecurityConfig 的 @EnableReactiveMethodSecurity
+@EnableGlobalMethodSecurity(prePostEnabled = true)
+public class MethodSecurityConfig extends GlobalMethodSecurityConfiguration {
+    private @Value("${auth.preAuthorize.compiled}") boolean compilePreAuthorize;
+
+    @Override
+    protected MethodSecurityExpressionHandler createExpressionHandler() {
+        return new DefaultMethodSecurityExpressionHandler() {
+            @Override
+            protected MethodSecurityExpressionOperations createSecurityExpressionRoot(Authentication authentication,
+                                                                                      MethodInvocation invocation) {
+                return new RoleMaskMethodSecurityExpressionRoot(super.createSecurityExpressionRoot(authentication, invocation));
+            }
+        };
+    }
+
+    /**
+     * 把預設處理 {@code @PreAuthorize} 的 voter 換成用 CompiledPreInvocationAdvice 的 voter，其它 voter 維持不變
+     */
+    @Override
+    protected AccessDecisionManager accessDecisionManager() {
+        AccessDecisionManager defaultManager = super.accessDecisionManager();
+        if (!compilePreAuthorize) {
+            return defaultManager;
+        }
+
+        ExpressionBasedPreInvocationAdvice spelAdvice = new ExpressionBasedPreInvocationAdvice();
+        spelAdvice.setExpressionHandler(getExpressionHandler());
+        CompiledPreInvocationAdvice compiledAdvice = new CompiledPreInvocationAdvice(spelAdvice);
+
+        List<AccessDecisionVoter<?>> decisionVoters = new ArrayList<>();
+        for (AccessDecisionVoter<?> decisionVoter : ((AbstractAccessDecisionManager) defaultManager).getDecisionVoters()) {
+            decisionVoters.add(decisionVoter instanceof PreInvocationAuthorizationAdviceVoter
+                    ? new PreInvocationAuthorizationAdviceVoter(compiledAdvice) : decisionVoter);
+        }
+        return new AffirmativeBased(decisionVoters);
+    }
+}
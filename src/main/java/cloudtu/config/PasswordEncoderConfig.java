@@ -0,0 +1,52 @@
+package cloudtu.config;
+
+import cloudtu.security.BCryptStrengthCalibrator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.DelegatingPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.crypto.password.Pbkdf2PasswordEncoder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * WebSecurityConfig 與 ReactiveSecurityConfig 共用的 PasswordEncoder
+ */
+@Configuration
+public class PasswordEncoderConfig {
+    private static final Logger logger = LoggerFactory.getLogger(PasswordEncoderConfig.class);
+
+    private @Value("${auth.passwordEncoder.algorithm}") String passwordEncoderAlgorithm;
+    private @Value("${auth.passwordEncoder.bcryptStrength}") int bcryptStrength;
+    private @Value("${auth.passwordEncoder.calibrate}") boolean calibrateBcryptStrength;
+    private @Value("${auth.passwordEncoder.calibrateTargetMs}") long calibrateTargetMs;
+
+    /**
+     * 用 DelegatingPasswordEncoder 產生的 password hash 會帶 {algorithm} 前綴，例如 {bcrypt}$2a$10$...，
+     * 所以之後調整 algorithm 或 strength 時，舊的 password hash 還是能正常比對。
+     * 用戶登入成功時，如果 password hash 用的是舊的 algorithm 或 strength，DaoAuthenticationProvider
+     * (reactive profile 是 UserDetailsRepositoryReactiveAuthenticationManager)會自動重新 hash 並存回 UserDao
+     */
+    @Bean
+    public PasswordEncoder passwordEncoder() {
+        int strength = bcryptStrength;
+        if (calibrateBcryptStrength) {
+            strength = BCryptStrengthCalibrator.calibrate(calibrateTargetMs);
+            logger.info("calibrated bcrypt strength : {}, target hash time : {} ms", strength, calibrateTargetMs);
+        }
+
+        Map<String, PasswordEncoder> encoders = new HashMap<>();
+        encoders.put("bcrypt", new BCryptPasswordEncoder(strength));
+        encoders.put("pbkdf2", new Pbkdf2PasswordEncoder());
+
+        DelegatingPasswordEncoder passwordEncoder = new DelegatingPasswordEncoder(passwordEncoderAlgorithm, encoders);
+        // 沒有 {algorithm} 前綴的舊 password hash 都是 BCrypt 產生的
+        passwordEncoder.setDefaultPasswordEncoderForMatches(encoders.get("bcrypt"));
+        return passwordEncoder;
+    }
+}
@@ -0,0 +1,134 @@
+package cloudtu.config;
+
+import cloudtu.security.AccessDeniedJsonHandler;
+import cloudtu.security.AuditLog;
+import cloudtu.security.JwtReactiveAuthenticationManager;
+import cloudtu.security.LoginRateLimiter;
+import cloudtu.security.PasswordHashExecutor;
+import cloudtu.security.ReactiveLoginRateLimitFilter;
+import cloudtu.security.ReactiveUserDetailsServiceImpl;
+import cloudtu.security.TokenRevocationList;
+import cloudtu.security.UnauthEntryPoint;
+import cloudtu.security.UserDetailsCache;
+import cloudtu.security.VerifiedTokenCache;
+import cloudtu.util.JwtUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UserDetailsRepositoryReactiveAuthenticationManager;
+import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
+import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
+import org.springframework.security.config.web.server.SecurityWebFiltersOrder;
+import org.springframework.security.config.web.server.ServerHttpSecurity;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.web.server.SecurityWebFilterChain;
+import org.springframework.security.web.server.context.NoOpServerSecurityContextRepository;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * 啟用 reactive profile(--spring.profiles.active=reactive)時，改用 spring webflux + netty 處理 http request，取代 WebSecurityConfig。
+ * <p>
+ * netty 只用少數幾個 event loop thread(預設與 cpu core 數量相同)處理所有連線，閒置的 keep-alive 連線不會佔用 thread，
+ * 單一節點可以同時維持的連線數量比一個 request 佔一個 thread 的 tomcat 多很多。
+ * 但 event loop thread 上不能做會 block 的事，所以 BCrypt 運算都交給 passwordHashScheduler 執行
+ */
+@Configuration
+@Profile("reactive")
+@EnableWebFluxSecurity
+@EnableReactiveMethodSecurity
+public class ReactiveSecurityConfig {
+    private @Value("${jwt.maxTokenLength}") int maxTokenLength;
+
+    @Autowired
+    private ReactiveUserDetailsServiceImpl reactiveUserDetailsService;
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    @Autowired
+    private PasswordHashExecutor passwordHashExecutor;
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    @Autowired
+    private VerifiedTokenCache verifiedTokenCache;
+
+    @Autowired
+    private TokenRevocationList tokenRevocationList;
+
+    @Autowired
+    private UserDetailsCache userDetailsCache;
+
+    @Autowired
+    private LoginRateLimiter loginRateLimiter;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 執行 BCrypt 運算的 Scheduler，底層就是 PasswordHashExecutor 的 thread pool，thread 數量與 queue 長度都有上限，
+     * queue 滿了會丟出 RejectedExecutionException(回傳 503)
+     */
+    @Bean
+    public Scheduler passwordHashScheduler() {
+        return Schedulers.fromExecutorService(passwordHashExecutor.getExecutorService(), "password-hash");
+    }
+
+    /**
+     * 登入時比對帳號密碼用的 ReactiveAuthenticationManager。密碼比對在 passwordHashScheduler 上執行，
+     * password hash 用的是舊的 algorithm 或 strength 時，會透過 ReactiveUserDetailsServiceImpl.updatePassword 自動重新 hash
+     */
+    @Bean
+    public ReactiveAuthenticationManager loginAuthenticationManager() {
+        UserDetailsRepositoryReactiveAuthenticationManager authenticationManager =
+                new UserDetailsRepositoryReactiveAuthenticationManager(reactiveUserDetailsService);
+        authenticationManager.setPasswordEncoder(passwordEncoder);
+        authenticationManager.setUserDetailsPasswordService(reactiveUserDetailsService);
+        authenticationManager.setScheduler(passwordHashScheduler());
+        return authenticationManager;
+    }
+
+    @Bean
+    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http) {
+        // jwtAuthenticationManager 不註冊成 bean，不然會跟 loginAuthenticationManager 衝突，spring security 不知道預設要用哪一個
+        JwtReactiveAuthenticationManager jwtAuthenticationManager = new JwtReactiveAuthenticationManager(maxTokenLength, jwtUtil,
+                verifiedTokenCache, tokenRevocationList, userDetailsCache, auditLog, meterRegistry);
+
+        return http.csrf().disable()
+                .httpBasic().disable()
+                .formLogin().disable()
+                .logout().disable()
+                .exceptionHandling().authenticationEntryPoint(new UnauthEntryPoint(meterRegistry, auditLog)) // set unauthorized requests exception handler
+                                    .accessDeniedHandler(new AccessDeniedJsonHandler(auditLog)).and() // 角色不符時回傳 403
+                // 不保存登入認証成功後的 Authentication，每次的 http request 都要用 JWT 重新認証(stateless)
+                .securityContextRepository(NoOpServerSecurityContextRepository.getInstance())
+                .authorizeExchange().pathMatchers("/auth/**").permitAll()
+                // 只有 health 不用 token，metrics 會揭露登入次數、cache 大小等內部資訊，只有 ADMIN 角色可以讀取(prometheus 要帶 ADMIN 的 jwt)
+                .pathMatchers("/actuator/health").permitAll()
+                .pathMatchers("/actuator/**").hasRole("ADMIN")
+                .anyExchange().authenticated().and()
+                .addFilterAt(jwtAuthenticationManager.newWebFilter(), SecurityWebFiltersOrder.AUTHENTICATION)
+                // 登入太頻繁的 request 在 AUTHENTICATION 之前就擋掉，不會進到 loginAuthenticationManager 做 BCrypt 密碼比對
+                .addFilterBefore(new ReactiveLoginRateLimitFilter(loginRateLimiter), SecurityWebFiltersOrder.AUTHENTICATION)
+                .build();
+    }
+
+    /**
+     * spring-boot-starter-web 與 spring-boot-starter-webflux 都在 classpath 時，spring boot 預設會用 tomcat 跑 webflux，
+     * 這裡明確指定用 netty
+     */
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+}
@@ -0,0 +1,12 @@
+package cloudtu.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * 讓 @Scheduled annotation 生效，例如 JwtUtil 定期重新載入 key ring
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
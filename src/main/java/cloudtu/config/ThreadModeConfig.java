@@ -0,0 +1,75 @@
+package cloudtu.config;
+
+import cloudtu.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.task.TaskExecutorCustomizer;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 依 server.threads.mode 設定決定 http request 用哪一種 thread 處理
+ * <ul>
+ *     <li>platform : tomcat 預設的 thread pool，同時處理中的 request 數量上限為 server.tomcat.threads.max</li>
+ *     <li>virtual : 每個 request 用一個 virtual thread 處理(JDK 21 以上)，request 卡在 I/O 等待時不佔用 platform thread，
+ *     同時處理中的 request 數量只受 server.tomcat.max-connections 限制。spring 的 applicationTaskExecutor
+ *     (例如 StreamingResponseBody)也改用 virtual thread</li>
+ * </ul>
+ * JDK 不支援 virtual thread 時，virtual 設定會退回 platform
+ */
+@Configuration
+public class ThreadModeConfig {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadModeConfig.class);
+
+    private @Value("${server.threads.mode}") String threadsMode;
+
+    private ExecutorService tomcatExecutor;
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadTomcatCustomizer() {
+        return factory -> {
+            if (!useVirtualThreads()) {
+                return;
+            }
+
+            // 外部提供的 executor 不會被 tomcat 關閉，系統關閉時自己關
+            tomcatExecutor = VirtualThreads.newThreadPerTaskExecutor("http-virtual-");
+            factory.addProtocolHandlerCustomizers(protocolHandler -> protocolHandler.setExecutor(tomcatExecutor));
+            logger.info("tomcat handles requests on virtual threads");
+        };
+    }
+
+    @Bean
+    public TaskExecutorCustomizer virtualThreadTaskExecutorCustomizer() {
+        return taskExecutor -> {
+            if (useVirtualThreads()) {
+                taskExecutor.setThreadFactory(VirtualThreads.newThreadFactory("task-virtual-"));
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (tomcatExecutor != null) {
+            tomcatExecutor.shutdown();
+        }
+    }
+
+    private boolean useVirtualThreads() {
+        if (!"virtual".equals(threadsMode)) {
+            return false;
+        }
+        if (!VirtualThreads.isAvailable()) {
+            logger.warn("server.threads.mode=virtual requires JDK 21 or later, fall back to platform threads, current JDK : {}",
+                    Runtime.version());
+            return false;
+        }
+        return true;
+    }
+}
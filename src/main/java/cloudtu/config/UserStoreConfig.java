@@ -0,0 +1,36 @@
+package cloudtu.config;
+
+import cloudtu.dao.store.FileUserStore;
+import cloudtu.dao.store.MemoryUserStore;
+import cloudtu.dao.store.UserStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Paths;
+
+@Configuration
+public class UserStoreConfig {
+    private @Value("${userDao.store}") String store;
+    private @Value("${userDao.dataDir}") String dataDir;
+    private @Value("${userDao.fsync}") boolean fsync;
+
+    /**
+     * UserDao 的資料保存機制，依 userDao.store 設定決定
+     * <ul>
+     *     <li>memory : 不保存，系統重啟後所有 user 都會消失</li>
+     *     <li>file : 保存在 userDao.dataDir 目錄的 write-ahead log 與 snapshot 檔</li>
+     * </ul>
+     */
+    @Bean
+    public UserStore userStore() {
+        switch (store) {
+            case "memory":
+                return new MemoryUserStore();
+            case "file":
+                return new FileUserStore(Paths.get(dataDir), fsync);
+            default:
+                throw new IllegalArgumentException("userDao.store '" + store + "' is not supported");
+        }
+    }
+}
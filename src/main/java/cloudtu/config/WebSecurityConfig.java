@@ -1,40 +1,50 @@
 package cloudtu.config;
 
+import cloudtu.security.AccessDeniedJsonHandler;
+import cloudtu.security.AuditLog;
 import cloudtu.security.JwtAuthFilter;
+import cloudtu.security.LoginRateLimitFilter;
 import cloudtu.security.UnauthEntryPoint;
 import cloudtu.security.UserDetailsServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
-import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
 @Configuration
+@Profile("!reactive") // reactive profile 改用 ReactiveSecurityConfig
 @EnableWebSecurity
-@EnableGlobalMethodSecurity(prePostEnabled = true)
 public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     private UserDetailsServiceImpl userDetailsService;
 
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
     @Autowired
     private JwtAuthFilter jwtAuthFilter;
 
+    @Autowired
+    private LoginRateLimitFilter loginRateLimitFilter;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Override
     public void configure(AuthenticationManagerBuilder authenticationManagerBuilder) throws Exception {
-        authenticationManagerBuilder.userDetailsService(userDetailsService).passwordEncoder(passwordEncoder());
-    }
-
-    @Bean
-    public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+        authenticationManagerBuilder.userDetailsService(userDetailsService).passwordEncoder(passwordEncoder);
     }
 
     @Bean
@@ -53,11 +63,17 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 
         http.cors().and()
             .csrf().disable()
-            .exceptionHandling().authenticationEntryPoint(new UnauthEntryPoint()).and() // set unauthorized requests exception handler
+            .exceptionHandling().authenticationEntryPoint(new UnauthEntryPoint(meterRegistry, auditLog)) // set unauthorized requests exception handler
+                                .accessDeniedHandler(new AccessDeniedJsonHandler(auditLog)).and() // 角色不符時回傳 403
             .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS).and() // set session management to stateless
             .authorizeRequests().antMatchers("/auth/**").permitAll()
+            // 只有 health 不用 token，metrics 會揭露登入次數、cache 大小等內部資訊，只有 ADMIN 角色可以讀取(prometheus 要帶 ADMIN 的 jwt)
+            .antMatchers("/actuator/health").permitAll()
+            .antMatchers("/actuator/**").hasRole("ADMIN")
             .anyRequest().authenticated();
 
         http.addFilterBefore(jwtAuthFilter, UsernamePasswordAuthenticationFilter.class);
+        // 登入太頻繁的 request 在最前面就擋掉，不會進到 AuthenticationManager 做 BCrypt 密碼比對
+        http.addFilterBefore(loginRateLimitFilter, JwtAuthFilter.class);
     }
 }
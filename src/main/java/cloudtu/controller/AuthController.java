@@ -1,39 +1,68 @@
 package cloudtu.controller;
 
 import cloudtu.controller.bean.RegisterReqDto;
+import cloudtu.dao.RefreshTokenDao;
 import cloudtu.dao.UserDao;
 import cloudtu.dao.bean.User;
+import cloudtu.security.AuditEventType;
+import cloudtu.security.AuditLog;
+import cloudtu.security.PasswordHashExecutor;
+import cloudtu.security.TokenRevocationList;
 import cloudtu.util.JwtUtil;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.jsonwebtoken.JwtException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.crypto.password.PasswordEncoder;
-import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @RestController
+@Profile("!reactive") // reactive profile 改用 ReactiveAuthController
 @RequestMapping("/auth")
 public class AuthController {
     private static final Logger logger = LoggerFactory.getLogger(AuthController.class);
 
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
     @Autowired
     private UserDao userDao;
 
@@ -43,14 +72,39 @@ public class AuthController {
     @Autowired
     private AuthenticationManager authenticationManager;
 
+    @Autowired
+    private RefreshTokenDao refreshTokenDao;
+
     @Autowired
     private JwtUtil jwtUtil;
 
+    @Autowired
+    private PasswordHashExecutor passwordHashExecutor;
+
+    @Autowired
+    private TokenRevocationList tokenRevocationList;
+
+    @Autowired
+    private UserBulkImporter userBulkImporter;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @PostMapping("/register")
-    public ResponseEntity register(@RequestBody RegisterReqDto registerReqDto){
+    public CompletableFuture<ResponseEntity> register(@RequestBody RegisterReqDto registerReqDto, HttpServletRequest request){
+        String clientIp = request.getRemoteAddr();
         List<String> validateErrors = new ArrayList<>();
 
-        if (userDao.isUserExist(registerReqDto.getUserName())) {
+        if (!UserDao.isWithinStorageLimit(registerReqDto.getUserName())) {
+            validateErrors.add("userName is longer than " + UserDao.MAX_FIELD_BYTES + " bytes");
+        }
+        else if (userDao.isUserExist(registerReqDto.getUserName())) {
             validateErrors.add("userName '" + registerReqDto.getUserName() + "' is exist");
         }
 
@@ -60,39 +114,211 @@ public class AuthController {
         }
 
         if (!validateErrors.isEmpty()) {
-            Map<String, Object> errorMsg = new LinkedHashMap<>();
-            errorMsg.put("validateErrors", validateErrors);
-
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(errorMsg);
+            return CompletableFuture.completedFuture(validateErrorsResp(validateErrors));
         }
 
-        User user = new User(registerReqDto.getUserName(), passwordEncoder.encode(registerReqDto.getUserPassword()),
-                User.Role.valueOf(registerReqDto.getUserRole()));
-        userDao.addUser(user);
+        // passwordEncoder.encode 是很耗 cpu 的 BCrypt 運算，交給 passwordHashExecutor 執行，不佔用 tomcat 的 request thread
+        return passwordHashExecutor.submit(() -> {
+            User user = new User(registerReqDto.getUserName(), passwordEncoder.encode(registerReqDto.getUserPassword()),
+                    User.Role.valueOf(registerReqDto.getUserRole()));
+            // 前面的 isUserExist 檢查到這裡新增之間，其它 request 可能已經註冊了同一個 userName，所以要用 atomic 的 addUserIfAbsent 再確認一次
+            if (!userDao.addUserIfAbsent(user)) {
+                return validateErrorsResp(List.of("userName '" + registerReqDto.getUserName() + "' is exist"));
+            }
+            auditLog.record(AuditEventType.USER_REGISTERED, user.getName(), clientIp, user.getRole().name());
 
-        return new ResponseEntity(HttpStatus.OK);
+            return new ResponseEntity(HttpStatus.OK);
+        });
+    }
+
+    /**
+     * 批次匯入 user。上傳資料可以是 RegisterReqDto 的 json array，或是 NDJSON(每行一個 RegisterReqDto)。
+     * 邊讀取上傳資料邊匯入，每匯入一批(auth.registerBulk.batchSize 筆)就以 NDJSON 格式回傳這批資料每一筆的結果，
+     * 最後一行是統計，例如 {"created":99,"rejected":1}。上傳資料格式錯誤時，最後一行改成 {"error":"..."}，已匯入的 user 不會被取消。
+     * <p>
+     * 整個匯入過程都在這個 request thread 上執行(password hash 交給 PasswordHashExecutor 平行處理)，不受 async request timeout 限制
+     */
+    @PostMapping(value = "/registerBulk", consumes = {MediaType.APPLICATION_JSON_VALUE, NDJSON_MEDIA_TYPE}, produces = NDJSON_MEDIA_TYPE)
+    @PreAuthorize("hasRole('ADMIN')")
+    public void registerBulk(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON_MEDIA_TYPE);
+        int batchSize = userBulkImporter.getBatchSize();
+        long createdCount = 0;
+        long rejectedCount = 0;
+        try (MappingIterator<RegisterReqDto> rows = objectMapper.readerFor(RegisterReqDto.class).readValues(request.getInputStream());
+             JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            jsonGenerator.setRootValueSeparator(null); // 每筆資料之間用換行分隔，不用預設的空白
+
+            List<RegisterReqDto> batch = new ArrayList<>(batchSize);
+            String parseError = null;
+            while (true) {
+                boolean hasNextRow;
+                try {
+                    hasNextRow = rows.hasNextValue();
+                    if (hasNextRow) {
+                        batch.add(rows.nextValue());
+                    }
+                }
+                catch (JsonProcessingException e) {
+                    hasNextRow = false;
+                    parseError = e.getOriginalMessage();
+                }
+
+                if (batch.size() >= batchSize || (!hasNextRow && !batch.isEmpty())) {
+                    for (Map<String, Object> result : userBulkImporter.importBatch(batch, createdCount + rejectedCount + 1)) {
+                        if (UserBulkImporter.RESULT_CREATED.equals(result.get("result"))) {
+                            createdCount++;
+                        }
+                        else {
+                            rejectedCount++;
+                        }
+                        jsonGenerator.writeObject(result);
+                        jsonGenerator.writeRaw('\n');
+                    }
+                    jsonGenerator.flush(); // 每匯入一批就送出結果，client 可以看到匯入進度
+                    batch.clear();
+                }
+                if (!hasNextRow) {
+                    break;
+                }
+            }
+
+            if (parseError != null) {
+                logger.warn("registerBulk stop at row {} : {}", createdCount + rejectedCount + 1, parseError);
+                Map<String, Object> errorMsg = new LinkedHashMap<>();
+                errorMsg.put("error", "row " + (createdCount + rejectedCount + 1) + " : " + parseError);
+                jsonGenerator.writeObject(errorMsg);
+            }
+            else {
+                jsonGenerator.writeObject(UserBulkImporter.summary(createdCount, rejectedCount));
+            }
+            jsonGenerator.writeRaw('\n');
+        }
+        logger.info("registerBulk done, created : {}, rejected : {}", createdCount, rejectedCount);
     }
 
     @PostMapping("/login")
-    public ResponseEntity login(@RequestParam String userName, @RequestParam String userPassword){
-        Authentication authAfterSuccessLogin = authenticationManager.authenticate(new UsernamePasswordAuthenticationToken(userName, userPassword));
-        SecurityContextHolder.getContext().setAuthentication(authAfterSuccessLogin);
+    public CompletableFuture<ResponseEntity> login(@RequestParam String userName, @RequestParam String userPassword,
+                                                   HttpServletRequest request){
+        // authenticationManager.authenticate 裡會做 BCrypt 密碼比對，交給 passwordHashExecutor 執行，不佔用 tomcat 的 request thread。
+        // 登入結果直接轉成 token 回傳，不需要存到 SecurityContextHolder(系統是 stateless)，而且存到 thread pool 的 thread 上反而會殘留給下一個 task
+        // 登入花費的時間從收到 request 開始算，包含在 passwordHashExecutor 裡排隊的時間
+        Timer.Sample loginSample = Timer.start(meterRegistry);
+        String clientIp = request.getRemoteAddr();
+        return passwordHashExecutor.<ResponseEntity>submit(() -> {
+            Authentication authAfterSuccessLogin = authenticationManager.authenticate(new UsernamePasswordAuthenticationToken(userName, userPassword));
+
+            List<String> userRoles = authAfterSuccessLogin.getAuthorities().stream()
+                    .map(GrantedAuthority::getAuthority).collect(Collectors.toList());
+
+            Map<String, Object> respResult = new LinkedHashMap<>();
+            respResult.put("userName", userName);
+            respResult.put("userPassword", userPassword);
+            respResult.put("userRoles", userRoles);
+            respResult.put("token", jwtUtil.createToken(userName, userRoles));
+            respResult.put("refreshToken", refreshTokenDao.issue(userName));
+
+            return ResponseEntity.ok(respResult);
+        }).whenComplete((resp, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            // passwordHashExecutor 忙不過來(回傳 503)時另外分類，才看得出系統過載
+            boolean rejected = cause instanceof RejectedExecutionException;
+            loginSample.stop(Timer.builder("auth.login")
+                    .description("登入花費的時間")
+                    .tag("result", e == null ? "success" : rejected ? "rejected" : "failure")
+                    .register(meterRegistry));
+            if (e == null) {
+                auditLog.record(AuditEventType.LOGIN_SUCCESS, userName, clientIp, null);
+            }
+            else if (rejected) {
+                auditLog.record(AuditEventType.LOGIN_REJECTED, userName, clientIp, null);
+            }
+            else {
+                // 只記錄失敗原因的 exception 名稱(例如 BadCredentialsException)，不記錄 userPassword
+                auditLog.record(AuditEventType.LOGIN_FAILURE, userName, clientIp, cause.getClass().getSimpleName());
+            }
+        });
+    }
 
-        List<String> userRoles = authAfterSuccessLogin.getAuthorities().stream()
-                .map(GrantedAuthority::getAuthority).collect(Collectors.toList());
+    /**
+     * 用 refresh token 換新的 access token，不需要再做 BCrypt 密碼比對，所以直接在 request thread 執行。
+     * 每次換發都會讓舊的 refresh token 失效並發一個新的(refresh token rotation)，舊的 refresh token 被偷走也只能用一次
+     */
+    @PostMapping("/refresh")
+    public ResponseEntity refresh(@RequestParam String refreshToken){
+        String userName = refreshTokenDao.consume(refreshToken);
+        User user = userName == null ? null : userDao.findUser(userName);
+        if (user == null) {
+            Map<String, String> errorMsg = new LinkedHashMap<>();
+            errorMsg.put("error", "refresh token is invalid");
+
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(errorMsg);
+        }
+
+        List<String> userRoles = List.of(user.getRole().toString());
 
         Map<String, Object> respResult = new LinkedHashMap<>();
         respResult.put("userName", userName);
-        respResult.put("userPassword", userPassword);
         respResult.put("userRoles", userRoles);
         respResult.put("token", jwtUtil.createToken(userName, userRoles));
+        respResult.put("refreshToken", refreshTokenDao.issue(userName));
 
         return ResponseEntity.ok(respResult);
     }
 
-    @GetMapping("/logout")
-    public ResponseEntity logout(){
+    /**
+     * 登出時撤銷 http header 帶的 JWT，有帶 refresh token 時也一併撤銷
+     */
+    @RequestMapping(value = "/logout", method = {RequestMethod.GET, RequestMethod.POST})
+    public ResponseEntity logout(@RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authHeader,
+                                 @RequestParam(required = false) String refreshToken){
         SecurityContextHolder.clearContext();
+        if (authHeader != null && authHeader.startsWith(BEARER_PREFIX)) {
+            try {
+                tokenRevocationList.revokeToken(jwtUtil.parsePrincipalFromToken(authHeader.substring(BEARER_PREFIX.length())));
+            }
+            catch (JwtException e) {
+                logger.debug("skip revoking invalid token : {}", e.getMessage()); // 不合法的 token 本來就不能用，不需要撤銷
+            }
+        }
+        if (refreshToken != null) {
+            refreshTokenDao.revoke(refreshToken);
+        }
         return new ResponseEntity(HttpStatus.OK);
     }
+
+    /**
+     * passwordHashExecutor 忙不過來時，直接回傳 503，讓 client 稍後再試
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Map<String, String>> handleRejectedExecution(RejectedExecutionException e) {
+        logger.warn("password hash executor is busy : {}", e.getMessage());
+
+        Map<String, String> errorMsg = new LinkedHashMap<>();
+        errorMsg.put("error", "server is busy, please retry later");
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(errorMsg);
+    }
+
+    /**
+     * 登入失敗(例如密碼錯誤)時回傳 401。login 改在 passwordHashExecutor 執行後，exception 不會再經過 spring security 的
+     * ExceptionTranslationFilter 轉交給 UnauthEntryPoint，所以在這裡處理
+     */
+    @ExceptionHandler(AuthenticationException.class)
+    public ResponseEntity<Map<String, String>> handleAuthenticationException(AuthenticationException e) {
+        logger.warn("login fail : {}", e.getMessage());
+
+        Map<String, String> errorMsg = new LinkedHashMap<>();
+        errorMsg.put("error", e.getMessage());
+
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(errorMsg);
+    }
+
+    private ResponseEntity validateErrorsResp(List<String> validateErrors) {
+        Map<String, Object> errorMsg = new LinkedHashMap<>();
+        errorMsg.put("validateErrors", validateErrors);
+
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(errorMsg);
+    }
 }
@@ -0,0 +1,195 @@
+package cloudtu.controller;
+
+import cloudtu.util.JwtKeyRing;
+import cloudtu.util.JwtUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.math.BigInteger;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 以 JWKS(Json Web Key Set) 格式公開驗證 token 用的 public key，其它系統可以定期拉取後自行驗證 token，不用共用 jwt.signKey。
+ * <p>
+ * response body 事先序列化好並 cache 起來，只有 key ring 換掉時才重新產生。response 帶 strong ETag 與 Cache-Control，
+ * 定期拉取的 client 大多只會拿到成本很低的 304
+ */
+@RestController
+@RequestMapping("/auth")
+public class JwksController {
+    // 用來處理 json <-> object 轉換。ObjectMapper class 會讀 POJO 裡的 @JsonIgnore, @JsonProperty annotation 設定
+    private static final ObjectMapper jsonObjectMapper = new ObjectMapper();
+
+    private static final Base64.Encoder base64UrlEncoder = Base64.getUrlEncoder().withoutPadding();
+
+    private @Value("${jwt.jwksMaxAgeSec}") long jwksMaxAgeSec;
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    private volatile CachedJwks cachedJwks;
+
+    @GetMapping("/.well-known/jwks.json")
+    public ResponseEntity<byte[]> jwks(@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch)
+            throws JsonProcessingException {
+        CachedJwks currentJwks = currentJwks();
+
+        // client 帶的 If-None-Match 與 etag 相同時回傳 304，不用再回傳 body。
+        // 不用 servlet 專用的 WebRequest.checkNotModified，servlet 與 reactive(webflux) profile 才能共用這個 controller
+        if (currentJwks.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(currentJwks.etag)
+                    .cacheControl(CacheControl.maxAge(jwksMaxAgeSec, TimeUnit.SECONDS).cachePublic())
+                    .build();
+        }
+
+        return ResponseEntity.ok()
+                .eTag(currentJwks.etag)
+                .cacheControl(CacheControl.maxAge(jwksMaxAgeSec, TimeUnit.SECONDS).cachePublic())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(currentJwks.body);
+    }
+
+    private CachedJwks currentJwks() throws JsonProcessingException {
+        JwtKeyRing keyRing = jwtUtil.getKeyRing();
+        CachedJwks currentJwks = cachedJwks;
+        if (currentJwks == null || currentJwks.keyRing != keyRing) {
+            // 同時有多個 request 發現 key ring 換掉時，可能會重覆產生幾次，但結果都一樣，所以不用 lock
+            currentJwks = new CachedJwks(keyRing, jsonObjectMapper.writeValueAsBytes(toJwks(keyRing)));
+            cachedJwks = currentJwks;
+        }
+        return currentJwks;
+    }
+
+    private static Map<String, Object> toJwks(JwtKeyRing keyRing) {
+        List<Map<String, String>> jwks = new ArrayList<>();
+        keyRing.getVerificationKeys().forEach((kid, key) -> {
+            Map<String, String> jwk = toJwk(kid, key, keyRing.getVerificationAlgorithm(kid));
+            if (jwk != null) {
+                jwks.add(jwk);
+            }
+        });
+        jwks.sort((jwk1, jwk2) -> jwk1.get("kid").compareTo(jwk2.get("kid"))); // 固定順序，key 沒變時 etag 才會相同
+
+        Map<String, Object> jwkSet = new LinkedHashMap<>();
+        jwkSet.put("keys", jwks);
+        return jwkSet;
+    }
+
+    /**
+     * @return HMAC key 是不能公開的 secret，回傳 null
+     */
+    private static Map<String, String> toJwk(String kid, Key key, SignatureAlgorithm algorithm) {
+        Map<String, String> jwk = new LinkedHashMap<>();
+        if (key instanceof RSAPublicKey) {
+            RSAPublicKey rsaPublicKey = (RSAPublicKey) key;
+            jwk.put("kty", "RSA");
+            jwk.put("kid", kid);
+            jwk.put("use", "sig");
+            jwk.put("alg", algorithm.getValue());
+            jwk.put("n", toBase64Url(rsaPublicKey.getModulus(), 0));
+            jwk.put("e", toBase64Url(rsaPublicKey.getPublicExponent(), 0));
+            return jwk;
+        }
+        if (key instanceof ECPublicKey) {
+            ECPublicKey ecPublicKey = (ECPublicKey) key;
+            int fieldSize = ecPublicKey.getParams().getCurve().getField().getFieldSize();
+            int coordinateLength = (fieldSize + 7) / 8;
+            jwk.put("kty", "EC");
+            jwk.put("kid", kid);
+            jwk.put("use", "sig");
+            jwk.put("alg", algorithm.getValue());
+            jwk.put("crv", "P-" + fieldSize);
+            jwk.put("x", toBase64Url(ecPublicKey.getW().getAffineX(), coordinateLength));
+            jwk.put("y", toBase64Url(ecPublicKey.getW().getAffineY(), coordinateLength));
+            return jwk;
+        }
+        return null;
+    }
+
+    /**
+     * 把正整數轉成 JWK 規定的 base64url 格式(big-endian，不帶正負號的 byte)
+     *
+     * @param value
+     * @param length 固定的 byte 長度，0 代表用最短長度
+     *
+     * @return
+     */
+    private static String toBase64Url(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length); // 去掉 BigInteger 表示正負號用的 0x00
+        }
+        if (length > bytes.length) {
+            byte[] paddedBytes = new byte[length];
+            System.arraycopy(bytes, 0, paddedBytes, length - bytes.length, bytes.length);
+            bytes = paddedBytes;
+        }
+        return base64UrlEncoder.encodeToString(bytes);
+    }
+
+    private static class CachedJwks {
+        private final JwtKeyRing keyRing;
+        private final byte[] body;
+        private final String etag;
+
+        private CachedJwks(JwtKeyRing keyRing, byte[] body) {
+            this.keyRing = keyRing;
+            this.body = body;
+            this.etag = "\"" + sha256AsBase64Url(body) + "\"";
+        }
+
+        /**
+         * @param ifNoneMatch http header If-None-Match 的值，可能是用逗號分隔的多個 etag 或是 *
+         *
+         * @return
+         */
+        private boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String clientEtag : ifNoneMatch.split(",")) {
+                clientEtag = clientEtag.trim();
+                if (clientEtag.startsWith("W/")) {
+                    clientEtag = clientEtag.substring(2); // If-None-Match 用 weak comparison，忽略 weak etag 的 W/ 前綴
+                }
+                if (clientEtag.equals("*") || clientEtag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String sha256AsBase64Url(byte[] content) {
+            try {
+                return base64UrlEncoder.encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
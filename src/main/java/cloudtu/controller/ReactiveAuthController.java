@@ -0,0 +1,334 @@
+package cloudtu.controller;
+
+import cloudtu.controller.bean.RegisterReqDto;
+import cloudtu.dao.RefreshTokenDao;
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import cloudtu.security.AuditEventType;
+import cloudtu.security.AuditLog;
+import cloudtu.security.TokenRevocationList;
+import cloudtu.util.JwtUtil;
+import io.jsonwebtoken.JwtException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * reactive profile 用的 /auth/** api，功能與 AuthController 相同。
+ * <p>
+ * BCrypt 運算(註冊、登入)都在 passwordHashScheduler 上執行，不會 block netty 的 event loop thread。
+ * webflux 的 @RequestParam 只會讀 query string，所以 login 等 api 另外讀取 form data，client 用哪一種方式送參數都可以
+ */
+@RestController
+@Profile("reactive")
+@RequestMapping("/auth")
+public class ReactiveAuthController {
+    private static final Logger logger = LoggerFactory.getLogger(ReactiveAuthController.class);
+
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    @Autowired
+    private ReactiveAuthenticationManager loginAuthenticationManager;
+
+    @Autowired
+    private Scheduler passwordHashScheduler;
+
+    @Autowired
+    private RefreshTokenDao refreshTokenDao;
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    @Autowired
+    private TokenRevocationList tokenRevocationList;
+
+    @Autowired
+    private UserBulkImporter userBulkImporter;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @PostMapping("/register")
+    public Mono<ResponseEntity> register(@RequestBody RegisterReqDto registerReqDto, ServerWebExchange exchange){
+        List<String> validateErrors = new ArrayList<>();
+
+        if (!UserDao.isWithinStorageLimit(registerReqDto.getUserName())) {
+            validateErrors.add("userName is longer than " + UserDao.MAX_FIELD_BYTES + " bytes");
+        }
+        else if (userDao.isUserExist(registerReqDto.getUserName())) {
+            validateErrors.add("userName '" + registerReqDto.getUserName() + "' is exist");
+        }
+
+        List<String> allUserRoles = Stream.of(User.Role.values()).map(role -> role.toString()).collect(Collectors.toList());
+        if (!allUserRoles.contains(registerReqDto.getUserRole())) {
+            validateErrors.add("userRole '" + registerReqDto.getUserRole() + "' is wrong");
+        }
+
+        if (!validateErrors.isEmpty()) {
+            return Mono.just(validateErrorsResp(validateErrors));
+        }
+
+        // addUserIfAbsent 會等 user 資料寫入 log(fsync)，跟 BCrypt 運算一起放在 passwordHashScheduler 上執行
+        return Mono.fromCallable(() -> {
+            User user = new User(registerReqDto.getUserName(), passwordEncoder.encode(registerReqDto.getUserPassword()),
+                    User.Role.valueOf(registerReqDto.getUserRole()));
+            // 前面的 isUserExist 檢查到這裡新增之間，其它 request 可能已經註冊了同一個 userName，所以要用 atomic 的 addUserIfAbsent 再確認一次
+            if (!userDao.addUserIfAbsent(user)) {
+                return validateErrorsResp(List.of("userName '" + registerReqDto.getUserName() + "' is exist"));
+            }
+            auditLog.record(AuditEventType.USER_REGISTERED, user.getName(), AuditLog.clientIp(exchange), user.getRole().name());
+
+            return new ResponseEntity(HttpStatus.OK);
+        }).subscribeOn(passwordHashScheduler);
+    }
+
+    /**
+     * 批次匯入 user，功能與 AuthController.registerBulk 相同。webflux 邊讀取上傳的 json array 或 NDJSON 邊轉成 RegisterReqDto，
+     * 每 auth.registerBulk.batchSize 筆交給 UserBulkImporter 匯入。匯入時要等 password hash 與資料寫入完成，
+     * 所以放在 boundedElastic scheduler 上執行，不會 block event loop thread
+     */
+    @PostMapping(value = "/registerBulk", consumes = {MediaType.APPLICATION_JSON_VALUE, NDJSON_MEDIA_TYPE}, produces = NDJSON_MEDIA_TYPE)
+    @PreAuthorize("hasRole('ADMIN')")
+    public Flux<Map<String, Object>> registerBulk(@RequestBody Flux<RegisterReqDto> rows){
+        return Flux.defer(() -> {
+            long[] counts = new long[2]; // [0] : created 筆數，[1] : rejected 筆數。concatMap 一次只處理一批，不會同時更新
+            Throwable[] parseError = new Throwable[1];
+            // 上傳資料格式錯誤時先記下錯誤並結束讀取，錯誤之前已讀到的資料照常匯入(buffer 遇到 error 會丟掉還沒湊滿的那一批)
+            return rows.onErrorResume(e -> e instanceof ServerWebInputException || e instanceof DecodingException, e -> {
+                        parseError[0] = e;
+                        return Mono.empty();
+                    })
+                    .buffer(userBulkImporter.getBatchSize())
+                    .concatMap(batch -> Mono.fromCallable(() -> {
+                        List<Map<String, Object>> results = userBulkImporter.importBatch(batch, counts[0] + counts[1] + 1);
+                        for (Map<String, Object> result : results) {
+                            counts[UserBulkImporter.RESULT_CREATED.equals(result.get("result")) ? 0 : 1]++;
+                        }
+                        return results;
+                    }).subscribeOn(Schedulers.boundedElastic()))
+                    .flatMapIterable(results -> results)
+                    // 最後一行是統計，上傳資料格式錯誤時改成 {"error":"..."}，已匯入的 user 不會被取消
+                    .concatWith(Mono.fromSupplier(() -> {
+                        if (parseError[0] == null) {
+                            logger.info("registerBulk done, created : {}, rejected : {}", counts[0], counts[1]);
+                            return UserBulkImporter.summary(counts[0], counts[1]);
+                        }
+
+                        String errorReason = NestedExceptionUtils.getMostSpecificCause(parseError[0]).getMessage();
+                        logger.warn("registerBulk stop at row {} : {}", counts[0] + counts[1] + 1, errorReason);
+                        Map<String, Object> errorMsg = new LinkedHashMap<>();
+                        errorMsg.put("error", "row " + (counts[0] + counts[1] + 1) + " : " + errorReason);
+                        return errorMsg;
+                    }));
+        });
+    }
+
+    @PostMapping("/login")
+    public Mono<ResponseEntity> login(ServerWebExchange exchange){
+        // 登入花費的時間從收到 request 開始算，包含在 passwordHashScheduler 裡排隊的時間
+        Timer.Sample loginSample = Timer.start(meterRegistry);
+        String clientIp = AuditLog.clientIp(exchange);
+        return requestParams(exchange).flatMap(params -> {
+            String userName = requiredParam(params, "userName");
+            String userPassword = requiredParam(params, "userPassword");
+
+            // loginAuthenticationManager 在 passwordHashScheduler 上做密碼比對，之後的處理也都在同一個 thread 上執行
+            return loginAuthenticationManager.authenticate(new UsernamePasswordAuthenticationToken(userName, userPassword))
+                    .map(authAfterSuccessLogin -> {
+                        List<String> userRoles = authAfterSuccessLogin.getAuthorities().stream()
+                                .map(GrantedAuthority::getAuthority).collect(Collectors.toList());
+
+                        Map<String, Object> respResult = new LinkedHashMap<>();
+                        respResult.put("userName", userName);
+                        respResult.put("userPassword", userPassword);
+                        respResult.put("userRoles", userRoles);
+                        respResult.put("token", jwtUtil.createToken(userName, userRoles));
+                        respResult.put("refreshToken", refreshTokenDao.issue(userName));
+
+                        auditLog.record(AuditEventType.LOGIN_SUCCESS, userName, clientIp, null);
+                        return (ResponseEntity) ResponseEntity.ok(respResult);
+                    })
+                    .doOnError(e -> {
+                        if (e instanceof RejectedExecutionException) {
+                            auditLog.record(AuditEventType.LOGIN_REJECTED, userName, clientIp, null);
+                        }
+                        else {
+                            // 只記錄失敗原因的 exception 名稱(例如 BadCredentialsException)，不記錄 userPassword
+                            auditLog.record(AuditEventType.LOGIN_FAILURE, userName, clientIp, e.getClass().getSimpleName());
+                        }
+                    });
+        }).doOnEach(signal -> {
+            if (signal.isOnNext() || signal.isOnError()) {
+                // passwordHashScheduler 忙不過來(回傳 503)時另外分類，才看得出系統過載
+                String result = signal.isOnNext() ? "success"
+                        : signal.getThrowable() instanceof RejectedExecutionException ? "rejected" : "failure";
+                loginSample.stop(Timer.builder("auth.login")
+                        .description("登入花費的時間")
+                        .tag("result", result)
+                        .register(meterRegistry));
+            }
+        });
+    }
+
+    /**
+     * 用 refresh token 換新的 access token，不需要再做 BCrypt 密碼比對。refresh token 只存在記憶體時直接在 event loop thread 執行，
+     * 有寫 log 檔時要等 fsync，改在 boundedElastic 執行(withRefreshTokenStore)。
+     * 每次換發都會讓舊的 refresh token 失效並發一個新的(refresh token rotation)，舊的 refresh token 被偷走也只能用一次
+     */
+    @PostMapping("/refresh")
+    public Mono<ResponseEntity> refresh(ServerWebExchange exchange){
+        return requestParams(exchange).flatMap(params -> withRefreshTokenStore(() -> {
+            String refreshToken = requiredParam(params, "refreshToken");
+            String userName = refreshTokenDao.consume(refreshToken);
+            User user = userName == null ? null : userDao.findUser(userName);
+            if (user == null) {
+                Map<String, String> errorMsg = new LinkedHashMap<>();
+                errorMsg.put("error", "refresh token is invalid");
+
+                return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(errorMsg);
+            }
+
+            List<String> userRoles = List.of(user.getRole().toString());
+
+            Map<String, Object> respResult = new LinkedHashMap<>();
+            respResult.put("userName", userName);
+            respResult.put("userRoles", userRoles);
+            respResult.put("token", jwtUtil.createToken(userName, userRoles));
+            respResult.put("refreshToken", refreshTokenDao.issue(userName));
+
+            return ResponseEntity.ok(respResult);
+        }));
+    }
+
+    /**
+     * 登出時撤銷 http header 帶的 JWT，有帶 refresh token 時也一併撤銷
+     */
+    @RequestMapping(value = "/logout", method = {RequestMethod.GET, RequestMethod.POST})
+    public Mono<ResponseEntity> logout(ServerWebExchange exchange){
+        String authHeader = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        return requestParams(exchange).flatMap(params -> withRefreshTokenStore(() -> {
+            if (authHeader != null && authHeader.startsWith(BEARER_PREFIX)) {
+                try {
+                    tokenRevocationList.revokeToken(jwtUtil.parsePrincipalFromToken(authHeader.substring(BEARER_PREFIX.length())));
+                }
+                catch (JwtException e) {
+                    logger.debug("skip revoking invalid token : {}", e.getMessage()); // 不合法的 token 本來就不能用，不需要撤銷
+                }
+            }
+            String refreshToken = params.getFirst("refreshToken");
+            if (refreshToken != null) {
+                refreshTokenDao.revoke(refreshToken);
+            }
+            return new ResponseEntity(HttpStatus.OK);
+        }));
+    }
+
+    /**
+     * 執行會用到 refreshTokenDao 的工作。refresh token 有寫 log 檔時，issue、consume 會等待 fsync，
+     * 改在 boundedElastic 執行，不 block event loop thread
+     */
+    private Mono<ResponseEntity> withRefreshTokenStore(Callable<ResponseEntity> task) {
+        Mono<ResponseEntity> result = Mono.fromCallable(task);
+        return refreshTokenDao.isPersistent() ? result.subscribeOn(Schedulers.boundedElastic()) : result;
+    }
+
+    /**
+     * passwordHashScheduler 忙不過來時，直接回傳 503，讓 client 稍後再試
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Map<String, String>> handleRejectedExecution(RejectedExecutionException e) {
+        logger.warn("password hash executor is busy : {}", e.getMessage());
+
+        Map<String, String> errorMsg = new LinkedHashMap<>();
+        errorMsg.put("error", "server is busy, please retry later");
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(errorMsg);
+    }
+
+    /**
+     * 登入失敗(例如密碼錯誤)時回傳 401
+     */
+    @ExceptionHandler(AuthenticationException.class)
+    public ResponseEntity<Map<String, String>> handleAuthenticationException(AuthenticationException e) {
+        logger.warn("login fail : {}", e.getMessage());
+
+        Map<String, String> errorMsg = new LinkedHashMap<>();
+        errorMsg.put("error", e.getMessage());
+
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(errorMsg);
+    }
+
+    private ResponseEntity validateErrorsResp(List<String> validateErrors) {
+        Map<String, Object> errorMsg = new LinkedHashMap<>();
+        errorMsg.put("validateErrors", validateErrors);
+
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(errorMsg);
+    }
+
+    /**
+     * 合併 query string 與 form data 的參數，兩邊都有時以 query string 為準
+     */
+    private static Mono<MultiValueMap<String, String>> requestParams(ServerWebExchange exchange) {
+        return exchange.getFormData().map(formData -> {
+            MultiValueMap<String, String> params = new LinkedMultiValueMap<>(formData);
+            params.putAll(exchange.getRequest().getQueryParams());
+            return params;
+        });
+    }
+
+    private static String requiredParam(MultiValueMap<String, String> params, String name) {
+        String value = params.getFirst(name);
+        if (value == null) {
+            throw new ServerWebInputException("Required String parameter '" + name + "' is not present");
+        }
+        return value;
+    }
+}
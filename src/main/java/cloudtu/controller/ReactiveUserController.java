@@ -0,0 +1,99 @@
+package cloudtu.controller;
+
+import cloudtu.controller.bean.UserRespDto;
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import cloudtu.security.TokenRevocationList;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * reactive profile 用的 /user/** api，功能與 UserController 相同。
+ * UserDao 的查詢只讀記憶體，不會 block，直接在 netty 的 event loop thread 執行。
+ * reactive 的 method security(@PreAuthorize)只支援回傳 Mono 或 Flux 的 method
+ */
+@RestController
+@Profile("reactive")
+@RequestMapping("/user")
+public class ReactiveUserController {
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private TokenRevocationList tokenRevocationList;
+
+    @GetMapping("/myInfo")
+    @PreAuthorize("hasRole('USER') or hasRole('ADMIN')")
+    public Mono<Map<String, UserRespDto>> myInfo(Principal principal){
+        String myName = principal.getName();
+        User user = userDao.findUser(myName);
+
+        Map<String, UserRespDto> respResult = new LinkedHashMap<>();
+        respResult.put("myInfo", user == null ? null : new UserRespDto(user));
+        return Mono.just(respResult);
+    }
+
+    @GetMapping("/findUser/{userName}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public Mono<Map<String, UserRespDto>> findUser(@PathVariable String userName){
+        User user = userDao.findUser(userName);
+
+        Map<String, UserRespDto> respResult = new LinkedHashMap<>();
+        respResult.put("user", user == null ? null : new UserRespDto(user));
+        return Mono.just(respResult);
+    }
+
+    @GetMapping("/findAllUsers")
+    @PreAuthorize("hasRole('ADMIN')")
+    public Mono<Map<String, Object>> findAllUsers(@RequestParam(required = false) String cursor,
+                                                  @RequestParam(defaultValue = "100") int limit){
+        return Mono.fromSupplier(() -> UserController.userPage(userDao::findUsers, cursor, limit));
+    }
+
+    @GetMapping("/findUsersByRole/{role}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public Mono<ResponseEntity<Map<String, Object>>> findUsersByRole(@PathVariable String role,
+                                                                     @RequestParam(required = false) String cursor,
+                                                                     @RequestParam(defaultValue = "100") int limit){
+        return Mono.fromSupplier(() -> UserController.usersByRolePage(userDao, role, cursor, limit));
+    }
+
+    /**
+     * 依 userName 排序，以 NDJSON(每行一個 json)格式回傳全部 user。webflux 依 client 的讀取速度(back pressure)
+     * 逐筆讀取 user，不會一次把全部 user 放到記憶體
+     */
+    @GetMapping(value = "/streamAllUsers", produces = NDJSON_MEDIA_TYPE)
+    @PreAuthorize("hasRole('ADMIN')")
+    public Flux<UserRespDto> streamAllUsers(){
+        return Flux.fromStream(userDao::streamAllUsers).map(UserRespDto::new);
+    }
+
+    /**
+     * 撤銷用戶到目前為止拿到的所有 JWT 與 refresh token，例如用戶的 token 外洩時使用
+     */
+    @PostMapping("/revokeTokens/{userName}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public Mono<ResponseEntity<Void>> revokeTokens(@PathVariable String userName){
+        // 撤銷 refresh token 要掃過所有 refresh token 並等待 fsync，不在 event loop thread 執行
+        return Mono.fromRunnable(() -> tokenRevocationList.revokeUser(userName))
+                .subscribeOn(Schedulers.boundedElastic())
+                .thenReturn(ResponseEntity.ok().build());
+    }
+}
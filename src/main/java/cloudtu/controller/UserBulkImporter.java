@@ -0,0 +1,140 @@
+package cloudtu.controller;
+
+import cloudtu.controller.bean.RegisterReqDto;
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import cloudtu.security.AuditEventType;
+import cloudtu.security.AuditLog;
+import cloudtu.security.PasswordHashExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 批次匯入 user(/auth/registerBulk)，AuthController 與 ReactiveAuthController 共用。
+ * <p>
+ * 上傳的資料每 batchSize 筆處理一次：先檢查每一筆資料，再把通過檢查的資料交給 {@link PasswordHashExecutor#mapInParallel}
+ * 用所有 cpu core 平行做 password hash，最後用 {@link UserDao#addUsersIfAbsent} 一次新增整批 user。
+ * 匯入速度只受 cpu core 數量與 BCrypt strength 影響，不用像呼叫 /auth/register 那樣每個 user 都來回一次 http request
+ */
+@Component
+public class UserBulkImporter {
+    static final String RESULT_CREATED = "created";
+    static final String RESULT_REJECTED = "rejected";
+
+    private static final Set<String> ALL_USER_ROLES = Stream.of(User.Role.values()).map(Enum::name).collect(Collectors.toSet());
+
+    private @Value("${auth.registerBulk.batchSize}") int batchSize;
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    @Autowired
+    private PasswordHashExecutor passwordHashExecutor;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 匯入一批 user，會等到 password hash 與資料寫入都完成才回傳，呼叫的 thread 會被 block
+     *
+     * @param batch 上傳資料裡的一批 user
+     * @param firstRowNo batch 第一筆資料是上傳資料的第幾筆(從 1 開始)
+     *
+     * @return 每一筆資料的匯入結果，順序與 batch 相同，例如 {"row":1,"userName":"user1","result":"created"}，
+     * 沒有匯入時 result 是 rejected，並以 validateErrors 說明原因
+     */
+    public List<Map<String, Object>> importBatch(List<RegisterReqDto> batch, long firstRowNo) {
+        List<List<String>> validateErrors = new ArrayList<>(batch.size());
+        List<RegisterReqDto> validRows = new ArrayList<>(batch.size());
+        Set<String> userNamesInBatch = new HashSet<>();
+        for (RegisterReqDto row : batch) {
+            List<String> errors = validate(row, userNamesInBatch);
+            validateErrors.add(errors);
+            if (errors.isEmpty()) {
+                validRows.add(row);
+            }
+        }
+
+        List<User> users = passwordHashExecutor.mapInParallel(validRows, row ->
+                new User(row.getUserName(), passwordEncoder.encode(row.getUserPassword()), User.Role.valueOf(row.getUserRole())));
+        // 前面的 isUserExist 檢查到這裡新增之間，其它 request 可能已經註冊了同一個 userName，所以 addUsersIfAbsent 會再確認一次
+        boolean[] added = userDao.addUsersIfAbsent(users);
+
+        List<Map<String, Object>> results = new ArrayList<>(batch.size());
+        int validIndex = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            RegisterReqDto row = batch.get(i);
+            List<String> errors = validateErrors.get(i);
+            if (errors.isEmpty()) {
+                if (added[validIndex++]) {
+                    auditLog.record(AuditEventType.USER_REGISTERED, row.getUserName(), null, row.getUserRole());
+                }
+                else {
+                    errors = List.of("userName '" + row.getUserName() + "' is exist");
+                }
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("row", firstRowNo + i);
+            result.put("userName", row.getUserName());
+            result.put("result", errors.isEmpty() ? RESULT_CREATED : RESULT_REJECTED);
+            if (!errors.isEmpty()) {
+                result.put("validateErrors", errors);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * @return 全部匯入完成後最後一行的統計，例如 {"created":99,"rejected":1}
+     */
+    static Map<String, Object> summary(long createdCount, long rejectedCount) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("created", createdCount);
+        summary.put("rejected", rejectedCount);
+        return summary;
+    }
+
+    /**
+     * 檢查項目與 /auth/register 相同(包括 userName 長度)，另外檢查同一批資料裡有沒有重覆的 userName
+     */
+    private List<String> validate(RegisterReqDto row, Set<String> userNamesInBatch) {
+        List<String> errors = new ArrayList<>(1);
+        if (row.getUserName() == null || row.getUserName().isEmpty()) {
+            errors.add("userName is empty");
+        }
+        else if (!UserDao.isWithinStorageLimit(row.getUserName())) {
+            // 超過長度的資料要在這裡擋下來，不然 addUsersIfAbsent 會讓整批資料都匯入失敗
+            errors.add("userName is longer than " + UserDao.MAX_FIELD_BYTES + " bytes");
+        }
+        else if (!userNamesInBatch.add(row.getUserName()) || userDao.isUserExist(row.getUserName())) {
+            errors.add("userName '" + row.getUserName() + "' is exist");
+        }
+        if (row.getUserPassword() == null || row.getUserPassword().isEmpty()) {
+            errors.add("userPassword is empty");
+        }
+        if (!ALL_USER_ROLES.contains(row.getUserRole())) {
+            errors.add("userRole '" + row.getUserRole() + "' is wrong");
+        }
+        return errors;
+    }
+}
@@ -1,53 +1,159 @@
 package cloudtu.controller;
 
+import cloudtu.controller.bean.UserRespDto;
 import cloudtu.dao.UserDao;
 import cloudtu.dao.bean.User;
+import cloudtu.security.TokenRevocationList;
+import cloudtu.util.RoleRegistry;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.security.Principal;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 @RestController
+@Profile("!reactive") // reactive profile 改用 ReactiveUserController
 @RequestMapping("/user")
 public class UserController {
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
     @Autowired
     private UserDao userDao;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TokenRevocationList tokenRevocationList;
+
     @GetMapping("/myInfo")
     @PreAuthorize("hasRole('USER') or hasRole('ADMIN')")
-    public Map<String, User> myInfo(Principal principal){
+    public Map<String, UserRespDto> myInfo(Principal principal){
         String myName = principal.getName();
         User user = userDao.findUser(myName);
 
-        Map<String, User> respResult = new LinkedHashMap<>();
-        respResult.put("myInfo", user);
+        Map<String, UserRespDto> respResult = new LinkedHashMap<>();
+        respResult.put("myInfo", user == null ? null : new UserRespDto(user));
         return respResult;
     }
 
     @GetMapping("/findUser/{userName}")
     @PreAuthorize("hasRole('ADMIN')")
-    public Map<String, User> findUser(@PathVariable String userName){
+    public Map<String, UserRespDto> findUser(@PathVariable String userName){
         User user = userDao.findUser(userName);
 
-        Map<String, User> respResult = new LinkedHashMap<>();
-        respResult.put("user", user);
+        Map<String, UserRespDto> respResult = new LinkedHashMap<>();
+        respResult.put("user", user == null ? null : new UserRespDto(user));
         return respResult;
     }
 
+    /**
+     * 依 userName 排序分頁查詢 user。回傳的 nextCursor 帶到下一次查詢的 cursor 參數就能取得下一頁，nextCursor 為 null 代表已經是最後一頁
+     *
+     * @param cursor 上一頁回傳的 nextCursor，沒帶時從第一個 user 開始
+     * @param limit 每頁筆數，最多 MAX_PAGE_SIZE 筆
+     */
     @GetMapping("/findAllUsers")
     @PreAuthorize("hasRole('ADMIN')")
-    public Map<String, List<User>> findAllUsers(){
-        List<User> allUsers = userDao.findAllUsers();
+    public Map<String, Object> findAllUsers(@RequestParam(required = false) String cursor,
+                                            @RequestParam(defaultValue = "100") int limit){
+        return userPage(userDao::findUsers, cursor, limit);
+    }
+
+    /**
+     * 依 userName 排序分頁查詢某個角色的 user，分頁方式與 findAllUsers 相同。直接讀 UserDao 的角色 index，不用查出全部 user 再過濾
+     *
+     * @param role 角色名稱，ROLE_ADMIN 或 ADMIN 都可以
+     * @param cursor 上一頁回傳的 nextCursor，沒帶時從第一個 user 開始
+     * @param limit 每頁筆數，最多 MAX_PAGE_SIZE 筆
+     */
+    @GetMapping("/findUsersByRole/{role}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> findUsersByRole(@PathVariable String role,
+                                                               @RequestParam(required = false) String cursor,
+                                                               @RequestParam(defaultValue = "100") int limit){
+        return usersByRolePage(userDao, role, cursor, limit);
+    }
+
+    /**
+     * 依 userName 排序，以 NDJSON(每行一個 json)格式回傳全部 user。邊讀取邊寫到 response，
+     * 不會一次把全部 user 放到記憶體，user 再多 heap 用量也不會增加
+     */
+    @GetMapping(value = "/streamAllUsers", produces = NDJSON_MEDIA_TYPE)
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<StreamingResponseBody> streamAllUsers(){
+        StreamingResponseBody responseBody = outputStream -> {
+            try (JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(outputStream)) {
+                jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                jsonGenerator.setRootValueSeparator(null); // 每筆資料之間用換行分隔，不用預設的空白
+                Iterator<User> users = userDao.streamAllUsers().iterator();
+                while (users.hasNext()) {
+                    jsonGenerator.writeObject(new UserRespDto(users.next()));
+                    jsonGenerator.writeRaw('\n');
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_MEDIA_TYPE)).body(responseBody);
+    }
+
+    /**
+     * 撤銷用戶到目前為止拿到的所有 JWT 與 refresh token，例如用戶的 token 外洩時使用
+     */
+    @PostMapping("/revokeTokens/{userName}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity revokeTokens(@PathVariable String userName){
+        tokenRevocationList.revokeUser(userName);
+        return new ResponseEntity(HttpStatus.OK);
+    }
+
+    /**
+     * findUsersByRole 的分頁查詢，ReactiveUserController 也會用到。角色名稱不正確時回傳 400
+     */
+    static ResponseEntity<Map<String, Object>> usersByRolePage(UserDao userDao, String roleName, String cursor, int limit) {
+        User.Role role = RoleRegistry.roleOf(roleName);
+        if (role == null) {
+            Map<String, Object> errorMsg = new LinkedHashMap<>();
+            errorMsg.put("error", "userRole '" + roleName + "' is wrong");
+            return ResponseEntity.badRequest().body(errorMsg);
+        }
+        return ResponseEntity.ok(userPage((afterUserName, pageLimit) -> userDao.findUsersByRole(role, afterUserName, pageLimit), cursor, limit));
+    }
+
+    /**
+     * findAllUsers 與 findUsersByRole 的分頁查詢，ReactiveUserController 也會用到
+     *
+     * @param findPage 傳入 cursor 與筆數，回傳依 userName 排序、在 cursor 之後的 user
+     */
+    static Map<String, Object> userPage(BiFunction<String, Integer, List<User>> findPage, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<User> users = findPage.apply(cursor, pageSize + 1); // 多查一筆，用來判斷是否還有下一頁
+        boolean hasNextPage = users.size() > pageSize;
+        if (hasNextPage) {
+            users = users.subList(0, pageSize);
+        }
 
-        Map<String, List<User>> respResult = new LinkedHashMap<>();
-        respResult.put("allUsers", allUsers);
+        Map<String, Object> respResult = new LinkedHashMap<>();
+        respResult.put("users", users.stream().map(UserRespDto::new).collect(Collectors.toList()));
+        respResult.put("nextCursor", hasNextPage ? users.get(users.size() - 1).getName() : null);
         return respResult;
     }
 }
@@ -0,0 +1,33 @@
+package cloudtu.controller.bean;
+
+import cloudtu.dao.bean.User;
+
+/**
+ * 回傳給 client 的 user 資料，不包含 password hash。
+ * 欄位名稱沿用原本直接回傳 User 時的 name、role，既有的 client 不用改
+ */
+public class UserRespDto {
+    String name;
+    String role;
+
+    public UserRespDto(User user) {
+        this.name = user.getName();
+        this.role = user.getRole().toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public void setRole(String role) {
+        this.role = role;
+    }
+}
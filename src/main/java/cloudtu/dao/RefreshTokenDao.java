@@ -0,0 +1,425 @@
+package cloudtu.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 記錄 refresh token。client 用 refresh token 換新的 access token 時不用再做 BCrypt 密碼比對。
+ * <p>
+ * 資料存在 append-only log 檔，每次新增或撤銷 refresh token 都只在檔案結尾附加一筆記錄，系統重啟時用 memory-mapped
+ * 方式讀取整個 log 檔重建 in memory index(Map&lt;token hash, Entry&gt;)，查詢只需要查 index。
+ * log 檔裡只存 refresh token 的 SHA-256 hash，不存 refresh token 原文。
+ * 定期清掉 index 裡已過期的 refresh token，失效的記錄比有效的記錄多時，把有效的記錄重寫成新的 log 檔(compact)。
+ * jwt.refreshToken.storeFile 沒設定時不寫 log 檔，refresh token 只存在記憶體
+ * <p>
+ * 記錄格式 : [type 1 byte][token hash 32 bytes][expire epoch second 8 bytes][userName length 2 bytes][userName][crc32 4 bytes]，
+ * userName 超過 65535 bytes 的用戶不能發 refresh token。
+ * <p>
+ * jwt.refreshToken.fsync=true 時記錄 fsync 之後才回傳，系統當機也不會遺失已回傳給 client 的 refresh token 或撤銷記錄；
+ * false 時只保證正常關機後的資料完整，系統當機可能遺失最後幾筆記錄，已撤銷的 refresh token 有可能在重啟後恢復有效。
+ * <p>
+ * fsync 用 group commit 的方式進行：在 logLock 裡只更新 index 並把記錄寫到 log 檔(還在 OS 的 page cache，很快)，
+ * 離開 logLock 後才等 fsync。同時只有一個 thread 做 fsync，一次 fsync 涵蓋當下已寫入的所有記錄，
+ * 排在後面的 thread 發現自己的記錄已經被別人的 fsync 涵蓋時就直接回傳，同時有很多登入與換發時也不會每筆記錄都排隊做一次 fsync
+ */
+@Repository
+public class RefreshTokenDao {
+    private static final Logger logger = LoggerFactory.getLogger(RefreshTokenDao.class);
+
+    private static final byte RECORD_TYPE_ISSUE = 1;
+    private static final byte RECORD_TYPE_REVOKE = 2;
+    private static final int TOKEN_LENGTH = 32;
+    private static final int HASH_LENGTH = 32;
+    private static final int RECORD_HEADER_LENGTH = 1 + HASH_LENGTH + 8 + 2;
+    private static final int CRC_LENGTH = 4;
+    private static final int MAX_USER_NAME_LENGTH = 0xFFFF;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+    private static final Base64.Encoder base64UrlEncoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder base64UrlDecoder = Base64.getUrlDecoder();
+
+    private @Value("${jwt.refreshToken.expireTimeAsSec}") long refreshTokenExpireTimeAsSec;
+    private @Value("${jwt.refreshToken.storeFile}") String storeFile;
+    private @Value("${jwt.refreshToken.fsync}") boolean fsync;
+
+    // Map<refresh token hash, Entry>
+    private final Map<ByteBuffer, Entry> tokenIndex = new ConcurrentHashMap<>();
+
+    // 修改 tokenIndex 與寫入 log 檔要在同一個 lock 裡完成，compact 時寫出的有效記錄才會跟 tokenIndex 一致
+    private final Object logLock = new Object();
+
+    private Path logFile;
+
+    // 做 fsync 時拿的 lock，同時只有一個 thread 做 fsync。要同時拿兩個 lock 時(compact、close)一定先拿 logLock 再拿 syncLock
+    private final Object syncLock = new Object();
+
+    // 在 logLock 裡修改，換掉 logChannel(compact、close)時還要拿 syncLock，只存在記憶體時是 null
+    private volatile FileChannel logChannel;
+    // 目前 log 檔裡的記錄筆數，只在 logLock 裡存取
+    private long logRecordCount;
+    // 已寫入 log 檔的記錄序號，在 logLock 裡遞增
+    private volatile long writtenSeq;
+    // 已經 fsync 的記錄序號，只在 syncLock 裡存取
+    private long syncedSeq;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (storeFile.isEmpty()) {
+            logger.info("jwt.refreshToken.storeFile is empty, refresh tokens are only kept in memory");
+            return;
+        }
+
+        logFile = Paths.get(storeFile);
+        if (logFile.getParent() != null) {
+            Files.createDirectories(logFile.getParent());
+        }
+
+        int recordCount = 0;
+        if (Files.exists(logFile)) {
+            recordCount = loadIndex(logFile);
+        }
+
+        synchronized (logLock) {
+            logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            logRecordCount = recordCount;
+            compactIfNeeded();
+        }
+        logger.info("load refresh token store '{}', record count : {}, active token count : {}", logFile, recordCount, tokenIndex.size());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (logLock) {
+            synchronized (syncLock) {
+                if (logChannel != null) {
+                    logChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 有寫 log 檔時回傳 true，這時 issue、consume、revokeUser 會等待磁碟 I/O，不能在 event loop thread 上呼叫
+     */
+    public boolean isPersistent() {
+        return logChannel != null;
+    }
+
+    /**
+     * 清掉 index 裡已過期的 refresh token，log 檔裡失效的記錄太多時順便 compact
+     */
+    @Scheduled(fixedDelayString = "${jwt.refreshToken.purgeIntervalMs}", initialDelayString = "${jwt.refreshToken.purgeIntervalMs}")
+    public void purgeExpired() throws IOException {
+        long nowEpochSec = Instant.now().getEpochSecond();
+        // 過期的記錄在系統重啟重建 index 時也會被略過，所以只需要從 index 移除，不用寫撤銷記錄到 log 檔
+        if (tokenIndex.values().removeIf(entry -> entry.expireEpochSec <= nowEpochSec)) {
+            logger.debug("purge expired refresh token, active token count : {}", tokenIndex.size());
+        }
+
+        synchronized (logLock) {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * 用 memory-mapped 方式讀取 log 檔，依序重播每筆記錄重建 tokenIndex。遇到寫到一半(crc 不符)的記錄時，
+     * 代表系統上次在寫入途中停止，把檔案截斷到最後一筆完整記錄
+     *
+     * @return 讀到的記錄筆數
+     */
+    private int loadIndex(Path logFile) throws IOException {
+        int recordCount = 0;
+        long nowEpochSec = Instant.now().getEpochSecond();
+
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer logBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc32 = new CRC32();
+            while (logBuffer.remaining() >= RECORD_HEADER_LENGTH + CRC_LENGTH) {
+                int recordStart = logBuffer.position();
+                byte type = logBuffer.get();
+                byte[] hash = new byte[HASH_LENGTH];
+                logBuffer.get(hash);
+                long expireEpochSec = logBuffer.getLong();
+                int userNameLength = Short.toUnsignedInt(logBuffer.getShort());
+                if (logBuffer.remaining() < userNameLength + CRC_LENGTH) {
+                    logBuffer.position(recordStart);
+                    break;
+                }
+                byte[] userName = new byte[userNameLength];
+                logBuffer.get(userName);
+
+                ByteBuffer recordContent = logBuffer.duplicate();
+                recordContent.position(recordStart).limit(logBuffer.position());
+                crc32.reset();
+                crc32.update(recordContent);
+                if ((int) crc32.getValue() != logBuffer.getInt()) {
+                    logBuffer.position(recordStart);
+                    break;
+                }
+
+                recordCount++;
+                if (type == RECORD_TYPE_ISSUE && expireEpochSec > nowEpochSec) {
+                    tokenIndex.put(ByteBuffer.wrap(hash), new Entry(new String(userName, StandardCharsets.UTF_8), expireEpochSec));
+                }
+                else if (type == RECORD_TYPE_REVOKE) {
+                    tokenIndex.remove(ByteBuffer.wrap(hash));
+                }
+            }
+
+            if (logBuffer.position() < channel.size()) {
+                logger.warn("truncate incomplete record at the end of refresh token store, position : {}", logBuffer.position());
+                channel.truncate(logBuffer.position());
+            }
+        }
+        return recordCount;
+    }
+
+    /**
+     * 只在 logLock 裡呼叫。失效的記錄比有效的記錄多時，只把有效的記錄重寫到新的 log 檔，避免 log 檔無止境的變大。
+     * 新的 log 檔寫完並 fsync 後才取代舊的 log 檔，compact 失敗時繼續使用舊的 log 檔
+     */
+    private void compactIfNeeded() throws IOException {
+        if (logChannel == null || logRecordCount <= tokenIndex.size() * 2L) {
+            return;
+        }
+
+        Path tempFile = logFile.resolveSibling(logFile.getFileName() + ".compact");
+        FileChannel newLogChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (Map.Entry<ByteBuffer, Entry> indexEntry : tokenIndex.entrySet()) {
+                ByteBuffer record = toRecord(RECORD_TYPE_ISSUE, indexEntry.getKey().array(), indexEntry.getValue().expireEpochSec,
+                        indexEntry.getValue().userName);
+                while (record.hasRemaining()) {
+                    newLogChannel.write(record);
+                }
+            }
+            newLogChannel.force(true);
+            // 改名後 newLogChannel 指向的還是同一個檔案，之後的記錄接著寫在有效記錄後面
+            Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            newLogChannel.close();
+            throw e;
+        }
+
+        logger.info("compact refresh token store '{}', record count : {}, active token count : {}", logFile, logRecordCount,
+                tokenIndex.size());
+        synchronized (syncLock) {
+            // 新的 log 檔已經 fsync，包含目前為止所有記錄的結果，還在等 fsync 的記錄不用再等
+            logChannel.close();
+            logChannel = newLogChannel;
+            syncedSeq = writtenSeq;
+        }
+        logRecordCount = tokenIndex.size();
+    }
+
+    /**
+     * 發一個新的 refresh token 給用戶
+     *
+     * @param userName
+     *
+     * @return refresh token 原文，系統裡只會保存它的 hash
+     */
+    public String issue(String userName) {
+        byte[] token = new byte[TOKEN_LENGTH];
+        secureRandom.nextBytes(token);
+        byte[] hash = sha256(token);
+        long expireEpochSec = Instant.now().plusSeconds(refreshTokenExpireTimeAsSec).getEpochSecond();
+
+        ByteBuffer record = toRecord(RECORD_TYPE_ISSUE, hash, expireEpochSec, userName);
+        long seq;
+        synchronized (logLock) {
+            seq = append(record);
+            tokenIndex.put(ByteBuffer.wrap(hash), new Entry(userName, expireEpochSec));
+        }
+        awaitSynced(seq);
+        return base64UrlEncoder.encodeToString(token);
+    }
+
+    /**
+     * 使用 refresh token，refresh token 用過一次就會失效。同一個 refresh token 同時被多個 request 使用時只有一個會成功
+     *
+     * @param refreshToken
+     *
+     * @return refresh token 有效時回傳對應的 userName，不存在、已過期或已撤銷時回傳 null
+     */
+    public String consume(String refreshToken) {
+        byte[] hash = hashOf(refreshToken);
+        if (hash == null) {
+            return null;
+        }
+
+        Entry entry;
+        long seq;
+        synchronized (logLock) {
+            entry = tokenIndex.remove(ByteBuffer.wrap(hash));
+            if (entry == null) {
+                return null;
+            }
+            seq = append(toRecord(RECORD_TYPE_REVOKE, hash, 0, ""));
+        }
+        awaitSynced(seq);
+        return entry.expireEpochSec > Instant.now().getEpochSecond() ? entry.userName : null;
+    }
+
+    /**
+     * 撤銷用戶所有的 refresh token，之後就不能再用它們換新的 access token。
+     * 要掃過所有 refresh token，只適合撤銷用戶這種不常發生的操作
+     *
+     * @param userName
+     *
+     * @return 撤銷的 refresh token 數量
+     */
+    public int revokeUser(String userName) {
+        int revokedCount = 0;
+        long seq = 0;
+        synchronized (logLock) {
+            Iterator<Map.Entry<ByteBuffer, Entry>> indexEntries = tokenIndex.entrySet().iterator();
+            while (indexEntries.hasNext()) {
+                Map.Entry<ByteBuffer, Entry> indexEntry = indexEntries.next();
+                if (indexEntry.getValue().userName.equals(userName)) {
+                    indexEntries.remove();
+                    seq = append(toRecord(RECORD_TYPE_REVOKE, indexEntry.getKey().array(), 0, ""));
+                    revokedCount++;
+                }
+            }
+        }
+        awaitSynced(seq); // 所有撤銷記錄一起 fsync 一次
+        return revokedCount;
+    }
+
+    /**
+     * 撤銷 refresh token，之後就不能再用它換新的 access token
+     *
+     * @param refreshToken
+     */
+    public void revoke(String refreshToken) {
+        consume(refreshToken);
+    }
+
+    /**
+     * 只在 logLock 裡呼叫，一筆記錄要一次寫完。只寫到 log 檔不做 fsync，離開 logLock 後再呼叫 {@link #awaitSynced}
+     *
+     * @return 這筆記錄的序號，只存在記憶體時回傳 0
+     */
+    private long append(ByteBuffer record) {
+        if (logChannel == null) {
+            return 0;
+        }
+        try {
+            while (record.hasRemaining()) {
+                logChannel.write(record);
+            }
+            logRecordCount++;
+            return ++writtenSeq;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 不能在 logLock 裡呼叫。等到序號 seq(含)之前的記錄都 fsync 後才回傳，jwt.refreshToken.fsync=false 時直接回傳
+     */
+    private void awaitSynced(long seq) {
+        if (!fsync || seq == 0) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return; // 等 lock 的時候，其它 thread 的 fsync 已經涵蓋這筆記錄
+            }
+            // 先讀 writtenSeq 再 fsync，fsync 會涵蓋讀取當下已寫入的所有記錄
+            long targetSeq = writtenSeq;
+            try {
+                logChannel.force(false);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            syncedSeq = targetSeq;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException userName 超過 65535 bytes 時丟出，記錄格式只用 2 bytes 存 userName 長度
+     */
+    private static ByteBuffer toRecord(byte type, byte[] hash, long expireEpochSec, String userName) {
+        byte[] userNameBytes = userName.getBytes(StandardCharsets.UTF_8);
+        if (userNameBytes.length > MAX_USER_NAME_LENGTH) {
+            throw new IllegalArgumentException("userName is longer than " + MAX_USER_NAME_LENGTH + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + userNameBytes.length + CRC_LENGTH);
+        record.put(type).put(hash).putLong(expireEpochSec).putShort((short) userNameBytes.length).put(userNameBytes);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(record.array(), 0, record.position());
+        record.putInt((int) crc32.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * @return refresh token 格式不對時回傳 null
+     */
+    private static byte[] hashOf(String refreshToken) {
+        if (refreshToken == null) {
+            return null;
+        }
+
+        byte[] token;
+        try {
+            token = base64UrlDecoder.decode(refreshToken);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        return token.length == TOKEN_LENGTH ? sha256(token) : null;
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final String userName;
+        private final long expireEpochSec;
+
+        private Entry(String userName, long expireEpochSec) {
+            this.userName = userName;
+            this.expireEpochSec = expireEpochSec;
+        }
+    }
+}
@@ -1,39 +1,480 @@
 package cloudtu.dao;
 
 import cloudtu.dao.bean.User;
+import cloudtu.dao.bean.UserChangedEvent;
+import cloudtu.dao.store.MemoryUserStore;
+import cloudtu.dao.store.UserStore;
+import io.micrometer.core.annotation.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Repository
-public class UserDao {
+public class UserDao implements ApplicationEventPublisherAware {
     private static final Logger logger = LoggerFactory.getLogger(UserDao.class);
 
-    // 用 Map 來模擬 in memory DB，不將資料真的寫到後端 DB
-    // 資料結構是 Map<userName, User object>
-    private static Map<String, User> userDb = new TreeMap<>();
+    // userName 與 password(hash 後)轉成 UTF-8 後的長度上限，UserStore 與 RefreshTokenDao 的記錄格式都只用 2 bytes 存長度
+    public static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    // 查詢都在 in memory 的 Map 完成，資料結構是 Map<userName, User object>。ConcurrentHashMap 的讀取不用 lock，多個 thread 同時讀寫也是安全的
+    private final ConcurrentMap<String, User> userDb = new ConcurrentHashMap<>();
+
+    // 還沒確實寫入 userStore 的異動，每個 userName 只記錄最後一次異動(以 previous 串起之前還沒寫完的異動)。
+    // 異動要等 userStore 寫入成功後才更新到 userDb 與 index，其它 thread 才查得到(write-ahead)，寫入失敗的異動從來不會被看到。
+    // 同一個 user 的下一次異動以這裡的最後一次異動為基礎，不用等前一次異動寫完
+    private final ConcurrentMap<String, PendingChange> pendingChanges = new ConcurrentHashMap<>();
+
+    // 所有還沒結束(寫入成功並更新 userDb，或寫入失敗)的異動，snapshot 要等 startSnapshot 之前的異動都結束才能讀取 userDb
+    private final Set<PendingChange> inFlightChanges = ConcurrentHashMap.newKeySet();
+
+    // 依 userName 排序的 index，分頁查詢與依序讀取全部 user 時使用，不用每次都把全部 user 複製出來排序。
+    // user 寫入 userStore 成功後，在更新 userDb 的 compute 裡一併加入，user 不會被刪除
+    private final ConcurrentSkipListSet<String> sortedUserNames = new ConcurrentSkipListSet<>();
+
+    // 每種角色各一個依 userName 排序的 index，查詢某個角色的 user 時只讀這個角色的 index，不用掃過全部 user。
+    // 跟 sortedUserNames 一樣在 userDb.compute 裡更新，user 的角色改變時從舊角色的 index 移到新角色的 index
+    private final Map<User.Role, ConcurrentSkipListSet<String>> userNamesByRole = new EnumMap<>(User.Role.class);
+
+    // 每次新增或修改 user 時交給 userStore 保存，系統重啟時再由 userStore 讀回 userDb
+    private final UserStore userStore;
+
+    // user 異動後發出 UserChangedEvent。不是由 spring 建立(例如單元測試)時不發出事件
+    private ApplicationEventPublisher eventPublisher = event -> {
+    };
+
+    // 把異動交給 userStore 時拿 read lock(多個 thread 可以同時異動)，開始做 snapshot 時拿 write lock，
+    // 確定 startSnapshot 之前交給 userStore 的異動都已記錄在 inFlightChanges
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    /**
+     * 資料不保存的 UserDao，系統重啟後所有 user 都會消失
+     */
+    public UserDao() {
+        this(new MemoryUserStore());
+    }
+
+    @Autowired
+    public UserDao(UserStore userStore) {
+        this.userStore = userStore;
+        for (User.Role role : User.Role.values()) {
+            userNamesByRole.put(role, new ConcurrentSkipListSet<>()); // 只在這裡放入，之後 EnumMap 只會被讀取，多個 thread 讀取是安全的
+        }
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        userStore.recover(user -> {
+            User previousUser = userDb.put(user.getName(), user);
+            sortedUserNames.add(user.getName());
+            updateRoleIndex(user.getName(), previousUser, user);
+        });
+        logger.info("user count : {}", userDb.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        snapshot(); // 下次啟動時不用重播 log
+        userStore.close();
+    }
+
+    /**
+     * 定期把所有 user 存成 snapshot，讓系統啟動時要重播的 log 不會無止境的變長
+     */
+    @Scheduled(fixedDelayString = "${userDao.snapshotIntervalMs}", initialDelayString = "${userDao.snapshotIntervalMs}")
+    public void snapshot() {
+        // snapshot 失敗時只記錄錯誤，下次再做(log 還在，資料不會遺失)，不讓 exception 中斷排程或系統關閉的流程
+        try {
+            long snapshotMark;
+            List<PendingChange> changesBeforeSnapshot;
+            snapshotLock.writeLock().lock();
+            try {
+                snapshotMark = userStore.startSnapshot();
+                changesBeforeSnapshot = new ArrayList<>(inFlightChanges);
+            }
+            finally {
+                snapshotLock.writeLock().unlock();
+            }
+            if (snapshotMark < 0) {
+                return;
+            }
+
+            // startSnapshot 之前的異動都寫入 userStore 並更新到 userDb 之後，userDb 才包含 snapshot 當下的所有 user。
+            // 寫入失敗的異動不會出現在 userDb，snapshot 也不會存到它們
+            for (PendingChange change : changesBeforeSnapshot) {
+                change.settled.join();
+            }
+            userStore.finishSnapshot(snapshotMark, userDb.values());
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("snapshot user store fail : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 新增 user 前先用這個 method 檢查 userName，超過長度上限的 user 不能保存
+     *
+     * @param value userName 或 password
+     *
+     * @return value 是 null 或轉成 UTF-8 後不超過 {@link #MAX_FIELD_BYTES} 時回傳 true
+     */
+    public static boolean isWithinStorageLimit(String value) {
+        // UTF-8 每個字元最多 3 bytes(surrogate pair 是兩個字元 4 bytes)，字元數夠少時不用真的轉換
+        return value == null || value.length() <= MAX_FIELD_BYTES / 3
+                || (value.length() <= MAX_FIELD_BYTES && value.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_BYTES);
+    }
 
     public void addUser(User user) {
-        synchronized (userDb) {
-            userDb.put(user.getName(), user);
+        updateUser(user.getName(), currentUser -> user);
+        logger.debug("add user : {}", user);
+    }
+
+    /**
+     * userName 不存在時才新增 user，檢查與新增是一個 atomic 操作
+     *
+     * @param user
+     *
+     * @return 新增成功時回傳 true，userName 已存在時回傳 false
+     */
+    public boolean addUserIfAbsent(User user) {
+        boolean added = updateUser(user.getName(), currentUser -> currentUser != null ? currentUser : user) == user;
+        logger.debug("add user : {}, added : {}", user, added);
+        return added;
+    }
+
+    /**
+     * 一次新增多個 user，每個 user 都是 userName 不存在時才新增。所有 user 交給 userStore 之後才一起等待寫入，
+     * 整批資料只要幾次 fsync 就能寫入磁碟(FileUserStore 的 group commit)，不用每個 user 都等一次
+     *
+     * @param users
+     *
+     * @return 每個 user 是否新增成功，順序與 users 相同。userName 已存在(或與前面的 user 重覆)時為 false
+     */
+    public boolean[] addUsersIfAbsent(List<User> users) {
+        // 先檢查整批 user，有任何一個不能保存時整批都不新增
+        users.forEach(UserDao::requireStorable);
+
+        boolean[] added = new boolean[users.size()];
+        List<PendingChange> stored = new ArrayList<>(users.size());
+        try {
+            snapshotLock.readLock().lock();
+            try {
+                for (int i = 0; i < users.size(); i++) {
+                    User user = users.get(i);
+                    added[i] = computeUser(user.getName(), currentUser -> currentUser != null ? currentUser : user, stored) == user;
+                }
+            }
+            finally {
+                snapshotLock.readLock().unlock();
+            }
         }
-        logger.debug("userDb : {}", userDb);
+        finally {
+            awaitStored(stored);
+        }
+        for (int i = 0; i < users.size(); i++) {
+            if (added[i]) {
+                eventPublisher.publishEvent(new UserChangedEvent(this, users.get(i).getName()));
+            }
+        }
+        logger.debug("add users, count : {}, added : {}", users.size(), stored.size());
+        return added;
+    }
+
+    /**
+     * 更新 user 的 password(已經 hash 過的值)
+     *
+     * @param userName
+     * @param encodedPassword
+     *
+     * @return user 存在且更新成功時回傳 true
+     */
+    public boolean updatePassword(String userName, String encodedPassword) {
+        // 換成新的 User object 而不是直接改原本 object 的欄位，讓同時在讀取的 thread 不會看到改到一半的資料
+        User updatedUser = updateUser(userName,
+                currentUser -> currentUser == null ? null : new User(currentUser.getName(), encodedPassword, currentUser.getRole()));
+        return updatedUser != null;
     }
 
+    @Timed(value = "userdao.lookup", extraTags = {"method", "findUser"})
     public User findUser(String userName) {
         return userDb.get(userName);
     }
 
+    @Timed(value = "userdao.lookup", extraTags = {"method", "isUserExist"})
     public boolean isUserExist(String userName) {
-        return userDb.get(userName) == null ? false : true;
+        return userDb.containsKey(userName);
     }
 
+    /**
+     * 依 userName 排序的分頁查詢(keyset pagination)，每次只讀取一頁的資料，不受 user 總數影響
+     *
+     * @param afterUserName 從這個 userName 之後(不含)開始查詢，null 代表從第一個 user 開始
+     * @param limit 最多回傳幾筆
+     *
+     * @return 依 userName 排序的 user
+     */
+    @Timed(value = "userdao.lookup", extraTags = {"method", "findUsers"})
+    public List<User> findUsers(String afterUserName, int limit) {
+        NavigableSet<String> userNames = afterUserName == null ? sortedUserNames : sortedUserNames.tailSet(afterUserName, false);
+        List<User> users = new ArrayList<>(Math.min(limit, 1024));
+        for (String userName : userNames) {
+            if (users.size() >= limit) {
+                break;
+            }
+            User user = userDb.get(userName);
+            if (user != null) { // userName 在 compute 裡先加入 index，compute 結束前 userDb 還查不到這個 user
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * 查詢某個角色的 user，依 userName 排序分頁(keyset pagination)。只讀取這個角色的 index，查詢成本只跟回傳筆數有關，不受 user 總數影響
+     *
+     * @param role
+     * @param afterUserName 從這個 userName 之後(不含)開始查詢，null 代表從第一個 user 開始
+     * @param limit 最多回傳幾筆
+     *
+     * @return 依 userName 排序、目前角色是 role 的 user
+     */
+    @Timed(value = "userdao.lookup", extraTags = {"method", "findUsersByRole"})
+    public List<User> findUsersByRole(User.Role role, String afterUserName, int limit) {
+        NavigableSet<String> roleIndex = userNamesByRole.get(role);
+        NavigableSet<String> userNames = afterUserName == null ? roleIndex : roleIndex.tailSet(afterUserName, false);
+        List<User> users = new ArrayList<>(Math.min(limit, 1024));
+        for (String userName : userNames) {
+            if (users.size() >= limit) {
+                break;
+            }
+            // index 在 compute 裡先更新，compute 結束前 userDb 還是舊資料，所以要以 userDb 目前的角色為準
+            User user = userDb.get(userName);
+            if (user != null && user.getRole() == role) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * 依 userName 排序依序讀取全部 user，讀到哪裡才取出哪個 user，不會一次把全部 user 複製出來
+     *
+     * @return 依 userName 排序的全部 user
+     */
+    public Stream<User> streamAllUsers() {
+        return sortedUserNames.stream().map(userDb::get).filter(Objects::nonNull);
+    }
+
+    /**
+     * 會把全部 user 複製到同一個 List，user 很多時改用 {@link #findUsers} 或 {@link #streamAllUsers}
+     *
+     * @return 依 userName 排序的全部 user
+     */
+    @Timed(value = "userdao.lookup", extraTags = {"method", "findAllUsers"})
     public List<User> findAllUsers() {
-        return new ArrayList<>(userDb.values());
+        return streamAllUsers().collect(Collectors.toList());
+    }
+
+    /**
+     * 用 ConcurrentHashMap.compute 記錄 user 的異動，user 有異動時在同一個 atomic 操作裡交給 userStore，
+     * 同一個 user 的保存順序才會跟異動的順序一致。等待資料寫入(fsync)是在 compute 之外，不會卡住其它 user 的更新。
+     * 資料寫入後才更新 userDb 並發出 UserChangedEvent，寫入失敗時丟出 exception，userDb 維持原狀
+     *
+     * @param userName
+     * @param updater 傳入目前的 user(不存在時為 null)，回傳更新後的 user(回傳 null 代表不存在)
+     *
+     * @return 更新後的 user
+     */
+    private User updateUser(String userName, UnaryOperator<User> updater) {
+        List<PendingChange> stored = new ArrayList<>(1);
+        User updatedUser;
+        try {
+            snapshotLock.readLock().lock();
+            try {
+                updatedUser = computeUser(userName, updater, stored);
+            }
+            finally {
+                snapshotLock.readLock().unlock();
+            }
+        }
+        finally {
+            awaitStored(stored);
+        }
+        if (!stored.isEmpty()) {
+            eventPublisher.publishEvent(new UserChangedEvent(this, userName));
+        }
+        return updatedUser;
+    }
+
+    /**
+     * 在 pendingChanges.compute 裡計算 user 的異動，有異動時交給 userStore 並把這次異動加到 stored，userDb 要等寫入成功後才更新。
+     * 呼叫端要先拿 snapshotLock 的 read lock。不能保存的 user 會在 compute 裡丟出 IllegalArgumentException，不會交給 userStore
+     *
+     * @return 異動後的 user，沒有異動時是目前的 user(包括還沒寫完的異動)
+     */
+    private User computeUser(String userName, UnaryOperator<User> updater, List<PendingChange> stored) {
+        User[] updatedUser = new User[1];
+        pendingChanges.compute(userName, (name, lastChange) -> {
+            User currentUser = lastChange != null ? lastChange.newUser : userDb.get(name);
+            User newUser = updater.apply(currentUser);
+            updatedUser[0] = newUser;
+            if (newUser == null || newUser == currentUser) {
+                return lastChange;
+            }
+            requireStorable(newUser);
+            PendingChange change = new PendingChange(name, newUser, lastChange, userStore.append(newUser));
+            inFlightChanges.add(change);
+            stored.add(change);
+            return change;
+        });
+        return updatedUser[0];
+    }
+
+    /**
+     * 先加入新角色的 index 再從舊角色的 index 移除，角色改變的過程中 user 一定會在其中一個 index 裡，查詢不會漏掉。
+     * 在 compute 裡呼叫，同一個 userName 不會同時被更新
+     */
+    private void updateRoleIndex(String userName, User oldUser, User newUser) {
+        User.Role oldRole = oldUser == null ? null : oldUser.getRole();
+        if (newUser.getRole() == oldRole) {
+            return;
+        }
+        userNamesByRole.get(newUser.getRole()).add(userName);
+        if (oldRole != null) {
+            userNamesByRole.get(oldRole).remove(userName);
+        }
+    }
+
+    private static void requireStorable(User user) {
+        if (!isWithinStorageLimit(user.getName()) || !isWithinStorageLimit(user.getPassword())) {
+            throw new IllegalArgumentException("user name or password is longer than " + MAX_FIELD_BYTES + " bytes");
+        }
+    }
+
+    /**
+     * 等待交給 userStore 的資料確實寫入。寫入成功的異動更新到 userDb，寫入失敗的異動直接丟掉，全部等完後再丟出第一個失敗的 exception
+     */
+    private void awaitStored(List<PendingChange> stored) {
+        RuntimeException failure = null;
+        for (PendingChange change : stored) {
+            boolean written = false;
+            try {
+                change.stored.join();
+                written = true;
+            }
+            catch (CompletionException e) {
+                logger.warn("discard user change after store fail, userName : {}", change.userName);
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+            finally {
+                settle(change, written);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 結束一次異動。寫入成功時更新 userDb 與 index，同一個 user 之後的異動已經先更新 userDb 時(寫入完成的順序跟交給 userStore 的順序不同)，
+     * 以之後的異動為準。userStore 讀回資料時也是以最後一筆為準，記憶體裡的資料會跟重啟後讀回的資料一致
+     */
+    private void settle(PendingChange change, boolean written) {
+        if (written) {
+            userDb.compute(change.userName, (name, currentUser) -> {
+                if (change.superseded) {
+                    return currentUser;
+                }
+                for (PendingChange previous = change.previous; previous != null && !previous.superseded; previous = previous.previous) {
+                    previous.superseded = true;
+                }
+                if (currentUser == null) {
+                    sortedUserNames.add(name);
+                }
+                updateRoleIndex(name, currentUser, change.newUser);
+                return change.newUser;
+            });
+        }
+
+        pendingChanges.compute(change.userName, (name, lastChange) -> {
+            change.written = written;
+            change.done = true;
+            if (written) {
+                change.previous = null; // 之前的異動都已經被這次異動取代，之後的異動找到這裡就可以停了
+            }
+            if (lastChange != change) {
+                return lastChange;
+            }
+            // 最後一次異動結束後，下一次異動改以 userDb 為基礎。寫入失敗時要退回之前還沒結束的異動，不能跳過它
+            for (PendingChange previous = change.previous; previous != null; previous = previous.previous) {
+                if (!previous.done) {
+                    return previous;
+                }
+                if (previous.written) {
+                    break;
+                }
+            }
+            return null;
+        });
+        inFlightChanges.remove(change);
+        change.settled.complete(null);
+    }
+
+    /**
+     * 一次交給 userStore 的異動
+     */
+    private static class PendingChange {
+        private final String userName;
+        private final User newUser;
+        // 同一個 user 前一次還沒結束的異動，沒有時為 null。寫入成功並更新 userDb 後清掉，持續異動同一個 user 時才不會串成很長的 list
+        private volatile PendingChange previous;
+        private final CompletableFuture<Void> stored;
+        // 異動結束(寫入成功並更新 userDb，或寫入失敗)後完成
+        private final CompletableFuture<Void> settled = new CompletableFuture<>();
+
+        // 之後的異動已經更新到 userDb，這次異動不能再蓋掉它。只在 userDb.compute 裡讀寫
+        private boolean superseded;
+        // done、written 只在 pendingChanges.compute 裡讀寫
+        private boolean done;
+        private boolean written;
+
+        private PendingChange(String userName, User newUser, PendingChange previous, CompletableFuture<Void> stored) {
+            this.userName = userName;
+            this.newUser = newUser;
+            this.previous = previous;
+            this.stored = stored;
+        }
     }
 }
@@ -47,7 +47,7 @@ public class User {
     public String toString() {
         return new StringJoiner(", ", User.class.getSimpleName() + "[", "]")
                 .add("name='" + name + "'")
-                .add("password='" + password + "'")
+                // password hash 也不能寫到 log
                 .add("role=" + role)
                 .toString();
     }
@@ -0,0 +1,19 @@
+package cloudtu.dao.bean;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * user 新增或資料(password, role)異動後，UserDao 發出的事件。暫存 user 資料的地方可以收到事件後把舊資料清掉
+ */
+public class UserChangedEvent extends ApplicationEvent {
+    private final String userName;
+
+    public UserChangedEvent(Object source, String userName) {
+        super(source);
+        this.userName = userName;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+}
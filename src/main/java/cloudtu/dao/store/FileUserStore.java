@@ -0,0 +1,394 @@
+package cloudtu.dao.store;
+
+import cloudtu.dao.bean.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 把 user 保存在 dataDir 目錄的 write-ahead log(WAL) 與 snapshot 檔。
+ * <p>
+ * append 只把資料排入佇列，由單一個 writer thread 把佇列裡累積的資料一次寫到 log 檔並 fsync(group commit)，
+ * 同時有很多 user 註冊時，一次 fsync 就能讓一整批資料寫入磁碟。log 檔分成多個 segment(wal-&lt;編號&gt;.log)。
+ * <p>
+ * 定期把所有 user 寫成 snapshot 檔(snapshot-&lt;編號&gt;.dat)，編號代表還要重播哪個 segment 之後(含)的 log，
+ * 比這個編號小的 segment 與舊的 snapshot 就可以刪掉。snapshot 先寫到暫存檔，fsync 後再 rename，
+ * 寫到一半當機也不會破壞原本的 snapshot。系統啟動時用 memory-mapped 方式讀取最新的 snapshot，再重播之後的 log
+ * <p>
+ * 寫入失敗時，這批資料的 future 都以 exception 完成(UserDao 不會把這些異動更新到 userDb)，log 檔截斷回最後一次成功寫入的位置，
+ * 之後的資料不會接在寫到一半的記錄後面(系統重啟時讀到不完整的記錄就會停止，之後已回報成功的資料會跟著遺失)
+ */
+public class FileUserStore implements UserStore {
+    private static final Logger logger = LoggerFactory.getLogger(FileUserStore.class);
+
+    private static final Pattern WAL_FILE_NAME = Pattern.compile("wal-(\\d{20})\\.log");
+    private static final Pattern SNAPSHOT_FILE_NAME = Pattern.compile("snapshot-(\\d{20})\\.dat");
+    private static final int SNAPSHOT_MAGIC = 0x55534E50; // "USNP"
+    private static final int SNAPSHOT_HEADER_LENGTH = 4 + 8;
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private final Path dataDir;
+    private final boolean fsync;
+
+    private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+    private final AtomicLong appendCount = new AtomicLong();
+    private long appendCountAtLastSnapshot;
+
+    // 以下欄位只有 writer thread 會存取(recover 在 writer thread 啟動前執行)
+    private FileChannel walChannel;
+    private long walSegment;
+    // 目前 segment 最後一次成功寫入(含 fsync)的位置
+    private long walFlushedPosition;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+
+    private Thread writerThread;
+    private volatile boolean running;
+
+    /**
+     * @param dataDir 資料目錄
+     * @param fsync true 時每批資料寫入後都會 fsync，系統當機也不會遺失已完成的寫入。false 時只寫到 OS 的 page cache
+     */
+    public FileUserStore(Path dataDir, boolean fsync) {
+        this.dataDir = dataDir;
+        this.fsync = fsync;
+    }
+
+    @Override
+    public void recover(Consumer<User> userConsumer) throws IOException {
+        Files.createDirectories(dataDir);
+        long startNanos = System.nanoTime();
+
+        List<Long> snapshots = listFileNumbers(SNAPSHOT_FILE_NAME);
+        long fromSegment = 0;
+        long userCount = 0;
+        if (!snapshots.isEmpty()) {
+            fromSegment = snapshots.get(snapshots.size() - 1);
+            userCount += readSnapshot(snapshotFile(fromSegment), userConsumer);
+        }
+
+        List<Long> walSegments = listFileNumbers(WAL_FILE_NAME);
+        long walRecordCount = 0;
+        for (long segment : walSegments) {
+            if (segment >= fromSegment) {
+                walRecordCount += replayWal(walFile(segment), userConsumer);
+            }
+            // 沒有任何資料的 segment(例如啟動後沒有新增 user 就關閉)不需要留著
+            if (Files.size(walFile(segment)) == 0) {
+                Files.delete(walFile(segment));
+            }
+        }
+
+        appendCount.set(walRecordCount); // 重播的 log 還沒包含在 snapshot 裡，下次 startSnapshot 時要做 snapshot
+
+        // 每次啟動都寫到新的 segment，不接在可能被截斷過的舊 segment 後面
+        long lastSegment = walSegments.isEmpty() ? fromSegment - 1 : walSegments.get(walSegments.size() - 1);
+        walSegment = Math.max(lastSegment + 1, fromSegment);
+        openWal(walSegment);
+
+        running = true;
+        writerThread = new Thread(this::writeLoop, "user-store-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        logger.info("recover user store '{}', snapshot user count : {}, wal record count : {}, elapsed time : {} ms",
+                dataDir, userCount, walRecordCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    @Override
+    public CompletableFuture<Void> append(User user) {
+        PendingWrite pendingWrite = new PendingWrite(user);
+        writeQueue.add(pendingWrite);
+        appendCount.incrementAndGet();
+        return pendingWrite.completed;
+    }
+
+    @Override
+    public synchronized long startSnapshot() {
+        long currentAppendCount = appendCount.get();
+        if (currentAppendCount == appendCountAtLastSnapshot) {
+            return -1;
+        }
+
+        // 切換 segment 的要求跟一般資料排在同一個佇列，之前排入的資料一定寫在舊的 segment。
+        // 切換失敗時 join 丟出 exception，appendCountAtLastSnapshot 不更新，下次還會再做 snapshot
+        PendingWrite rotateRequest = new PendingWrite(null);
+        writeQueue.add(rotateRequest);
+        rotateRequest.completed.join();
+        appendCountAtLastSnapshot = currentAppendCount;
+        return rotateRequest.rotatedSegment;
+    }
+
+    @Override
+    public synchronized void finishSnapshot(long snapshotMark, Collection<User> users) throws IOException {
+        long startNanos = System.nanoTime();
+        Path snapshotFile = snapshotFile(snapshotMark);
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+
+        long userCount = 0;
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            buffer.putInt(SNAPSHOT_MAGIC).putLong(snapshotMark);
+            for (User user : users) {
+                buffer = UserRecords.encode(user, buffer);
+                userCount++;
+                if (buffer.position() >= 512 * 1024) {
+                    writeFully(channel, buffer);
+                }
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // 新的 snapshot 已經包含舊的 snapshot 與編號較小的 segment 裡的所有資料
+        for (long snapshot : listFileNumbers(SNAPSHOT_FILE_NAME)) {
+            if (snapshot < snapshotMark) {
+                Files.deleteIfExists(snapshotFile(snapshot));
+            }
+        }
+        for (long segment : listFileNumbers(WAL_FILE_NAME)) {
+            if (segment < snapshotMark) {
+                Files.deleteIfExists(walFile(segment));
+            }
+        }
+
+        logger.info("write user store snapshot '{}', user count : {}, elapsed time : {} ms",
+                snapshotFile, userCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    @Override
+    public void close() {
+        if (writerThread == null) {
+            return;
+        }
+
+        running = false;
+        try {
+            writerThread.join();
+            walChannel.close();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            logger.error("close user store fail : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * writer thread 的主迴圈，每次把佇列裡累積的資料一起寫入，最後才 fsync 一次
+     */
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        List<PendingWrite> unflushed = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running || !writeQueue.isEmpty()) {
+            try {
+                PendingWrite first = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                writeQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                for (PendingWrite pendingWrite : batch) {
+                    if (pendingWrite.user == null) {
+                        flush(unflushed);
+                        rotateWal(pendingWrite);
+                    }
+                    else {
+                        try {
+                            writeBuffer = UserRecords.encode(pendingWrite.user, writeBuffer);
+                            unflushed.add(pendingWrite);
+                        }
+                        catch (IllegalArgumentException e) {
+                            // 不能保存的 user(UserDao 新增前就會擋下)還沒寫入 writeBuffer，只讓這一筆失敗，不影響同一批的其它資料
+                            pendingWrite.completed.completeExceptionally(e);
+                        }
+                    }
+                }
+                flush(unflushed);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (IOException | RuntimeException e) {
+                logger.error("write user store fail : " + e.getMessage(), e);
+                // 已經 flush 成功的資料 future 已經完成，completeExceptionally 不會改變它們的結果
+                UncheckedIOException failure = new UncheckedIOException(new IOException("write user store fail", e));
+                batch.forEach(pendingWrite -> pendingWrite.completed.completeExceptionally(failure));
+                unflushed.clear();
+                writeBuffer.clear();
+                discardUnflushedWal();
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> unflushed) throws IOException {
+        if (unflushed.isEmpty()) {
+            return;
+        }
+
+        long writtenBytes = writeBuffer.position();
+        writeFully(walChannel, writeBuffer);
+        if (fsync) {
+            walChannel.force(false);
+        }
+        walFlushedPosition += writtenBytes;
+        unflushed.forEach(pendingWrite -> pendingWrite.completed.complete(null));
+        unflushed.clear();
+    }
+
+    private void rotateWal(PendingWrite rotateRequest) throws IOException {
+        walChannel.force(false);
+        walChannel.close();
+        walSegment++;
+        openWal(walSegment);
+
+        rotateRequest.rotatedSegment = walSegment;
+        rotateRequest.completed.complete(null);
+    }
+
+    /**
+     * 寫入失敗後，把 log 檔截斷回最後一次成功寫入的位置，丟掉可能只寫了一部份的記錄。
+     * 截斷也失敗時改寫到新的 segment，舊 segment 結尾不完整的記錄會在系統重啟時被截掉，不影響新 segment 的資料
+     */
+    private void discardUnflushedWal() {
+        try {
+            walChannel.truncate(walFlushedPosition);
+            walChannel.force(false);
+            return;
+        }
+        catch (IOException e) {
+            logger.error("truncate user store log fail, switch to new segment : " + e.getMessage(), e);
+        }
+
+        try {
+            walChannel.close();
+        }
+        catch (IOException e) {
+            logger.warn("close user store log fail : {}", e.getMessage());
+        }
+        try {
+            walSegment++;
+            openWal(walSegment);
+        }
+        catch (IOException e) {
+            // walChannel 已經關閉，下一批資料寫入時會再失敗一次，然後再試著換新的 segment
+            logger.error("open user store log fail : " + e.getMessage(), e);
+        }
+    }
+
+    private long readSnapshot(Path snapshotFile, Consumer<User> userConsumer) throws IOException {
+        long[] userCount = {0};
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_LENGTH);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < SNAPSHOT_HEADER_LENGTH || header.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("snapshot file '" + snapshotFile + "' is corrupted");
+            }
+
+            long endOffset = UserRecords.read(channel, SNAPSHOT_HEADER_LENGTH, user -> {
+                userConsumer.accept(user);
+                userCount[0]++;
+            });
+            // snapshot 是 fsync 後才 rename 成正式檔名，內容不完整代表檔案損壞，不能當成正常資料使用
+            if (endOffset != channel.size()) {
+                throw new IOException("snapshot file '" + snapshotFile + "' is corrupted at position " + endOffset);
+            }
+        }
+        return userCount[0];
+    }
+
+    private long replayWal(Path walFile, Consumer<User> userConsumer) throws IOException {
+        long[] recordCount = {0};
+        try (FileChannel channel = FileChannel.open(walFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long endOffset = UserRecords.read(channel, 0, user -> {
+                userConsumer.accept(user);
+                recordCount[0]++;
+            });
+            // 系統在寫入途中停止時，最後一筆記錄可能只寫了一半，這筆記錄的寫入從來沒有回報成功，直接截斷
+            if (endOffset < channel.size()) {
+                logger.warn("truncate incomplete record at the end of '{}', position : {}", walFile, endOffset);
+                channel.truncate(endOffset);
+            }
+        }
+        return recordCount[0];
+    }
+
+    private void openWal(long segment) throws IOException {
+        walChannel = FileChannel.open(walFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        walFlushedPosition = walChannel.size();
+    }
+
+    private Path walFile(long segment) {
+        return dataDir.resolve(String.format("wal-%020d.log", segment));
+    }
+
+    private Path snapshotFile(long segment) {
+        return dataDir.resolve(String.format("snapshot-%020d.dat", segment));
+    }
+
+    /**
+     * @return 檔名符合 pattern 的檔案編號，由小到大排序
+     */
+    private List<Long> listFileNumbers(Pattern fileNamePattern) throws IOException {
+        List<Long> fileNumbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dataDir)) {
+            for (Path file : files) {
+                Matcher matcher = fileNamePattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    fileNumbers.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        fileNumbers.sort(null);
+        return fileNumbers;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 排入寫入佇列的資料。user 為 null 時代表切換 segment 的要求
+     */
+    private static class PendingWrite {
+        private final User user;
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+        private long rotatedSegment;
+
+        private PendingWrite(User user) {
+            this.user = user;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cloudtu.dao.store;
+
+import cloudtu.dao.bean.User;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 不保存資料，系統重啟後所有 user 都會消失。適合測試或 benchmark 使用
+ */
+public class MemoryUserStore implements UserStore {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    @Override
+    public void recover(Consumer<User> userConsumer) {
+    }
+
+    @Override
+    public CompletableFuture<Void> append(User user) {
+        return DONE;
+    }
+
+    @Override
+    public long startSnapshot() {
+        return -1;
+    }
+
+    @Override
+    public void finishSnapshot(long snapshotMark, Collection<User> users) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,128 @@
+package cloudtu.dao.store;
+
+import cloudtu.dao.bean.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * FileUserStore 的 log 檔與 snapshot 檔共用的 user 記錄格式
+ * <p>
+ * 記錄格式 : [payload length 4 bytes][crc32 4 bytes][payload]<br>
+ * payload : [name length 2 bytes][name][password length 2 bytes][password][role 1 byte]
+ */
+final class UserRecords {
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_PAYLOAD_LENGTH = 2 + 0xFFFF + 2 + 0xFFFF + 1;
+
+    // 一次 mmap 的最大範圍，MappedByteBuffer 用 int 定址，超過 2GB 的檔案要分段 mmap
+    private static final long MAX_MAP_SIZE = 1L << 30;
+
+    private static final User.Role[] ROLES = User.Role.values();
+
+    private UserRecords() {
+    }
+
+    /**
+     * 把 user 轉成一筆記錄寫到 buffer，buffer 空間不夠時回傳更大的 buffer(原本的內容會複製過去)
+     *
+     * @param user
+     * @param buffer
+     *
+     * @return 寫入記錄後的 buffer
+     */
+    static ByteBuffer encode(User user, ByteBuffer buffer) {
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] password = user.getPassword().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 2 + name.length + 2 + password.length + 1;
+        if (name.length > 0xFFFF || password.length > 0xFFFF) {
+            throw new IllegalArgumentException("user name or password is too long, user name : " + user.getName());
+        }
+
+        if (buffer.remaining() < RECORD_HEADER_LENGTH + payloadLength) {
+            ByteBuffer largerBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + RECORD_HEADER_LENGTH + payloadLength));
+            buffer.flip();
+            largerBuffer.put(buffer);
+            buffer = largerBuffer;
+        }
+
+        int recordStart = buffer.position();
+        buffer.putInt(payloadLength).putInt(0)
+                .putShort((short) name.length).put(name)
+                .putShort((short) password.length).put(password)
+                .put((byte) user.getRole().ordinal());
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), recordStart + RECORD_HEADER_LENGTH, payloadLength);
+        buffer.putInt(recordStart + 4, (int) crc32.getValue());
+        return buffer;
+    }
+
+    /**
+     * 用 memory-mapped 方式從 startOffset 開始依序讀取記錄，遇到檔案結尾或不完整(寫到一半、crc 不符)的記錄時停止
+     *
+     * @param channel
+     * @param startOffset
+     * @param userConsumer
+     *
+     * @return 最後一筆完整記錄結束的位置
+     *
+     * @throws IOException
+     */
+    static long read(FileChannel channel, long startOffset, Consumer<User> userConsumer) throws IOException {
+        long fileSize = channel.size();
+        long offset = startOffset;
+        CRC32 crc32 = new CRC32();
+
+        while (offset < fileSize) {
+            long mapSize = Math.min(fileSize - offset, MAX_MAP_SIZE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+            boolean lastMap = offset + mapSize == fileSize;
+
+            while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+                int recordStart = buffer.position();
+                int payloadLength = buffer.getInt();
+                int crc = buffer.getInt();
+                if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+                    return offset + recordStart;
+                }
+                if (buffer.remaining() < payloadLength) {
+                    buffer.position(recordStart);
+                    break;
+                }
+
+                ByteBuffer payload = buffer.slice();
+                payload.limit(payloadLength);
+                crc32.reset();
+                crc32.update(payload.duplicate());
+                if ((int) crc32.getValue() != crc) {
+                    return offset + recordStart;
+                }
+
+                userConsumer.accept(decode(payload));
+                buffer.position(recordStart + RECORD_HEADER_LENGTH + payloadLength);
+            }
+
+            // 剩下的資料不夠一筆記錄，在最後一段代表記錄寫到一半，不在最後一段就從這筆記錄的開頭重新 mmap
+            if (lastMap || buffer.position() == 0) {
+                return offset + buffer.position();
+            }
+            offset += buffer.position();
+        }
+        return offset;
+    }
+
+    private static User decode(ByteBuffer payload) {
+        byte[] name = new byte[Short.toUnsignedInt(payload.getShort())];
+        payload.get(name);
+        byte[] password = new byte[Short.toUnsignedInt(payload.getShort())];
+        payload.get(password);
+        User.Role role = ROLES[payload.get()];
+        return new User(new String(name, StandardCharsets.UTF_8), new String(password, StandardCharsets.UTF_8), role);
+    }
+}
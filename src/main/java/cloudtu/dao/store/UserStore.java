@@ -0,0 +1,56 @@
+package cloudtu.dao.store;
+
+import cloudtu.dao.bean.User;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * UserDao 的資料保存機制。UserDao 把資料放在 in memory 的 Map 提供查詢，每次新增或修改 user 時把 user 交給 UserStore 保存，
+ * 系統重啟時再由 UserStore 讀回所有 user。換用不同的實作就能改變資料保存的方式(設定 userDao.store)
+ */
+public interface UserStore {
+    /**
+     * 系統啟動時讀出保存的所有 user。同一個 userName 可能出現多次，以最後一次為準
+     *
+     * @param userConsumer
+     *
+     * @throws IOException
+     */
+    void recover(Consumer<User> userConsumer) throws IOException;
+
+    /**
+     * 保存新增或修改後的 user。呼叫端要在更新 Map 的同一個 atomic 操作裡呼叫(例如 ConcurrentHashMap.compute)，
+     * 保存的順序才會跟 Map 的更新順序一致。這個 method 只排入寫入佇列不會等待，要等資料確實寫入時再等待回傳的 future
+     *
+     * @param user
+     *
+     * @return 資料確實寫入後完成的 future
+     */
+    CompletableFuture<Void> append(User user);
+
+    /**
+     * 開始做 snapshot，之後 append 的資料不會算在這次 snapshot 裡。呼叫時不能有其它 thread 正在呼叫 append
+     *
+     * @return 這次 snapshot 的標記，傳給 {@link #finishSnapshot}。上次 snapshot 之後沒有任何異動時回傳 -1，不需要做 snapshot
+     */
+    long startSnapshot();
+
+    /**
+     * 把 startSnapshot 當下的所有 user 存成 snapshot。users 要包含 startSnapshot 之前寫入成功的所有異動，
+     * 多了 startSnapshot 之後才異動的 user 也沒關係
+     *
+     * @param snapshotMark startSnapshot 的回傳值
+     * @param users
+     *
+     * @throws IOException
+     */
+    void finishSnapshot(long snapshotMark, Collection<User> users) throws IOException;
+
+    /**
+     * 等待排入佇列的資料寫完後關閉
+     */
+    void close();
+}
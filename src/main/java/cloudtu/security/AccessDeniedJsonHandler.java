@@ -0,0 +1,67 @@
+package cloudtu.security;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.web.access.AccessDeniedHandler;
+import org.springframework.security.web.server.authorization.ServerAccessDeniedHandler;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/**
+ * 已登入的用戶存取到角色不符的 restful api 時(例如 USER 呼叫 @PreAuthorize("hasRole('ADMIN')") 的 api)，回傳 403 並寫入稽核記錄。
+ * servlet(WebSecurityConfig)與 reactive(ReactiveSecurityConfig)都用這個 class
+ */
+public class AccessDeniedJsonHandler implements AccessDeniedHandler, ServerAccessDeniedHandler {
+    // 用來處理 json <-> object 轉換。ObjectMapper class 會讀 POJO 裡的 @JsonIgnore, @JsonProperty annotation 設定
+    private static final ObjectMapper jsonObjectMapper = new ObjectMapper();
+
+    private final AuditLog auditLog;
+
+    public AccessDeniedJsonHandler(AuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response,
+                       AccessDeniedException accessDeniedException) throws IOException, ServletException {
+        Principal principal = request.getUserPrincipal();
+        auditLog.record(AuditEventType.ACCESS_DENIED, principal == null ? null : principal.getName(), request.getRemoteAddr(),
+                request.getRequestURI());
+
+        Map<String, String> errors = new LinkedHashMap<>();
+        errors.put("error", accessDeniedException.getMessage());
+
+        response.setStatus(HttpStatus.FORBIDDEN.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        jsonObjectMapper.writeValue(response.getWriter(), errors);
+    }
+
+    @Override
+    public Mono<Void> handle(ServerWebExchange exchange, AccessDeniedException accessDeniedException) {
+        Map<String, String> errors = new LinkedHashMap<>();
+        errors.put("error", accessDeniedException.getMessage());
+
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.FORBIDDEN);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        return exchange.getPrincipal()
+                .map(Principal::getName)
+                .defaultIfEmpty("")
+                .doOnNext(userName -> auditLog.record(AuditEventType.ACCESS_DENIED, userName.isEmpty() ? null : userName,
+                        AuditLog.clientIp(exchange), exchange.getRequest().getPath().value()))
+                .then(Mono.fromCallable(() -> response.bufferFactory().wrap(jsonObjectMapper.writeValueAsBytes(errors))))
+                .flatMap(body -> response.writeWith(Mono.just(body)));
+    }
+}
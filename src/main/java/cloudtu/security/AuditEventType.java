@@ -0,0 +1,24 @@
+package cloudtu.security;
+
+/**
+ * 稽核記錄(AuditLog)的事件種類
+ */
+public enum AuditEventType {
+    LOGIN_SUCCESS,
+    LOGIN_FAILURE,
+    // 登入太頻繁被 LoginRateLimiter 拒絕，detail 是 ip 或 user
+    LOGIN_RATE_LIMITED,
+    // password hash thread pool 忙不過來，登入被拒絕(503)
+    LOGIN_REJECTED,
+    // JWT 驗證失敗，detail 是 JwtAuthOutcome 的 tagValue
+    TOKEN_REJECTED,
+    // 沒有登入就存取需要授權的 api(401)
+    UNAUTHORIZED,
+    // 已登入但角色不符(403)
+    ACCESS_DENIED,
+    TOKEN_REVOKED,
+    USER_TOKENS_REVOKED,
+    USER_REGISTERED,
+    // 用戶登入時 password hash 用新的 algorithm 或 strength 重新 hash
+    PASSWORD_REHASHED
+}
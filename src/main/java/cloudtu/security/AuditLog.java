@@ -0,0 +1,274 @@
+package cloudtu.security;
+
+import cloudtu.util.MpscRingBuffer;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 安全相關事件(登入、JWT 驗證失敗、未授權存取、撤銷 token 等)的稽核記錄，以 NDJSON(每行一個 json)格式寫到 auth.audit.dir 目錄。
+ * <p>
+ * 處理 request 的 thread 只把事件的幾個欄位填進 {@link MpscRingBuffer} 事先配置好的位置，不做 IO、不產生新的 object、不拿 lock。
+ * 由單一個 writer thread 把 ring buffer 裡累積的事件一次寫到檔案並 fsync(group commit)。
+ * writer 跟不上、ring buffer 滿了的時候直接丟掉事件(auth.audit.dropped 指標)，不會讓 request 等待。
+ * <p>
+ * 檔案超過 maxFileSizeMb 時改名成 audit-&lt;epoch millis&gt;.ndjson 並開新的 audit.ndjson，最多保留 maxFiles 個舊檔。
+ * 事件裡只有 userName、client IP 與固定的原因代碼，不會記錄 password 或 token
+ */
+@Component
+public class AuditLog {
+    private static final Logger logger = LoggerFactory.getLogger(AuditLog.class);
+
+    private static final String CURRENT_FILE_NAME = "audit.ndjson";
+    private static final String ROTATED_FILE_PREFIX = "audit-";
+    private static final String FILE_SUFFIX = ".ndjson";
+
+    // 太長的欄位值只保留前面這麼多個字元
+    private static final int MAX_FIELD_LENGTH = 128;
+
+    // writer thread 每次最多處理的事件數量
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    // ring buffer 沒有資料時 writer thread 暫停的時間，寫入的 thread 不用喚醒 writer thread
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private @Value("${auth.audit.enabled}") boolean enabled;
+    private @Value("${auth.audit.dir}") String auditDir;
+    private @Value("${auth.audit.bufferSize}") int bufferSize;
+    private @Value("${auth.audit.fsync}") boolean fsync;
+    private @Value("${auth.audit.maxFileSizeMb}") long maxFileSizeMb;
+    private @Value("${auth.audit.maxFiles}") int maxFiles;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private MpscRingBuffer<AuditEvent> ringBuffer;
+    private Counter droppedCounter;
+
+    private Path dir;
+    private FileChannel fileChannel;
+    private long fileSize;
+
+    // 以下欄位只有 writer thread 使用
+    private final StringBuilder lineBuilder = new StringBuilder(256);
+    private final StringBuilder batchBuilder = new StringBuilder(64 * 1024);
+    private final JsonStringEncoder jsonStringEncoder = JsonStringEncoder.getInstance();
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            logger.info("audit log is disabled");
+            return;
+        }
+
+        dir = Paths.get(auditDir);
+        Files.createDirectories(dir);
+        openCurrentFile();
+
+        ringBuffer = new MpscRingBuffer<>(bufferSize, AuditEvent::new);
+        droppedCounter = Counter.builder("auth.audit.dropped")
+                .description("ring buffer 已滿而被丟掉的稽核事件數量")
+                .register(meterRegistry);
+        Gauge.builder("auth.audit.backlog", ringBuffer, MpscRingBuffer::size)
+                .description("還沒寫到檔案的稽核事件數量")
+                .register(meterRegistry);
+
+        running = true;
+        writerThread = new Thread(this::writeLoop, "audit-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("audit log is enabled, file : {}, bufferSize : {}, fsync : {}", dir.resolve(CURRENT_FILE_NAME), bufferSize, fsync);
+    }
+
+    /**
+     * 等 ring buffer 裡的事件都寫到檔案後才關閉
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (writerThread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * 記錄一個稽核事件。不會 block，ring buffer 滿了就丟掉事件
+     *
+     * @param type
+     * @param userName 不知道時傳 null
+     * @param clientIp 不知道時傳 null
+     * @param detail 固定的原因代碼(例如 exception class 名稱)，不能傳入 password、token 或其它機密資料。沒有時傳 null
+     */
+    public void record(AuditEventType type, String userName, String clientIp, String detail) {
+        if (ringBuffer == null) {
+            return;
+        }
+
+        long sequence = ringBuffer.tryClaim();
+        if (sequence < 0) {
+            droppedCounter.increment();
+            return;
+        }
+        ringBuffer.get(sequence).set(System.currentTimeMillis(), type, userName, clientIp, detail);
+        ringBuffer.publish(sequence);
+    }
+
+    /**
+     * @return reactive profile 的 client IP，取不到時回傳 null
+     */
+    public static String clientIp(ServerWebExchange exchange) {
+        InetSocketAddress remoteAddress = exchange.getRequest().getRemoteAddress();
+        return remoteAddress == null || remoteAddress.getAddress() == null ? null : remoteAddress.getAddress().getHostAddress();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            // 先讀 running 再 drain，running 變成 false 之前 publish 的事件一定會被寫到檔案
+            boolean stopping = !running;
+            int count = ringBuffer.drain(this::appendLine, MAX_BATCH_SIZE);
+            if (count > 0) {
+                writeBatch();
+            }
+            else if (stopping) {
+                break;
+            }
+            else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+
+        try {
+            fileChannel.close();
+        }
+        catch (IOException e) {
+            logger.warn("close audit log fail : {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 把事件轉成一行 json 加到 batchBuilder。event 在這個 method 回傳後就會被重覆使用，所以要在這裡把欄位值都複製出來
+     */
+    private void appendLine(AuditEvent event) {
+        lineBuilder.setLength(0);
+        lineBuilder.append("{\"time\":\"").append(Instant.ofEpochMilli(event.epochMillis))
+                .append("\",\"type\":\"").append(event.type.name()).append('"');
+        appendField("userName", event.userName);
+        appendField("clientIp", event.clientIp);
+        appendField("detail", event.detail);
+        lineBuilder.append("}\n");
+        batchBuilder.append(lineBuilder);
+        event.clear(); // 不保留 userName 等字串的 reference
+    }
+
+    private void appendField(String name, String value) {
+        if (value == null) {
+            return;
+        }
+        String truncated = value.length() > MAX_FIELD_LENGTH ? value.substring(0, MAX_FIELD_LENGTH) : value;
+        lineBuilder.append(",\"").append(name).append("\":\"").append(jsonStringEncoder.quoteAsString(truncated)).append('"');
+    }
+
+    /**
+     * 一次寫入整批事件，最後才 fsync 一次
+     */
+    private void writeBatch() {
+        byte[] batch = batchBuilder.toString().getBytes(StandardCharsets.UTF_8);
+        batchBuilder.setLength(0);
+        try {
+            if (fileSize > 0 && fileSize + batch.length > maxFileSizeMb * 1024 * 1024) {
+                rotate();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            if (fsync) {
+                fileChannel.force(false);
+            }
+            fileSize += batch.length;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("write audit log fail : {}", e.getMessage());
+        }
+    }
+
+    private void openCurrentFile() throws IOException {
+        fileChannel = FileChannel.open(dir.resolve(CURRENT_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = fileChannel.size();
+    }
+
+    private void rotate() throws IOException {
+        fileChannel.close();
+        Files.move(dir.resolve(CURRENT_FILE_NAME), dir.resolve(ROTATED_FILE_PREFIX + System.currentTimeMillis() + FILE_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+        openCurrentFile();
+
+        List<Path> rotatedFiles;
+        try (Stream<Path> files = Files.list(dir)) {
+            // 檔名裡的 epoch millis 位數相同，依檔名排序就是依時間排序
+            rotatedFiles = files.filter(file -> file.getFileName().toString().startsWith(ROTATED_FILE_PREFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < rotatedFiles.size() - maxFiles; i++) {
+            Files.deleteIfExists(rotatedFiles.get(i));
+        }
+    }
+
+    /**
+     * ring buffer 每個位置的事件，欄位會被重覆使用
+     */
+    private static final class AuditEvent {
+        private long epochMillis;
+        private AuditEventType type;
+        private String userName;
+        private String clientIp;
+        private String detail;
+
+        private void set(long epochMillis, AuditEventType type, String userName, String clientIp, String detail) {
+            this.epochMillis = epochMillis;
+            this.type = type;
+            this.userName = userName;
+            this.clientIp = clientIp;
+            this.detail = detail;
+        }
+
+        private void clear() {
+            userName = null;
+            clientIp = null;
+            detail = null;
+        }
+    }
+}
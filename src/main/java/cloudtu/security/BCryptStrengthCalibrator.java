@@ -0,0 +1,64 @@
+package cloudtu.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * 在目前的硬體上量測 BCrypt 運算時間，找出符合目標運算時間的 strength(cost)
+ */
+public final class BCryptStrengthCalibrator {
+    private static final Logger logger = LoggerFactory.getLogger(BCryptStrengthCalibrator.class);
+
+    private static final int MIN_STRENGTH = 4;
+    // BCryptPasswordEncoder 最大可以到 31，但 strength 14 在一般硬體上就要 1 秒以上，再往上量測會讓系統啟動卡住很久
+    private static final int MAX_STRENGTH = 14;
+    // 整個量測過程最多花費的時間(ms)
+    private static final long MAX_CALIBRATE_TIME_MS = 10_000;
+    private static final String SAMPLE_PASSWORD = "calibrate-password";
+
+    private BCryptStrengthCalibrator() {
+    }
+
+    /**
+     * strength 每加 1，BCrypt 運算時間就變成兩倍。從最小的 strength 開始往上量測，回傳第一個運算時間達到 targetMs 的 strength。
+     * strength 最大到 {@link #MAX_STRENGTH}，量測下一個 strength 預估會讓總量測時間超過 {@link #MAX_CALIBRATE_TIME_MS} 時，
+     * 就停止量測並回傳目前的 strength
+     *
+     * @param targetMs 目標運算時間(ms)
+     *
+     * @return
+     */
+    public static int calibrate(long targetMs) {
+        long calibrateStartTime = System.nanoTime();
+        int strength = MIN_STRENGTH;
+        while (true) {
+            long elapsedMs = measureEncodeTimeMs(strength);
+            logger.debug("bcrypt strength : {}, encode time : {} ms", strength, elapsedMs);
+            if (elapsedMs >= targetMs) {
+                return strength;
+            }
+            if (strength == MAX_STRENGTH) {
+                logger.warn("bcrypt strength reaches max strength {}, encode time : {} ms, target : {} ms", strength, elapsedMs, targetMs);
+                return strength;
+            }
+            // 下一個 strength 要做兩次運算(暖身與量測)，每次約是目前運算時間的兩倍
+            long totalElapsedMs = (System.nanoTime() - calibrateStartTime) / 1_000_000;
+            if (totalElapsedMs + elapsedMs * 4 > MAX_CALIBRATE_TIME_MS) {
+                logger.warn("bcrypt calibration exceeds {} ms, stop at strength {}, encode time : {} ms, target : {} ms",
+                        MAX_CALIBRATE_TIME_MS, strength, elapsedMs, targetMs);
+                return strength;
+            }
+            strength++;
+        }
+    }
+
+    private static long measureEncodeTimeMs(int strength) {
+        BCryptPasswordEncoder encoder = new BCryptPasswordEncoder(strength);
+        encoder.encode(SAMPLE_PASSWORD); // 先跑一次暖身，避免 JIT 還沒編譯影響量測結果
+
+        long startTime = System.nanoTime();
+        encoder.encode(SAMPLE_PASSWORD);
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+}
@@ -0,0 +1,133 @@
+package cloudtu.security;
+
+import cloudtu.util.RoleRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.MethodClassKey;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.expression.spel.SpelNode;
+import org.springframework.expression.spel.ast.MethodReference;
+import org.springframework.expression.spel.ast.OpAnd;
+import org.springframework.expression.spel.ast.OpOr;
+import org.springframework.expression.spel.ast.StringLiteral;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.access.prepost.PreFilter;
+import org.springframework.security.access.prepost.PreInvocationAttribute;
+import org.springframework.security.access.prepost.PreInvocationAuthorizationAdvice;
+import org.springframework.security.core.Authentication;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * {@code @PreAuthorize} 的運算式只用到 hasRole、hasAnyRole、and、or 時，第一次呼叫就把運算式編譯成檢查角色 bitmask 的
+ * IntPredicate，之後每次呼叫只做 bit 運算，不用再建立 SpEL 的 EvaluationContext 與執行運算式。
+ * <p>
+ * 其它的運算式(例如用到 method 參數、principal、hasAuthority)或是 method 有 {@code @PreFilter} 時無法編譯，
+ * 一律交給 fallback(spring security 預設的 SpEL 處理方式)。principal 不是 UserDetailsImpl 時也交給 fallback
+ */
+public class CompiledPreInvocationAdvice implements PreInvocationAuthorizationAdvice {
+    private static final Logger logger = LoggerFactory.getLogger(CompiledPreInvocationAdvice.class);
+
+    // 無法編譯的運算式用這個值記在 cache 裡，不用每次都重新嘗試編譯
+    private static final IntPredicate NOT_COMPILABLE = roleMask -> {
+        throw new IllegalStateException("expression is not compilable");
+    };
+
+    private final SpelExpressionParser expressionParser = new SpelExpressionParser();
+
+    private final PreInvocationAuthorizationAdvice fallback;
+
+    // key 是被呼叫的 method 加上實作的 class(跟 spring security 找 @PreAuthorize 時的 cache key 相同)，
+    // 同一個 interface method 的不同實作可能有不同的 @PreAuthorize，不能共用編譯結果
+    private final Map<MethodClassKey, IntPredicate> compiledByMethod = new ConcurrentHashMap<>();
+
+    public CompiledPreInvocationAdvice(PreInvocationAuthorizationAdvice fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public boolean before(Authentication authentication, MethodInvocation mi, PreInvocationAttribute preInvocationAttribute) {
+        // 先用 get 查 cache，避免每次呼叫都建立 computeIfAbsent 的 lambda
+        Class<?> targetClass = mi.getThis() == null ? mi.getMethod().getDeclaringClass() : AopUtils.getTargetClass(mi.getThis());
+        MethodClassKey key = new MethodClassKey(mi.getMethod(), targetClass);
+        IntPredicate compiled = compiledByMethod.get(key);
+        if (compiled == null) {
+            compiled = compiledByMethod.computeIfAbsent(key, methodClassKey -> compile(mi.getMethod(), targetClass));
+        }
+        Object principal = authentication == null ? null : authentication.getPrincipal();
+        if (compiled == NOT_COMPILABLE || !(principal instanceof UserDetailsImpl)) {
+            return fallback.before(authentication, mi, preInvocationAttribute);
+        }
+        return compiled.test(((UserDetailsImpl) principal).getRoleMask());
+    }
+
+    /**
+     * 用跟 spring security(PrePostAnnotationSecurityMetadataSource)相同的方式找出 {@code @PreAuthorize}，
+     * 先找實作 class 上的 method，再找 method 所在的 class
+     */
+    private IntPredicate compile(Method method, Class<?> targetClass) {
+        Method specificMethod = AopUtils.getMostSpecificMethod(method, targetClass);
+        if (AnnotationUtils.findAnnotation(specificMethod, PreFilter.class) != null) {
+            return NOT_COMPILABLE;
+        }
+        PreAuthorize preAuthorize = AnnotationUtils.findAnnotation(specificMethod, PreAuthorize.class);
+        if (preAuthorize == null) {
+            preAuthorize = AnnotationUtils.findAnnotation(specificMethod.getDeclaringClass(), PreAuthorize.class);
+        }
+        if (preAuthorize == null) {
+            return NOT_COMPILABLE;
+        }
+
+        IntPredicate compiled = compile(((SpelExpression) expressionParser.parseExpression(preAuthorize.value())).getAST());
+        logger.info("@PreAuthorize(\"{}\") on {} is {}", preAuthorize.value(), specificMethod,
+                compiled == null ? "evaluated by SpEL" : "compiled to role mask check");
+        return compiled == null ? NOT_COMPILABLE : compiled;
+    }
+
+    /**
+     * @return 無法編譯時回傳 null
+     */
+    private static IntPredicate compile(SpelNode node) {
+        if (node instanceof OpOr || node instanceof OpAnd) {
+            IntPredicate left = compile(node.getChild(0));
+            IntPredicate right = compile(node.getChild(1));
+            if (left == null || right == null) {
+                return null;
+            }
+            return node instanceof OpOr ? left.or(right) : left.and(right);
+        }
+        if (node instanceof MethodReference) {
+            String methodName = ((MethodReference) node).getName();
+            if (!"hasRole".equals(methodName) && !"hasAnyRole".equals(methodName)) {
+                return null;
+            }
+            if ("hasRole".equals(methodName) && node.getChildCount() != 1) {
+                return null;
+            }
+            int requiredMask = 0;
+            for (int i = 0; i < node.getChildCount(); i++) {
+                if (!(node.getChild(i) instanceof StringLiteral)) {
+                    return null;
+                }
+                int roleMask = RoleRegistry.maskOf((String) ((StringLiteral) node.getChild(i)).getLiteralValue().getValue());
+                if (roleMask == 0) {
+                    return null; // 不在 User.Role 裡的角色交給 SpEL 處理
+                }
+                requiredMask |= roleMask;
+            }
+            if (requiredMask == 0) {
+                return null;
+            }
+            int mask = requiredMask;
+            return roleMask -> (roleMask & mask) != 0;
+        }
+        return null;
+    }
+}
@@ -1,83 +1,134 @@
 package cloudtu.security;
 
+import cloudtu.util.JwtPrecheck;
 import cloudtu.util.JwtUtil;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import cloudtu.util.RateLimitedLogGate;
+import cloudtu.util.bean.JwtPrincipal;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 這個 filter 利用 http request header 帶的 JWT(Json Web Token) 進行用戶認証與授權
  */
 @Component
+@Profile("!reactive") // reactive profile 改用 JwtReactiveAuthenticationManager
 public class JwtAuthFilter extends OncePerRequestFilter {
     private static final Logger logger = LoggerFactory.getLogger(JwtAuthFilter.class);
 
-    // 用來處理 json <-> object 轉換。ObjectMapper class 會讀 POJO 裡的 @JsonIgnore, @JsonProperty annotation 設定
-    private static final ObjectMapper jsonObjectMapper = new ObjectMapper();
+    private static final String AUTH_HEADER = "Authorization";
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    // WebAuthenticationDetailsSource 沒有狀態，所有 request 共用同一個 instance
+    private static final WebAuthenticationDetailsSource authenticationDetailsSource = new WebAuthenticationDetailsSource();
+
+    // 驗證失敗的 log 每秒最多輸出一筆
+    private final RateLimitedLogGate rejectLogGate = new RateLimitedLogGate(1, TimeUnit.SECONDS);
+
+    private @Value("${jwt.maxTokenLength}") int maxTokenLength;
 
     @Autowired
     private JwtUtil jwtUtil;
 
     @Autowired
-    private UserDetailsServiceImpl userDetailsService;
+    private VerifiedTokenCache verifiedTokenCache;
+
+    @Autowired
+    private TokenRevocationList tokenRevocationList;
+
+    @Autowired
+    private UserDetailsCache userDetailsCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    // 每種驗證結果各自累計次數，透過 actuator 的 auth.filter.requests 指標(tag outcome)揭露
+    private Map<JwtAuthOutcome, Counter> outcomeCounters;
+
+    @PostConstruct
+    public void init() {
+        outcomeCounters = JwtAuthOutcome.registerCounters(meterRegistry);
+    }
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
+        String authHeader = request.getHeader(AUTH_HEADER);
+        if (!isBearerAuthHeader(authHeader)) {
+            outcomeCounters.get(JwtAuthOutcome.NO_TOKEN).increment();
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        // 先用低成本的結構檢查把明顯不合法的 token 擋掉，不用進到簽章驗證與 json 解析
+        JwtPrecheck.Rejection rejection = JwtPrecheck.check(authHeader, BEARER_PREFIX.length(), maxTokenLength,
+                jwtUtil.getAcceptedAlgorithms());
+        if (rejection != null) {
+            reject(request, response, JwtAuthOutcome.of(rejection), rejection.name());
+            return;
+        }
+
+        String token = authHeader.substring(BEARER_PREFIX.length());
         try {
-            String token = retriveJwt(request);
-            if (token != null){
-                // 因為 WebSecurityConfig 設定 sessionCreationPolicy(SessionCreationPolicy.STATELESS)，所以
-                // 不用 http session 記錄資料，因此 SecurityContextHolder 不會將登入認証成功後的 Authentication 記到
-                // http session。也就是說登入認証成功後的 Authentication 不會被記錄到系統，每次的 http request 都必需重新
-                // 進行一次登入認証，不然從 SecurityContextHolder.getContext().getAuthentication() 取回登入認証成功後
-                // 的 Authentication instance 一定是 null。
-
-                //region 當 token 變數可以成功解析出 userName 與 userRoles 時，代表是合法 token，這時可以用 token 裡的資料產生
-                //       登入認証成功後的 Authentication，並將它存放到 SecurityContextHolder.getContext().setAuthentication(...) method
-                //       讓系統知道用戶已登入認証成功
-                String userName = jwtUtil.parseUserNameFromToken(token); // 解析失敗時會丟出 exception
-                List<SimpleGrantedAuthority> userAuthorities = jwtUtil.parseUserAuthoritiesFromToken(token); // 解析失敗時會丟出 exception
-                UserDetails userDetails = new UserDetailsImpl(userName, null, userAuthorities); // 因為 token 裡不會記錄 password, 所以 constructor 裡的 password 欄位帶入 null
-
-                // 如果想讓系統更安全，可以用 token 取得的 userName 反查 userDetailsService 之後產生 UserDetails instance
-                // 但是 userDetailsService 的實作大多是到 DB 查資料，如果 http request 數量很大的話，要考慮幫它加上 cache 机制降低 DB 負擔
-                // UserDetails userDetails = userDetailsService.loadUserByUsername(userName);
-
-                UsernamePasswordAuthenticationToken authAfterSuccessLogin = new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
-                authAfterSuccessLogin.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
-                SecurityContextHolder.getContext().setAuthentication(authAfterSuccessLogin);
-                //endregion
+            // 因為 WebSecurityConfig 設定 sessionCreationPolicy(SessionCreationPolicy.STATELESS)，所以
+            // 不用 http session 記錄資料，因此 SecurityContextHolder 不會將登入認証成功後的 Authentication 記到
+            // http session。也就是說登入認証成功後的 Authentication 不會被記錄到系統，每次的 http request 都必需重新
+            // 進行一次登入認証，不然從 SecurityContextHolder.getContext().getAuthentication() 取回登入認証成功後
+            // 的 Authentication instance 一定是 null。
+
+            //region 當 token 變數可以成功解析出 userName 與 userRoles 時，代表是合法 token，這時可以用 token 裡的資料產生
+            //       登入認証成功後的 Authentication，並將它存放到 SecurityContextHolder.getContext().setAuthentication(...) method
+            //       讓系統知道用戶已登入認証成功
+            JwtPrincipal jwtPrincipal = verifiedTokenCache.get(token, jwtUtil::parsePrincipalFromToken); // 只做一次簽章驗證，解析失敗時會丟出 exception
+            // 撤銷檢查不能放進 cache，token 被撤銷後，cache 裡的資料還在
+            if (tokenRevocationList.isRevoked(jwtPrincipal)) {
+                reject(request, response, JwtAuthOutcome.REVOKED, "token is revoked, tokenId : " + jwtPrincipal.getTokenId());
+                return;
+            }
+            String userName = jwtPrincipal.getUserName();
+            UserDetails userDetails;
+            if (userDetailsCache.isEnabled()) {
+                // 用 token 取得的 userName 反查目前的用戶資料，用戶角色異動後馬上生效，不用等舊 token 過期。
+                // userDetailsService 的實作大多是到 DB 查資料，所以透過 cache 查詢，降低 DB 負擔
+                userDetails = userDetailsCache.get(userName);
+            }
+            else {
+                userDetails = new UserDetailsImpl(userName, null, jwtPrincipal.getRoleMask()); // 因為 token 裡不會記錄 password, 所以 constructor 裡的 password 欄位帶入 null
             }
-        }
-        catch (Exception e) {
-            logger.error(e.getMessage(), e);
 
-            Map<String, String> errorMsg = new LinkedHashMap<>();
-            errorMsg.put("error", e.getMessage());
+            UsernamePasswordAuthenticationToken authAfterSuccessLogin = new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+            authAfterSuccessLogin.setDetails(authenticationDetailsSource.buildDetails(request));
+            SecurityContextHolder.getContext().setAuthentication(authAfterSuccessLogin);
+            //endregion
 
-            response.setStatus(HttpStatus.UNAUTHORIZED.value());
-            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
-            jsonObjectMapper.writeValue(response.getWriter(), errorMsg);
+            outcomeCounters.get(JwtAuthOutcome.VALID).increment();
+        }
+        catch (Exception e) {
+            reject(request, response, JwtAuthOutcome.of(e), e.getMessage());
             return;
         }
 
@@ -85,19 +136,40 @@ public class JwtAuthFilter extends OncePerRequestFilter {
     }
 
     /**
-     * 從 http header 取出 JWT(Json Web Token)
+     * 判斷 http header 是否帶了 Bearer 格式的 JWT(Json Web Token)
      *
-     * @param request
+     * @param authHeader
      *
-     * @return 取不到 JWT 時回傳 null
+     * @return
      */
-    private String retriveJwt(HttpServletRequest request) {
-        String authHeader = request.getHeader("Authorization");
+    private static boolean isBearerAuthHeader(String authHeader) {
+        return authHeader != null && authHeader.startsWith(BEARER_PREFIX);
+    }
 
-        if (authHeader != null && !authHeader.isBlank() && authHeader.startsWith("Bearer ")) {
-            return authHeader.substring(7);
+    /**
+     * 回傳 401。錯誤訊息用事先產生好的 response body，log 也限制輸出頻率且不印 stack trace，
+     * 大量不合法 request 進來時，處理成本才不會比正常 request 還高
+     *
+     * @param request
+     * @param response
+     * @param outcome
+     * @param reason
+     *
+     * @throws IOException
+     */
+    private void reject(HttpServletRequest request, HttpServletResponse response, JwtAuthOutcome outcome, String reason) throws IOException {
+        outcomeCounters.get(outcome).increment();
+        // token 驗證失敗時不知道是哪個用戶，也不能把 token 寫進稽核記錄
+        auditLog.record(AuditEventType.TOKEN_REJECTED, null, request.getRemoteAddr(), outcome.tagValue);
+
+        long suppressedCount = rejectLogGate.tryAcquire();
+        if (suppressedCount >= 0) {
+            logger.warn("reject jwt, outcome : {}, reason : {}, suppressed log count : {}", outcome.tagValue, reason, suppressedCount);
         }
 
-        return null;
+        response.setStatus(HttpStatus.UNAUTHORIZED.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(outcome.errorBody.length);
+        response.getOutputStream().write(outcome.errorBody);
     }
 }
@@ -0,0 +1,83 @@
+package cloudtu.security;
+
+import cloudtu.util.JwtPrecheck;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.security.SignatureException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * JwtAuthFilter 與 JwtReactiveAuthenticationManager 處理 http request 的結果
+ */
+enum JwtAuthOutcome {
+    NO_TOKEN("no_token", null),
+    VALID("valid", null),
+    EXPIRED("expired", "JWT is expired"),
+    BAD_SIGNATURE("bad_signature", "JWT signature is invalid"),
+    MALFORMED("malformed", "JWT is malformed"),
+    OVERSIZED("oversized", "JWT is too large"),
+    UNSUPPORTED_ALGORITHM("unsupported_algorithm", "JWT algorithm is not supported"),
+    REVOKED("revoked", "JWT is revoked"),
+    UNKNOWN_USER("unknown_user", "JWT user does not exist"),
+    INVALID("invalid", "JWT is invalid");
+
+    final String tagValue;
+
+    final String errorMsg;
+
+    // 驗證失敗時回傳的 response body，事先轉成 byte[]，不用每次都做 json 序列化
+    final byte[] errorBody;
+
+    JwtAuthOutcome(String tagValue, String errorMsg) {
+        this.tagValue = tagValue;
+        this.errorMsg = errorMsg;
+        this.errorBody = errorMsg == null ? null : ("{\"error\":\"" + errorMsg + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 每種驗證結果各自累計次數，透過 actuator 的 auth.filter.requests 指標(tag outcome)揭露
+     */
+    static Map<JwtAuthOutcome, Counter> registerCounters(MeterRegistry meterRegistry) {
+        Map<JwtAuthOutcome, Counter> outcomeCounters = new EnumMap<>(JwtAuthOutcome.class);
+        for (JwtAuthOutcome outcome : values()) {
+            outcomeCounters.put(outcome, Counter.builder("auth.filter.requests")
+                    .description("JwtAuthFilter 處理 http request 的結果")
+                    .tag("outcome", outcome.tagValue)
+                    .register(meterRegistry));
+        }
+        return outcomeCounters;
+    }
+
+    static JwtAuthOutcome of(JwtPrecheck.Rejection rejection) {
+        switch (rejection) {
+            case OVERSIZED:
+                return OVERSIZED;
+            case UNSUPPORTED_ALGORITHM:
+                return UNSUPPORTED_ALGORITHM;
+            default:
+                return MALFORMED;
+        }
+    }
+
+    static JwtAuthOutcome of(Exception e) {
+        if (e instanceof ExpiredJwtException) {
+            return EXPIRED;
+        }
+        if (e instanceof SignatureException) {
+            return BAD_SIGNATURE;
+        }
+        if (e instanceof MalformedJwtException) {
+            return MALFORMED;
+        }
+        if (e instanceof UsernameNotFoundException) {
+            return UNKNOWN_USER;
+        }
+        return INVALID;
+    }
+}
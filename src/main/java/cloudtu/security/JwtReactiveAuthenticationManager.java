@@ -0,0 +1,156 @@
+package cloudtu.security;
+
+import cloudtu.util.JwtPrecheck;
+import cloudtu.util.JwtUtil;
+import cloudtu.util.RateLimitedLogGate;
+import cloudtu.util.bean.JwtPrincipal;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.web.server.WebFilterExchange;
+import org.springframework.security.web.server.authentication.AuthenticationWebFilter;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * reactive profile 用的 ReactiveAuthenticationManager，利用 http request header 帶的 JWT(Json Web Token) 進行用戶認証與授權，
+ * 驗證流程與 JwtAuthFilter 相同。
+ * <p>
+ * 驗證過程只有簽章運算與 in-memory 的 cache 查詢，不會 block，所以直接在 netty 的 event loop thread 上執行，
+ * 不用切換 thread。用 {@link #newWebFilter()} 產生放到 SecurityWebFilterChain 的 AuthenticationWebFilter
+ */
+public class JwtReactiveAuthenticationManager implements ReactiveAuthenticationManager {
+    private static final Logger logger = LoggerFactory.getLogger(JwtReactiveAuthenticationManager.class);
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    // 驗證失敗的 log 每秒最多輸出一筆
+    private final RateLimitedLogGate rejectLogGate = new RateLimitedLogGate(1, TimeUnit.SECONDS);
+
+    private final int maxTokenLength;
+    private final JwtUtil jwtUtil;
+    private final VerifiedTokenCache verifiedTokenCache;
+    private final TokenRevocationList tokenRevocationList;
+    private final UserDetailsCache userDetailsCache;
+    private final AuditLog auditLog;
+
+    private final Map<JwtAuthOutcome, Counter> outcomeCounters;
+
+    public JwtReactiveAuthenticationManager(int maxTokenLength, JwtUtil jwtUtil, VerifiedTokenCache verifiedTokenCache,
+                                            TokenRevocationList tokenRevocationList, UserDetailsCache userDetailsCache,
+                                            AuditLog auditLog, MeterRegistry meterRegistry) {
+        this.maxTokenLength = maxTokenLength;
+        this.jwtUtil = jwtUtil;
+        this.verifiedTokenCache = verifiedTokenCache;
+        this.tokenRevocationList = tokenRevocationList;
+        this.userDetailsCache = userDetailsCache;
+        this.auditLog = auditLog;
+        this.outcomeCounters = JwtAuthOutcome.registerCounters(meterRegistry);
+    }
+
+    /**
+     * 產生用這個 class 驗證 JWT 的 AuthenticationWebFilter。沒帶 JWT 的 request 直接往下傳，交給後面的授權規則決定能不能存取；
+     * JWT 不合法時直接回傳 401，不會再往下傳
+     */
+    public AuthenticationWebFilter newWebFilter() {
+        AuthenticationWebFilter webFilter = new AuthenticationWebFilter(this);
+        webFilter.setServerAuthenticationConverter(this::convert);
+        webFilter.setAuthenticationFailureHandler(this::reject);
+        return webFilter;
+    }
+
+    /**
+     * 從 http header 取出 JWT，先用低成本的結構檢查把明顯不合法的 token 擋掉，不用進到簽章驗證與 json 解析
+     */
+    private Mono<Authentication> convert(ServerWebExchange exchange) {
+        String authHeader = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (authHeader == null || !authHeader.startsWith(BEARER_PREFIX)) {
+            outcomeCounters.get(JwtAuthOutcome.NO_TOKEN).increment();
+            return Mono.empty();
+        }
+
+        JwtPrecheck.Rejection rejection = JwtPrecheck.check(authHeader, BEARER_PREFIX.length(), maxTokenLength,
+                jwtUtil.getAcceptedAlgorithms());
+        if (rejection != null) {
+            return Mono.error(new JwtAuthException(JwtAuthOutcome.of(rejection), rejection.name()));
+        }
+
+        String token = authHeader.substring(BEARER_PREFIX.length());
+        return Mono.just(new UsernamePasswordAuthenticationToken(token, token));
+    }
+
+    @Override
+    public Mono<Authentication> authenticate(Authentication authentication) {
+        String token = (String) authentication.getCredentials();
+        try {
+            JwtPrincipal jwtPrincipal = verifiedTokenCache.get(token, jwtUtil::parsePrincipalFromToken); // 只做一次簽章驗證，解析失敗時會丟出 exception
+            // 撤銷檢查不能放進 cache，token 被撤銷後，cache 裡的資料還在
+            if (tokenRevocationList.isRevoked(jwtPrincipal)) {
+                return Mono.error(new JwtAuthException(JwtAuthOutcome.REVOKED, "token is revoked, tokenId : " + jwtPrincipal.getTokenId()));
+            }
+            String userName = jwtPrincipal.getUserName();
+            UserDetails userDetails;
+            if (userDetailsCache.isEnabled()) {
+                // 用戶資料放在記憶體(UserDao)，cache miss 時的查詢也不會 block
+                userDetails = userDetailsCache.get(userName);
+            }
+            else {
+                userDetails = new UserDetailsImpl(userName, null, jwtPrincipal.getRoleMask()); // 因為 token 裡不會記錄 password, 所以 constructor 裡的 password 欄位帶入 null
+            }
+
+            outcomeCounters.get(JwtAuthOutcome.VALID).increment();
+            return Mono.just(new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities()));
+        }
+        catch (Exception e) {
+            return Mono.error(new JwtAuthException(JwtAuthOutcome.of(e), e.getMessage()));
+        }
+    }
+
+    /**
+     * 回傳 401。錯誤訊息用事先產生好的 response body，log 也限制輸出頻率且不印 stack trace，
+     * 大量不合法 request 進來時，處理成本才不會比正常 request 還高
+     */
+    private Mono<Void> reject(WebFilterExchange webFilterExchange, AuthenticationException e) {
+        JwtAuthOutcome outcome = e instanceof JwtAuthException ? ((JwtAuthException) e).outcome : JwtAuthOutcome.INVALID;
+        outcomeCounters.get(outcome).increment();
+        ServerWebExchange exchange = webFilterExchange.getExchange();
+        // token 驗證失敗時不知道是哪個用戶，也不能把 token 寫進稽核記錄
+        auditLog.record(AuditEventType.TOKEN_REJECTED, null, AuditLog.clientIp(exchange), outcome.tagValue);
+
+        long suppressedCount = rejectLogGate.tryAcquire();
+        if (suppressedCount >= 0) {
+            logger.warn("reject jwt, outcome : {}, reason : {}, suppressed log count : {}", outcome.tagValue, e.getMessage(), suppressedCount);
+        }
+
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.UNAUTHORIZED);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        response.getHeaders().setContentLength(outcome.errorBody.length);
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(outcome.errorBody)));
+    }
+
+    /**
+     * JWT 驗證失敗，AuthenticationWebFilter 收到後會交給 {@link #reject} 處理
+     */
+    private static class JwtAuthException extends AuthenticationException {
+        private final JwtAuthOutcome outcome;
+
+        private JwtAuthException(JwtAuthOutcome outcome, String reason) {
+            super(reason);
+            this.outcome = outcome;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package cloudtu.security;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.PathContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 在 /auth/login 交給 AuthenticationManager 做 BCrypt 密碼比對之前，用 LoginRateLimiter 檢查登入頻率，太頻繁時直接回傳 429
+ */
+@Component
+@Profile("!reactive") // reactive profile 改用 ReactiveLoginRateLimitFilter
+public class LoginRateLimitFilter extends OncePerRequestFilter {
+    @Autowired
+    private LoginRateLimiter loginRateLimiter;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !loginRateLimiter.isEnabled() || !"POST".equals(request.getMethod())
+                || !LoginRateLimiter.isLoginPath(PathContainer.parsePath(request.getServletPath()));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        // client IP 用 request.getRemoteAddr()，放在 proxy 後面時要設定 server.forward-headers-strategy 才會是真正的 client IP
+        if (loginRateLimiter.tryAcquire(request.getRemoteAddr(), request.getParameter("userName"))) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        byte[] rejectBody = loginRateLimiter.getRejectBody();
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, loginRateLimiter.getRetryAfterSec());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(rejectBody.length);
+        response.getOutputStream().write(rejectBody);
+    }
+}
@@ -0,0 +1,176 @@
+package cloudtu.security;
+
+import cloudtu.util.RateLimitedLogGate;
+import cloudtu.util.TokenBucket;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.PathContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 限制 /auth/login 的頻率，每次登入都要做一次很耗 cpu 的 BCrypt 密碼比對，不限制的話少量機器就能用光整個系統的 cpu。
+ * <p>
+ * 每個 client IP 與每個 userName 各有一個 {@link TokenBucket}，兩個 bucket 都拿得到 token 才放行。
+ * bucket 放在 Caffeine cache 裡，cache 筆數有上限(maxKeys)，閒置到 bucket 補滿的 key 會被清掉(清掉跟補滿的效果一樣)，
+ * 所以大量不同的 IP 或 userName 進來時記憶體用量也不會無限制成長。
+ * 被拒絕的次數透過 actuator 的 auth.login.ratelimited 指標(tag limit)揭露
+ */
+@Component
+public class LoginRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(LoginRateLimiter.class);
+
+    // 用跟 controller mapping 相同的方式比對路徑(PathPatternParser 預設的 matchOptionalTrailingSeparator)，
+    // /auth/login/ 一樣會被 @PostMapping("/login") 處理，也要限制頻率
+    private static final PathPattern LOGIN_PATH_PATTERN = PathPatternParser.defaultInstance.parse("/auth/login");
+
+    // 太長的 userName 只取前面這麼多個字元當 key，避免每個 key 佔用太多記憶體
+    private static final int MAX_USER_NAME_KEY_LENGTH = 128;
+
+    private static final byte[] REJECT_BODY = "{\"error\":\"too many login attempts, please retry later\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    // 被拒絕的 log 每秒最多輸出一筆
+    private final RateLimitedLogGate rejectLogGate = new RateLimitedLogGate(1, TimeUnit.SECONDS);
+
+    private @Value("${auth.loginRateLimit.enabled}") boolean enabled;
+    private @Value("${auth.loginRateLimit.perIp.capacity}") int perIpCapacity;
+    private @Value("${auth.loginRateLimit.perIp.refillIntervalMs}") long perIpRefillIntervalMs;
+    private @Value("${auth.loginRateLimit.perUser.capacity}") int perUserCapacity;
+    private @Value("${auth.loginRateLimit.perUser.refillIntervalMs}") long perUserRefillIntervalMs;
+    private @Value("${auth.loginRateLimit.maxKeys}") long maxKeys;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    private Cache<String, TokenBucket> ipBuckets;
+    private Cache<String, TokenBucket> userBuckets;
+
+    // 事先建好 cache miss 時產生 bucket 的 function，cache hit 時不用每次都建立新的 lambda
+    private Function<String, TokenBucket> newIpBucket;
+    private Function<String, TokenBucket> newUserBucket;
+
+    private Counter ipRejectedCounter;
+    private Counter userRejectedCounter;
+
+    private String retryAfterSec;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            logger.info("login rate limit is disabled");
+            return;
+        }
+
+        long perIpRefillIntervalNanos = TimeUnit.MILLISECONDS.toNanos(perIpRefillIntervalMs);
+        long perUserRefillIntervalNanos = TimeUnit.MILLISECONDS.toNanos(perUserRefillIntervalMs);
+        ipBuckets = newBucketCache(perIpCapacity * perIpRefillIntervalMs);
+        userBuckets = newBucketCache(perUserCapacity * perUserRefillIntervalMs);
+        newIpBucket = key -> new TokenBucket(perIpCapacity, perIpRefillIntervalNanos);
+        newUserBucket = key -> new TokenBucket(perUserCapacity, perUserRefillIntervalNanos);
+
+        ipRejectedCounter = newRejectedCounter("ip");
+        userRejectedCounter = newRejectedCounter("user");
+
+        retryAfterSec = String.valueOf(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(Math.max(perIpRefillIntervalMs, perUserRefillIntervalMs))));
+        logger.info("login rate limit is enabled, perIp : {} / {}ms, perUser : {} / {}ms, maxKeys : {}",
+                perIpCapacity, perIpRefillIntervalMs, perUserCapacity, perUserRefillIntervalMs, maxKeys);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param path 去掉 context path 之後的 request 路徑
+     *
+     * @return path 會被 /auth/login 處理時回傳 true，包括結尾多一個 / 的路徑
+     */
+    public static boolean isLoginPath(PathContainer path) {
+        return LOGIN_PATH_PATTERN.matches(path);
+    }
+
+    /**
+     * 先檢查 client IP 再檢查 userName，IP 被拒絕時不會用掉 userName 的 token
+     *
+     * @param clientIp
+     * @param userName 沒帶 userName 時傳 null，只檢查 client IP
+     *
+     * @return 可以登入時回傳 true，登入太頻繁時回傳 false
+     */
+    public boolean tryAcquire(String clientIp, String userName) {
+        long now = System.nanoTime();
+        if (clientIp != null && !ipBuckets.get(clientIp, newIpBucket).tryAcquire(now)) {
+            reject(ipRejectedCounter, "ip", clientIp, userName);
+            return false;
+        }
+        if (userName != null) {
+            String userKey = userName.length() > MAX_USER_NAME_KEY_LENGTH ? userName.substring(0, MAX_USER_NAME_KEY_LENGTH) : userName;
+            if (!userBuckets.get(userKey, newUserBucket).tryAcquire(now)) {
+                reject(userRejectedCounter, "user", clientIp, userKey);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 登入太頻繁時回傳的 response body，事先轉成 byte[]，不用每次都做 json 序列化
+     */
+    public byte[] getRejectBody() {
+        return REJECT_BODY;
+    }
+
+    /**
+     * @return 登入太頻繁時回傳的 Retry-After header(秒)
+     */
+    public String getRetryAfterSec() {
+        return retryAfterSec;
+    }
+
+    private Cache<String, TokenBucket> newBucketCache(long fullRefillMs) {
+        return Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterAccess(Duration.ofMillis(fullRefillMs))
+                // cache 的維護工作(清掉過期資料)量很小，直接在呼叫的 thread 上做，不交給 ForkJoinPool.commonPool()，
+                // cpu core 很少的機器上交給其它 thread 反而比較慢
+                .executor(Runnable::run)
+                .build();
+    }
+
+    private Counter newRejectedCounter(String limit) {
+        return Counter.builder("auth.login.ratelimited")
+                .description("登入太頻繁而被拒絕的次數")
+                .tag("limit", limit)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param limit 被哪一種限制拒絕，ip 或 user
+     */
+    private void reject(Counter rejectedCounter, String limit, String clientIp, String userName) {
+        rejectedCounter.increment();
+        auditLog.record(AuditEventType.LOGIN_RATE_LIMITED, userName, clientIp, limit);
+        long suppressedCount = rejectLogGate.tryAcquire();
+        if (suppressedCount >= 0) {
+            logger.warn("reject login, too many attempts, limit : {}, clientIp : {}, userName : {}, suppressed log count : {}",
+                    limit, clientIp, userName, suppressedCount);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package cloudtu.security;
+
+import cloudtu.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 專門執行 password hash(BCrypt) 運算的 thread pool。
+ * <p>
+ * BCrypt 每次運算要花數十 ms，如果直接在 tomcat 的 request thread 上執行，大量登入時會把 request thread 佔滿，
+ * 連只需要驗 token 的 /user/** 呼叫也會被拖慢。所以 BCrypt 運算改在這個 thread 數量與 queue 長度都有上限的
+ * thread pool 執行，queue 滿了就馬上丟出 {@link RejectedExecutionException}，不讓 request 無止境的排隊。
+ * <p>
+ * 批次匯入 user 時一次要做大量 BCrypt 運算，改用另一個 thread 數量一樣的 ForkJoinPool({@link #mapInParallel})，
+ * 不會把登入、註冊用的 queue 塞滿
+ */
+@Component
+public class PasswordHashExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(PasswordHashExecutor.class);
+
+    private @Value("${auth.passwordHashExecutor.poolSize}") int poolSize;
+    private @Value("${auth.passwordHashExecutor.queueCapacity}") int queueCapacity;
+    private @Value("${server.threads.mode}") String threadsMode;
+
+    private ThreadPoolExecutor executor;
+
+    private ForkJoinPool bulkPool;
+
+    @PostConstruct
+    public void init() {
+        // poolSize 設為 0 時，thread 數量等於 cpu core 數量。BCrypt 是純 cpu 運算，thread 數量超過 core 數量沒有幫助
+        int threadCount = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        // server.threads.mode=virtual 時改用 virtual thread，但 thread 數量上限不變，BCrypt 運算不會因為 virtual thread 變快
+        ThreadFactory threadFactory;
+        if ("virtual".equals(threadsMode) && VirtualThreads.isAvailable()) {
+            threadFactory = VirtualThreads.newThreadFactory("password-hash-virtual-");
+        }
+        else {
+            CustomizableThreadFactory platformThreadFactory = new CustomizableThreadFactory("password-hash-");
+            platformThreadFactory.setDaemon(true);
+            threadFactory = platformThreadFactory;
+        }
+
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        bulkPool = new ForkJoinPool(threadCount);
+        logger.info("password hash executor, threadCount : {}, queueCapacity : {}, threadFactory : {}", threadCount, queueCapacity,
+                threadFactory.getClass().getSimpleName());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        bulkPool.shutdown();
+    }
+
+    /**
+     * 把 task 交給 password hash thread pool 執行
+     *
+     * @param task
+     *
+     * @return thread pool 的 queue 已滿時，回傳以 {@link RejectedExecutionException} 失敗的 CompletableFuture，
+     *         呼叫端跟其它失敗一樣在 whenComplete 裡處理(記錄 metric 與 audit log)
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        }
+        catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * reactive profile 把這個 thread pool 包成 reactor 的 Scheduler(ReactiveSecurityConfig.passwordHashScheduler)，
+     * thread 數量與 queue 長度的上限跟 submit 相同，queue 滿了一樣會收到 {@link RejectedExecutionException}
+     *
+     * @return
+     */
+    public ExecutorService getExecutorService() {
+        return executor;
+    }
+
+    /**
+     * 用所有 cpu core 平行處理 items 裡的每個項目，例如批次匯入 user 時平行做 password hash。
+     * 呼叫的 thread 會等到全部處理完才回傳
+     *
+     * @param items
+     * @param task
+     *
+     * @return 處理結果，順序與 items 相同
+     */
+    public <T, R> List<R> mapInParallel(List<T> items, Function<T, R> task) {
+        // 在 bulkPool 裡執行 parallelStream，拆開的子工作也都在 bulkPool 執行，不會用到 ForkJoinPool.commonPool()
+        return bulkPool.submit(() -> items.parallelStream().map(task).collect(Collectors.toList())).join();
+    }
+}
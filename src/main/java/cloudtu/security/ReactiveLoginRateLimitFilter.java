@@ -0,0 +1,53 @@
+package cloudtu.security;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * reactive profile 用的登入頻率檢查，功能與 LoginRateLimitFilter 相同。
+ * 不註冊成 bean(webflux 會把 WebFilter bean 套用到所有 request)，由 ReactiveSecurityConfig 加到 SecurityWebFilterChain
+ */
+public class ReactiveLoginRateLimitFilter implements WebFilter {
+    private final LoginRateLimiter loginRateLimiter;
+
+    public ReactiveLoginRateLimitFilter(LoginRateLimiter loginRateLimiter) {
+        this.loginRateLimiter = loginRateLimiter;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        if (!loginRateLimiter.isEnabled() || request.getMethod() != HttpMethod.POST
+                || !LoginRateLimiter.isLoginPath(request.getPath().pathWithinApplication())) {
+            return chain.filter(exchange);
+        }
+
+        String clientIp = AuditLog.clientIp(exchange);
+        // 跟 ReactiveAuthController 一樣，userName 可以放在 form data 或 query string。getFormData() 的結果會被 cache，controller 可以再讀一次
+        return exchange.getFormData().flatMap(formData -> {
+            String userName = formData.getFirst("userName");
+            if (userName == null) {
+                userName = request.getQueryParams().getFirst("userName");
+            }
+            if (loginRateLimiter.tryAcquire(clientIp, userName)) {
+                return chain.filter(exchange);
+            }
+
+            byte[] rejectBody = loginRateLimiter.getRejectBody();
+            ServerHttpResponse response = exchange.getResponse();
+            response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+            response.getHeaders().set(HttpHeaders.RETRY_AFTER, loginRateLimiter.getRetryAfterSec());
+            response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            response.getHeaders().setContentLength(rejectBody.length);
+            return response.writeWith(Mono.just(response.bufferFactory().wrap(rejectBody)));
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package cloudtu.security;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.security.core.userdetails.ReactiveUserDetailsPasswordService;
+import org.springframework.security.core.userdetails.ReactiveUserDetailsService;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * reactive profile 登入時用的 user store，查詢與更新都轉給 UserDetailsServiceImpl(UserDao)處理。
+ * <p>
+ * UserDao 的查詢只讀記憶體，直接在呼叫端的 thread 執行。updatePassword 會等 user 資料寫入 log(fsync)，
+ * 不過只會在密碼比對之後被呼叫，這時已經在 passwordHashScheduler 的 thread 上，不會 block netty 的 event loop thread
+ */
+@Service
+@Profile("reactive")
+public class ReactiveUserDetailsServiceImpl implements ReactiveUserDetailsService, ReactiveUserDetailsPasswordService {
+    @Autowired
+    private UserDetailsServiceImpl userDetailsService;
+
+    @Override
+    public Mono<UserDetails> findByUsername(String username) {
+        try {
+            return Mono.just(userDetailsService.loadUserByUsername(username));
+        }
+        catch (UsernameNotFoundException e) {
+            return Mono.empty(); // 找不到用戶時回傳 empty，UserDetailsRepositoryReactiveAuthenticationManager 會當成帳號密碼錯誤處理
+        }
+    }
+
+    @Override
+    public Mono<UserDetails> updatePassword(UserDetails user, String newPassword) {
+        return Mono.fromCallable(() -> userDetailsService.updatePassword(user, newPassword));
+    }
+}
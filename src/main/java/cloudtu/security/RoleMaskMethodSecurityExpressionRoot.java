@@ -0,0 +1,148 @@
+package cloudtu.security;
+
+import cloudtu.util.RoleRegistry;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionOperations;
+import org.springframework.security.core.Authentication;
+
+/**
+ * {@code @PreAuthorize} 裡 hasRole、hasAnyRole 的角色檢查改用 {@link UserDetailsImpl#getRoleMask()} 做 bit 運算，
+ * 不用像 spring security 預設的 SecurityExpressionRoot 那樣，每個 request 都把用戶的 authorities 轉成一個新的 HashSet 再比對。
+ * <p>
+ * SecurityExpressionRoot 的 hasRole 是 final method 不能覆寫，所以其它運算式(hasAuthority、isAuthenticated 等)都轉給預設的
+ * root 處理。principal 不是 UserDetailsImpl 或是角色名稱不在 User.Role 裡時，也轉給預設的 root 處理。
+ * 運算式裡用到的屬性(authentication、principal、this、returnObject、filterObject、permitAll 等)也都要提供，不然 SpEL 找不到會出錯
+ */
+public class RoleMaskMethodSecurityExpressionRoot implements MethodSecurityExpressionOperations {
+    // 跟 SecurityExpressionRoot 一樣的 public 欄位，運算式才能用屬性的寫法，例如 @PreAuthorize("permitAll")、hasPermission(#id, 'User', read)
+    public final boolean permitAll = true;
+    public final boolean denyAll = false;
+    public final String read = "read";
+    public final String write = "write";
+    public final String create = "create";
+    public final String delete = "delete";
+    public final String admin = "administration";
+
+    private final MethodSecurityExpressionOperations delegate;
+
+    // -1 代表 principal 不是 UserDetailsImpl，不能用 bitmask 檢查
+    private final int roleMask;
+
+    public RoleMaskMethodSecurityExpressionRoot(MethodSecurityExpressionOperations delegate) {
+        this.delegate = delegate;
+        Object principal = delegate.getAuthentication() == null ? null : delegate.getAuthentication().getPrincipal();
+        this.roleMask = principal instanceof UserDetailsImpl ? ((UserDetailsImpl) principal).getRoleMask() : -1;
+    }
+
+    @Override
+    public boolean hasRole(String role) {
+        int requiredMask = RoleRegistry.maskOf(role);
+        if (roleMask < 0 || requiredMask == 0) {
+            return delegate.hasRole(role);
+        }
+        return (roleMask & requiredMask) != 0;
+    }
+
+    @Override
+    public boolean hasAnyRole(String... roles) {
+        int requiredMask = 0;
+        for (String role : roles) {
+            int mask = RoleRegistry.maskOf(role);
+            if (mask == 0) {
+                return delegate.hasAnyRole(roles);
+            }
+            requiredMask |= mask;
+        }
+        if (roleMask < 0) {
+            return delegate.hasAnyRole(roles);
+        }
+        return (roleMask & requiredMask) != 0;
+    }
+
+    @Override
+    public Authentication getAuthentication() {
+        return delegate.getAuthentication();
+    }
+
+    /**
+     * 讓運算式可以用 principal 取得登入的用戶，例如 {@code #userName == principal.username}
+     */
+    public Object getPrincipal() {
+        Authentication authentication = delegate.getAuthentication();
+        return authentication == null ? null : authentication.getPrincipal();
+    }
+
+    @Override
+    public boolean hasAuthority(String authority) {
+        return delegate.hasAuthority(authority);
+    }
+
+    @Override
+    public boolean hasAnyAuthority(String... authorities) {
+        return delegate.hasAnyAuthority(authorities);
+    }
+
+    @Override
+    public boolean permitAll() {
+        return delegate.permitAll();
+    }
+
+    @Override
+    public boolean denyAll() {
+        return delegate.denyAll();
+    }
+
+    @Override
+    public boolean isAnonymous() {
+        return delegate.isAnonymous();
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return delegate.isAuthenticated();
+    }
+
+    @Override
+    public boolean isRememberMe() {
+        return delegate.isRememberMe();
+    }
+
+    @Override
+    public boolean isFullyAuthenticated() {
+        return delegate.isFullyAuthenticated();
+    }
+
+    @Override
+    public boolean hasPermission(Object target, Object permission) {
+        return delegate.hasPermission(target, permission);
+    }
+
+    @Override
+    public boolean hasPermission(Object targetId, String targetType, Object permission) {
+        return delegate.hasPermission(targetId, targetType, permission);
+    }
+
+    @Override
+    public void setFilterObject(Object filterObject) {
+        delegate.setFilterObject(filterObject);
+    }
+
+    @Override
+    public Object getFilterObject() {
+        return delegate.getFilterObject();
+    }
+
+    @Override
+    public void setReturnObject(Object returnObject) {
+        delegate.setReturnObject(returnObject);
+    }
+
+    @Override
+    public Object getReturnObject() {
+        return delegate.getReturnObject();
+    }
+
+    @Override
+    public Object getThis() {
+        return delegate.getThis();
+    }
+}
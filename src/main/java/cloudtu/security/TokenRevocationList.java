@@ -0,0 +1,163 @@
+package cloudtu.security;
+
+import cloudtu.dao.RefreshTokenDao;
+import cloudtu.util.BloomFilter;
+import cloudtu.util.bean.JwtPrincipal;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 記錄被撤銷的 JWT(Json Web Token)。可以撤銷單一 token(用 jti 識別)，或撤銷某個用戶在某個時間點之前拿到的所有 token。
+ * <p>
+ * 每個 http request 都要檢查 token 是否被撤銷，所以在精確的資料集合(ConcurrentHashMap)前面放一個 {@link BloomFilter}，
+ * 絕大多數沒被撤銷的 token 在 Bloom filter 就會得到 false，只有 Bloom filter 回傳 true 時才會查精確的資料集合。
+ * 撤銷記錄在 token 過期之後就沒有用了，定期清掉並重建 Bloom filter(Bloom filter 不能刪除資料)。
+ * <p>
+ * 記憶體用量(jwt.revocation.falsePositiveRate=0.01，TokenRevocationListBenchmark 量測)，每一百萬個被撤銷的 jti
+ * 約 140MB heap，其中 Bloom filter 只佔 1.2MB ~ 2.4MB，其餘是 ConcurrentHashMap(jti 字串、Long 與 map node)。
+ * 撤銷記錄只存在記憶體，系統重啟後就會消失
+ */
+@Component
+public class TokenRevocationList {
+    private static final Logger logger = LoggerFactory.getLogger(TokenRevocationList.class);
+
+    private @Value("${jwt.expireTimeAsSec}") long jwtExpireTimeAsSec;
+    private @Value("${jwt.revocation.expectedEntries}") long expectedEntries;
+    private @Value("${jwt.revocation.falsePositiveRate}") double falsePositiveRate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private AuditLog auditLog;
+
+    @Autowired
+    private RefreshTokenDao refreshTokenDao;
+
+    // Map<jti, token 過期時間(epoch second)>
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+
+    // Map<userName, 撤銷時間(epoch second)>，這個時間點(含)之前發出的 token 都視為已撤銷
+    private final Map<String, Long> revokedUsers = new ConcurrentHashMap<>();
+
+    private volatile BloomFilter revokedTokenFilter;
+    private volatile BloomFilter revokedUserFilter;
+
+    @PostConstruct
+    public void init() {
+        rebuildFilters();
+
+        Gauge.builder("auth.jwt.revoked", revokedTokens, Map::size)
+                .description("被撤銷且尚未過期的 token 數量")
+                .tag("type", "token")
+                .register(meterRegistry);
+        Gauge.builder("auth.jwt.revoked", revokedUsers, Map::size)
+                .description("被撤銷且尚未過期的 token 數量")
+                .tag("type", "user")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param jwtPrincipal
+     *
+     * @return true 代表 token 已被撤銷
+     */
+    public boolean isRevoked(JwtPrincipal jwtPrincipal) {
+        String tokenId = jwtPrincipal.getTokenId();
+        if (tokenId != null && revokedTokenFilter.mightContain(tokenId) && revokedTokens.containsKey(tokenId)) {
+            return true;
+        }
+
+        String userName = jwtPrincipal.getUserName();
+        if (revokedUserFilter.mightContain(userName)) {
+            Long revokedEpochSec = revokedUsers.get(userName);
+            // iat 只精確到秒，撤銷當下同一秒發出的 token 也一併視為已撤銷
+            return revokedEpochSec != null
+                    && (jwtPrincipal.getIssuedTime() == null || jwtPrincipal.getIssuedTime().getEpochSecond() <= revokedEpochSec);
+        }
+        return false;
+    }
+
+    /**
+     * 撤銷單一 token
+     *
+     * @param jwtPrincipal
+     */
+    public synchronized void revokeToken(JwtPrincipal jwtPrincipal) {
+        if (jwtPrincipal.getTokenId() == null) {
+            return;
+        }
+
+        revokedTokens.put(jwtPrincipal.getTokenId(), jwtPrincipal.getExpireTime().getEpochSecond());
+        if (revokedTokens.size() > revokedTokenFilter.getExpectedEntries()) {
+            rebuildFilters();
+        }
+        else {
+            revokedTokenFilter.add(jwtPrincipal.getTokenId());
+        }
+        logger.info("revoke token, userName : {}, tokenId : {}", jwtPrincipal.getUserName(), jwtPrincipal.getTokenId());
+        auditLog.record(AuditEventType.TOKEN_REVOKED, jwtPrincipal.getUserName(), null, jwtPrincipal.getTokenId()); // jti 只是識別碼，不是 token 本身
+    }
+
+    /**
+     * 撤銷用戶到目前為止拿到的所有 token，包含 refresh token。
+     * 不撤銷 refresh token 的話，用戶(或偷到 refresh token 的人)可以馬上換到一個發出時間比撤銷時間晚的新 token
+     *
+     * @param userName
+     */
+    public synchronized void revokeUser(String userName) {
+        revokedUsers.put(userName, Instant.now().getEpochSecond());
+        if (revokedUsers.size() > revokedUserFilter.getExpectedEntries()) {
+            rebuildFilters();
+        }
+        else {
+            revokedUserFilter.add(userName);
+        }
+        int revokedRefreshTokenCount = refreshTokenDao.revokeUser(userName);
+        logger.info("revoke all tokens of user, userName : {}, revoked refresh token count : {}", userName, revokedRefreshTokenCount);
+        auditLog.record(AuditEventType.USER_TOKENS_REVOKED, userName, null, null);
+    }
+
+    /**
+     * 清掉已經過期的撤銷記錄，然後重建 Bloom filter
+     */
+    @Scheduled(fixedDelayString = "${jwt.revocation.purgeIntervalMs}", initialDelayString = "${jwt.revocation.purgeIntervalMs}")
+    public synchronized void purgeExpired() {
+        long nowEpochSec = Instant.now().getEpochSecond();
+        int sizeBeforePurge = revokedTokens.size() + revokedUsers.size();
+
+        revokedTokens.values().removeIf(expireEpochSec -> expireEpochSec <= nowEpochSec);
+        // 撤銷時間點之前發出的 token，最晚在 jwtExpireTimeAsSec 秒後全部過期
+        revokedUsers.values().removeIf(revokedEpochSec -> revokedEpochSec + jwtExpireTimeAsSec < nowEpochSec);
+
+        int purgedCount = sizeBeforePurge - revokedTokens.size() - revokedUsers.size();
+        if (purgedCount > 0) {
+            rebuildFilters();
+            logger.debug("purge expired revocation, purged count : {}", purgedCount);
+        }
+    }
+
+    /**
+     * 只在 synchronized method 裡呼叫。資料量超過預期時把 Bloom filter 放大，維持誤判機率
+     */
+    private void rebuildFilters() {
+        BloomFilter tokenFilter = new BloomFilter(Math.max(expectedEntries, revokedTokens.size() * 2L), falsePositiveRate);
+        revokedTokens.keySet().forEach(tokenFilter::add);
+        BloomFilter userFilter = new BloomFilter(Math.max(expectedEntries, revokedUsers.size() * 2L), falsePositiveRate);
+        revokedUsers.keySet().forEach(userFilter::add);
+
+        revokedTokenFilter = tokenFilter;
+        revokedUserFilter = userFilter;
+    }
+}
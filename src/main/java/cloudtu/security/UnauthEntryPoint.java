@@ -3,32 +3,53 @@ package cloudtu.security;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import cloudtu.util.RateLimitedLogGate;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.security.web.server.ServerAuthenticationEntryPoint;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
 
 /**
- * 存取到未授權的 restful api 時，會導到這個 class 進行後續處理
+ * 存取到未授權的 restful api 時，會導到這個 class 進行後續處理。servlet(WebSecurityConfig)與 reactive(ReactiveSecurityConfig)都用這個 class
  */
-public class UnauthEntryPoint implements AuthenticationEntryPoint {
+public class UnauthEntryPoint implements AuthenticationEntryPoint, ServerAuthenticationEntryPoint {
     private static final Logger logger = LoggerFactory.getLogger(UnauthEntryPoint.class);
 
     // 用來處理 json <-> object 轉換。ObjectMapper class 會讀 POJO 裡的 @JsonIgnore, @JsonProperty annotation 設定
     private static final ObjectMapper jsonObjectMapper = new ObjectMapper();
 
+    // 被拒絕的 log 每秒最多輸出一筆，而且不印 stack trace，大量未授權的 request 進來時才不會被 log 拖慢
+    private final RateLimitedLogGate rejectLogGate = new RateLimitedLogGate(1, TimeUnit.SECONDS);
+
+    private final Counter rejectedCounter;
+    private final AuditLog auditLog;
+
+    public UnauthEntryPoint(MeterRegistry meterRegistry, AuditLog auditLog) {
+        rejectedCounter = Counter.builder("auth.unauthorized")
+                .description("存取到未授權的 restful api 而被拒絕的次數")
+                .register(meterRegistry);
+        this.auditLog = auditLog;
+    }
+
     @Override
     public void commence(HttpServletRequest request, HttpServletResponse response,
                          AuthenticationException authException) throws IOException, ServletException {
-        logger.error(authException.getMessage(), authException);
+        reject(request.getRemoteAddr(), authException);
 
         Map<String, String> errors = new LinkedHashMap<>();
         errors.put("error", authException.getMessage());
@@ -38,4 +59,32 @@ public class UnauthEntryPoint implements AuthenticationEntryPoint {
         jsonObjectMapper.writeValue(response.getWriter(), errors);
     }
 
+    @Override
+    public Mono<Void> commence(ServerWebExchange exchange, AuthenticationException authException) {
+        // ExceptionTranslationWebFilter 處理 AccessDeniedException 時，不管最後是回傳 403 還是 401 都會先呼叫這個 method 組出 Mono，
+        // 所以計數、稽核記錄與修改 response 都要等 Mono 被 subscribe(確定要回傳 401)才執行
+        return Mono.defer(() -> {
+            reject(AuditLog.clientIp(exchange), authException);
+
+            Map<String, String> errors = new LinkedHashMap<>();
+            errors.put("error", authException.getMessage());
+
+            ServerHttpResponse response = exchange.getResponse();
+            response.setStatusCode(HttpStatus.UNAUTHORIZED);
+            response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            return Mono.fromCallable(() -> response.bufferFactory().wrap(jsonObjectMapper.writeValueAsBytes(errors)))
+                    .flatMap(body -> response.writeWith(Mono.just(body)));
+        });
+    }
+
+    private void reject(String clientIp, AuthenticationException authException) {
+        rejectedCounter.increment();
+        auditLog.record(AuditEventType.UNAUTHORIZED, null, clientIp, authException.getClass().getSimpleName());
+
+        long suppressedCount = rejectLogGate.tryAcquire();
+        if (suppressedCount >= 0) {
+            logger.warn("reject unauthorized request, clientIp : {}, reason : {}, suppressed log count : {}",
+                    clientIp, authException.getMessage(), suppressedCount);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package cloudtu.security;
+
+import cloudtu.dao.bean.UserChangedEvent;
+import cloudtu.util.RoleRegistry;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+
+/**
+ * 暫存 {@link UserDetailsServiceImpl#loadUserByUsername} 查到的用戶資料，JwtAuthFilter 開啟這個 cache 後，
+ * 每個 request 都用目前的用戶資料(例如角色)授權，而不是 token 裡記錄的舊資料，又不用每個 request 都查一次 UserDao。
+ * <p>
+ * cache 筆數有上限，每筆資料最多存在 ttlSec 秒，user 異動時收到 UserChangedEvent 會馬上清掉。cache 裡的資料不包含 password。
+ * hit, miss 次數、hit ratio 與查詢用戶資料花費的時間透過 actuator metrics 的 cache.* 指標(cache=userDetailsCache)揭露
+ */
+@Component
+public class UserDetailsCache {
+    private static final Logger logger = LoggerFactory.getLogger(UserDetailsCache.class);
+
+    private static final String CACHE_NAME = "userDetailsCache";
+
+    private @Value("${auth.userDetailsCache.enabled}") boolean enabled;
+    private @Value("${auth.userDetailsCache.maxSize}") long maxSize;
+    private @Value("${auth.userDetailsCache.ttlSec}") long ttlSec;
+
+    @Autowired
+    private UserDetailsServiceImpl userDetailsService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private LoadingCache<String, UserDetailsImpl> cache;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            logger.info("{} is disabled", CACHE_NAME);
+            return;
+        }
+
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSec))
+                .recordStats()
+                .build(this::load);
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        Gauge.builder("cache.hit.ratio", cache, userDetailsCache -> userDetailsCache.stats().hitRate())
+                .description("cache hit 的比例")
+                .tag("cache", CACHE_NAME)
+                .register(meterRegistry);
+        logger.info("{} is enabled, maxSize : {}, ttlSec : {}", CACHE_NAME, maxSize, ttlSec);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param userName
+     *
+     * @return 用戶資料，不包含 password
+     *
+     * @throws org.springframework.security.core.userdetails.UsernameNotFoundException 用戶不存在時丟出，不會被 cache
+     */
+    public UserDetailsImpl get(String userName) {
+        return cache.get(userName);
+    }
+
+    @EventListener
+    public void onUserChanged(UserChangedEvent event) {
+        if (cache != null) {
+            cache.invalidate(event.getUserName());
+        }
+    }
+
+    private UserDetailsImpl load(String userName) {
+        UserDetails userDetails = userDetailsService.loadUserByUsername(userName);
+        int roleMask = RoleRegistry.maskOfAuthorities(userDetails.getAuthorities());
+        return new UserDetailsImpl(userDetails.getUsername(), null, roleMask); // 授權用不到 password，不放進 cache
+    }
+}
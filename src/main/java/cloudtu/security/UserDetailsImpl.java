@@ -1,30 +1,47 @@
 package cloudtu.security;
 
+import cloudtu.util.RoleRegistry;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 public class UserDetailsImpl implements UserDetails {
     private String userName;
     private String password;
-    private List<SimpleGrantedAuthority> authorities = new ArrayList<>();
+    private int roleMask;
+    private List<SimpleGrantedAuthority> authorities;
 
     public UserDetailsImpl(String userName, String password, SimpleGrantedAuthority authority) {
-        this.userName = userName;
-        this.password = password;
-        authorities.add(authority);
+        this(userName, password, List.of(authority));
     }
 
     public UserDetailsImpl(String userName, String password, List<SimpleGrantedAuthority> authorities) {
         this.userName = userName;
         this.password = password;
+        this.roleMask = RoleRegistry.maskOfAuthorities(authorities);
         this.authorities = authorities;
     }
 
+    /**
+     * 用角色組合的 bitmask 建立，authorities 直接使用 RoleRegistry 共用的 list，不會另外配置記憶體
+     */
+    public UserDetailsImpl(String userName, String password, int roleMask) {
+        this.userName = userName;
+        this.password = password;
+        this.roleMask = roleMask;
+        this.authorities = RoleRegistry.authoritiesOf(roleMask);
+    }
+
+    /**
+     * @return 角色組合的 bitmask，RoleMaskMethodSecurityExpressionRoot 用它做 hasRole 檢查
+     */
+    public int getRoleMask() {
+        return roleMask;
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
         return authorities;
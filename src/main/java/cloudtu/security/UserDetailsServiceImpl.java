@@ -2,22 +2,26 @@ package cloudtu.security;
 
 import cloudtu.dao.UserDao;
 import cloudtu.dao.bean.User;
+import cloudtu.util.RoleRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
 @Service
-public class UserDetailsServiceImpl implements UserDetailsService {
+public class UserDetailsServiceImpl implements UserDetailsService, UserDetailsPasswordService {
     private static final Logger logger = LoggerFactory.getLogger(UserDetailsServiceImpl.class);
 
     @Autowired
     UserDao userDao;
 
+    @Autowired
+    private AuditLog auditLog;
+
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         User user = userDao.findUser(username);
@@ -26,7 +30,19 @@ public class UserDetailsServiceImpl implements UserDetailsService {
             throw new UsernameNotFoundException("User Not Found with username : " + username);
         }
 
-        return new UserDetailsImpl(user.getName(), user.getPassword(), new SimpleGrantedAuthority(user.getRole().toString()));
+        return new UserDetailsImpl(user.getName(), user.getPassword(), RoleRegistry.maskOf(user.getRole()));
     }
 
+    /**
+     * 用戶登入成功，而且 password hash 用的是舊的 algorithm 或 strength 時，DaoAuthenticationProvider 會呼叫這個 method
+     * 把用新設定重新 hash 的 password 存回 UserDao
+     */
+    @Override
+    public UserDetails updatePassword(UserDetails user, String newPassword) {
+        userDao.updatePassword(user.getUsername(), newPassword);
+        logger.info("upgrade password encoding for username : {}", user.getUsername());
+        auditLog.record(AuditEventType.PASSWORD_REHASHED, user.getUsername(), null, null);
+
+        return loadUserByUsername(user.getUsername());
+    }
 }
@@ -0,0 +1,108 @@
+package cloudtu.security;
+
+import cloudtu.util.bean.JwtPrincipal;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Function;
+
+/**
+ * 記錄已驗證過的 JWT(Json Web Token)，同一個 token 重覆使用時不用再重算 HMAC 簽章與解析 json claims。
+ * <p>
+ * cache key 是 token 的 SHA-256 digest(不保存 token 原文)，cache value 是解析好的 {@link JwtPrincipal}。
+ * cache 筆數有上限，每筆資料最晚在 token 本身的 exp 時間就會失效。hit, miss, eviction 次數透過
+ * actuator metrics 的 cache.* 指標(cache=jwtTokenCache)揭露
+ */
+@Component
+public class VerifiedTokenCache {
+    private static final Logger logger = LoggerFactory.getLogger(VerifiedTokenCache.class);
+
+    private static final String CACHE_NAME = "jwtTokenCache";
+
+    private @Value("${jwt.tokenCache.enabled}") boolean enabled;
+    private @Value("${jwt.tokenCache.maxSize}") long maxSize;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Cache<ByteBuffer, JwtPrincipal> cache;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            logger.info("{} is disabled", CACHE_NAME);
+            return;
+        }
+
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new ExpireAtTokenExpiry())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        logger.info("{} is enabled, maxSize : {}", CACHE_NAME, maxSize);
+    }
+
+    /**
+     * 從 cache 取回 token 對應的 {@link JwtPrincipal}，cache 裡沒有時用 tokenParser 解析後放進 cache。
+     * tokenParser 解析失敗時丟出的 exception 會直接往外丟，解析失敗的 token 不會被放進 cache
+     *
+     * @param token
+     * @param tokenParser
+     *
+     * @return
+     */
+    public JwtPrincipal get(String token, Function<String, JwtPrincipal> tokenParser) {
+        if (cache == null) {
+            return tokenParser.apply(token);
+        }
+
+        return cache.get(digest(token), key -> tokenParser.apply(token));
+    }
+
+    private static ByteBuffer digest(String token) {
+        try {
+            // MessageDigest 不是 thread safe，所以每次都取新的 instance
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(messageDigest.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 讓每筆 cache 資料在 token 的 exp 時間失效，之後的讀取不會延長資料的存活時間
+     */
+    private static class ExpireAtTokenExpiry implements Expiry<ByteBuffer, JwtPrincipal> {
+        @Override
+        public long expireAfterCreate(ByteBuffer key, JwtPrincipal value, long currentTime) {
+            return Math.max(0, Duration.between(Instant.now(), value.getExpireTime()).toNanos());
+        }
+
+        @Override
+        public long expireAfterUpdate(ByteBuffer key, JwtPrincipal value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+        @Override
+        public long expireAfterRead(ByteBuffer key, JwtPrincipal value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
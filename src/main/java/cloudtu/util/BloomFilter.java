@@ -0,0 +1,90 @@
+package cloudtu.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 字串用的 Bloom filter。mightContain 回傳 false 時資料一定不存在，回傳 true 時資料可能存在(有 falsePositiveRate 的機率誤判)，
+ * 要再到精確的資料集合確認。bit 陣列用 AtomicLongArray 存放，多個 thread 可以同時新增與查詢，不需要 lock
+ * <p>
+ * 每筆資料佔用的記憶體約為 -ln(falsePositiveRate) / (ln2)^2 個 bit，falsePositiveRate = 0.01 時約 9.6 bit
+ */
+public final class BloomFilter {
+    private final long expectedEntries;
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLongArray bits;
+
+    /**
+     * @param expectedEntries 預計存放的資料筆數，存放的資料超過這個數量時，誤判機率會變高
+     * @param falsePositiveRate 誤判機率
+     */
+    public BloomFilter(long expectedEntries, double falsePositiveRate) {
+        this.expectedEntries = Math.max(1, expectedEntries);
+        long optimalBitCount = (long) Math.ceil(-this.expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (optimalBitCount + 63) >>> 6);
+        this.bitCount = (long) wordCount << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / this.expectedEntries * Math.log(2)));
+        this.bits = new AtomicLongArray(wordCount);
+    }
+
+    public void add(String value) {
+        long hash = hash64(value);
+        long hash2 = secondHash(hash);
+        for (int i = 0; i < hashCount; i++) {
+            long bitIndex = bitIndexOf(hash, hash2, i);
+            long mask = 1L << bitIndex;
+            bits.getAndAccumulate((int) (bitIndex >>> 6), mask, (current, bit) -> current | bit);
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash64(value);
+        long hash2 = secondHash(hash);
+        for (int i = 0; i < hashCount; i++) {
+            long bitIndex = bitIndexOf(hash, hash2, i);
+            if ((bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getExpectedEntries() {
+        return expectedEntries;
+    }
+
+    /**
+     * @return bit 陣列佔用的 byte 數
+     */
+    public long getSizeInBytes() {
+        return bitCount >>> 3;
+    }
+
+    // 用兩個 hash 值組合出 hashCount 個 hash 值(Kirsch-Mitzenmacher)，不用真的算 hashCount 次 hash
+    private long bitIndexOf(long hash, long hash2, int i) {
+        return ((hash + i * hash2) & Long.MAX_VALUE) % bitCount;
+    }
+
+    // FNV-1a 再做一次 murmur3 fmix64，讓每個 bit 都充分混合
+    private static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return fmix64(hash);
+    }
+
+    private static long secondHash(long hash) {
+        return fmix64(hash ^ 0x9e3779b97f4a7c15L) | 1;
+    }
+
+    private static long fmix64(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,235 @@
+package cloudtu.util;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 產生與驗證 JWT(Json Web Token) 簽章用的 key 集合。instance 建立後內容不會再變動，換 key 時是整個 instance 換掉
+ * <p>
+ * 有兩種模式
+ * <ul>
+ *     <li>HMAC 模式 : 只有一把對稱式 key(jwt.signKey)，產生與驗證 token 都用它，token header 不帶 kid</li>
+ *     <li>非對稱式模式 : 從 key 目錄讀取多把 key，每把 key 以 kid(key id) 區分。目錄裡的檔案命名規則為
+ *         &lt;kid&gt;.pub.pem(X.509 格式 public key，驗證簽章用) 與 &lt;kid&gt;.key.pem(PKCS#8 格式 private key，產生簽章用)。
+ *         有 private key 的 kid 裡，檔案最新的那一把用來產生新 token，所有 public key 都可以用來驗證 token。
+ *         RSA key 使用 RS256，EC key 依曲線大小使用 ES256/ES384/ES512</li>
+ * </ul>
+ */
+public final class JwtKeyRing {
+    private static final Logger logger = LoggerFactory.getLogger(JwtKeyRing.class);
+
+    private static final String PUBLIC_KEY_FILE_SUFFIX = ".pub.pem";
+    private static final String PRIVATE_KEY_FILE_SUFFIX = ".key.pem";
+
+    private final String signingKid;
+    private final Key signingKey;
+    private final SignatureAlgorithm signingAlgorithm;
+
+    // Map<kid, key>，HMAC 模式的 kid 為 null
+    private final Map<String, Key> verificationKeys;
+    private final Map<String, SignatureAlgorithm> verificationAlgorithms;
+    private final Set<String> acceptedAlgorithms;
+
+    private JwtKeyRing(String signingKid, Key signingKey, SignatureAlgorithm signingAlgorithm,
+                       Map<String, Key> verificationKeys, Map<String, SignatureAlgorithm> verificationAlgorithms) {
+        this.signingKid = signingKid;
+        this.signingKey = signingKey;
+        this.signingAlgorithm = signingAlgorithm;
+        this.verificationKeys = Collections.unmodifiableMap(verificationKeys);
+        this.verificationAlgorithms = Collections.unmodifiableMap(verificationAlgorithms);
+
+        Set<String> algorithms = new HashSet<>();
+        verificationAlgorithms.values().forEach(algorithm -> algorithms.add(algorithm.getValue()));
+        this.acceptedAlgorithms = Collections.unmodifiableSet(algorithms);
+    }
+
+    /**
+     * 建立 HMAC 模式的 key ring
+     *
+     * @param signKey
+     * @param algorithm HS256, HS384 或 HS512
+     *
+     * @return
+     */
+    public static JwtKeyRing hmac(String signKey, SignatureAlgorithm algorithm) {
+        if (!algorithm.isHmac()) {
+            throw new IllegalArgumentException("algorithm '" + algorithm + "' is not hmac algorithm");
+        }
+
+        Key key = Keys.hmacShaKeyFor(signKey.getBytes(StandardCharsets.UTF_8));
+        Map<String, Key> verificationKeys = new HashMap<>();
+        verificationKeys.put(null, key);
+        Map<String, SignatureAlgorithm> verificationAlgorithms = new HashMap<>();
+        verificationAlgorithms.put(null, algorithm);
+        return new JwtKeyRing(null, key, algorithm, verificationKeys, verificationAlgorithms);
+    }
+
+    /**
+     * 從 key 目錄讀取非對稱式 key，建立 key ring
+     *
+     * @param keyDir
+     *
+     * @return
+     *
+     * @throws IOException 讀檔失敗、key 格式錯誤、或是目錄裡沒有任何 private key 時丟出
+     */
+    public static JwtKeyRing load(Path keyDir) throws IOException {
+        Map<String, Key> verificationKeys = new HashMap<>();
+        Map<String, SignatureAlgorithm> verificationAlgorithms = new HashMap<>();
+        String signingKid = null;
+        PrivateKey signingKey = null;
+        FileTime signingKeyTime = null;
+
+        try (DirectoryStream<Path> keyFiles = Files.newDirectoryStream(keyDir, "*.pem")) {
+            for (Path keyFile : keyFiles) {
+                String fileName = keyFile.getFileName().toString();
+                if (fileName.endsWith(PUBLIC_KEY_FILE_SUFFIX)) {
+                    String kid = fileName.substring(0, fileName.length() - PUBLIC_KEY_FILE_SUFFIX.length());
+                    PublicKey publicKey = readPublicKey(keyFile);
+                    verificationKeys.put(kid, publicKey);
+                    verificationAlgorithms.put(kid, algorithmOf(publicKey));
+                }
+                else if (fileName.endsWith(PRIVATE_KEY_FILE_SUFFIX)) {
+                    String kid = fileName.substring(0, fileName.length() - PRIVATE_KEY_FILE_SUFFIX.length());
+                    FileTime keyTime = Files.getLastModifiedTime(keyFile);
+                    if (signingKeyTime == null || keyTime.compareTo(signingKeyTime) > 0) {
+                        signingKid = kid;
+                        signingKey = readPrivateKey(keyFile);
+                        signingKeyTime = keyTime;
+                    }
+                }
+            }
+        }
+
+        if (signingKey == null) {
+            throw new IOException("no private key(*" + PRIVATE_KEY_FILE_SUFFIX + ") in key dir '" + keyDir + "'");
+        }
+        if (!verificationKeys.containsKey(signingKid)) {
+            throw new IOException("public key of kid '" + signingKid + "' is not exist in key dir '" + keyDir + "'");
+        }
+
+        logger.info("load jwt key ring from '{}', signing kid : {}, verification kids : {}", keyDir, signingKid, verificationKeys.keySet());
+        return new JwtKeyRing(signingKid, signingKey, verificationAlgorithms.get(signingKid), verificationKeys, verificationAlgorithms);
+    }
+
+    private static PublicKey readPublicKey(Path keyFile) throws IOException {
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(readPem(keyFile));
+        for (String keyAlgorithm : new String[]{"RSA", "EC"}) {
+            try {
+                return KeyFactory.getInstance(keyAlgorithm).generatePublic(keySpec);
+            }
+            catch (GeneralSecurityException e) {
+                // 換下一種 key algorithm 試試看
+            }
+        }
+        throw new IOException("unsupported public key '" + keyFile + "'");
+    }
+
+    private static PrivateKey readPrivateKey(Path keyFile) throws IOException {
+        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(readPem(keyFile));
+        for (String keyAlgorithm : new String[]{"RSA", "EC"}) {
+            try {
+                return KeyFactory.getInstance(keyAlgorithm).generatePrivate(keySpec);
+            }
+            catch (GeneralSecurityException e) {
+                // 換下一種 key algorithm 試試看
+            }
+        }
+        throw new IOException("unsupported private key '" + keyFile + "'");
+    }
+
+    private static byte[] readPem(Path keyFile) throws IOException {
+        StringBuilder base64Content = new StringBuilder();
+        for (String line : Files.readAllLines(keyFile, StandardCharsets.US_ASCII)) {
+            if (!line.startsWith("-----")) {
+                base64Content.append(line.trim());
+            }
+        }
+        try {
+            return Base64.getDecoder().decode(base64Content.toString());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("invalid pem file '" + keyFile + "'", e);
+        }
+    }
+
+    private static SignatureAlgorithm algorithmOf(PublicKey publicKey) {
+        if (publicKey instanceof RSAKey) {
+            return SignatureAlgorithm.RS256;
+        }
+
+        int fieldSize = ((ECKey) publicKey).getParams().getCurve().getField().getFieldSize();
+        if (fieldSize <= 256) {
+            return SignatureAlgorithm.ES256;
+        }
+        return fieldSize <= 384 ? SignatureAlgorithm.ES384 : SignatureAlgorithm.ES512;
+    }
+
+    /**
+     * @return 產生新 token 用的 kid，HMAC 模式時為 null
+     */
+    public String getSigningKid() {
+        return signingKid;
+    }
+
+    public Key getSigningKey() {
+        return signingKey;
+    }
+
+    public SignatureAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
+    /**
+     * @param kid token header 裡的 kid，HMAC 模式時為 null
+     *
+     * @return 找不到 kid 時回傳 null
+     */
+    public Key getVerificationKey(String kid) {
+        return verificationKeys.get(kid);
+    }
+
+    /**
+     * @param kid token header 裡的 kid，HMAC 模式時為 null
+     *
+     * @return 找不到 kid 時回傳 null
+     */
+    public SignatureAlgorithm getVerificationAlgorithm(String kid) {
+        return verificationAlgorithms.get(kid);
+    }
+
+    /**
+     * @return Map<kid, key>，HMAC 模式時 kid 為 null
+     */
+    public Map<String, Key> getVerificationKeys() {
+        return verificationKeys;
+    }
+
+    public Set<String> getAcceptedAlgorithms() {
+        return acceptedAlgorithms;
+    }
+}
@@ -0,0 +1,108 @@
+package cloudtu.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * 在做簽章驗證與 json 解析之前，先用很低的成本檢查 JWT(Json Web Token) 的結構，
+ * 把明顯不合法的 token(太長、不是三段 base64url、header 的 alg 不是系統接受的 algorithm)提早擋掉
+ */
+public final class JwtPrecheck {
+    // header 正常只有 alg、kid 等少數欄位，超過這個長度就不解碼，直接視為不合法
+    private static final int MAX_HEADER_LENGTH = 512;
+
+    public enum Rejection {
+        OVERSIZED, MALFORMED, UNSUPPORTED_ALGORITHM
+    }
+
+    private JwtPrecheck() {
+    }
+
+    /**
+     * 檢查 text 從 tokenStart 位置開始到結尾的 token。檢查過程不會先把 token 從 text 切出來
+     *
+     * @param text 包含 token 的字串，例如 http header 的 "Bearer xxx.yyy.zzz"
+     * @param tokenStart token 在 text 裡的起始位置
+     * @param maxTokenLength token 最大長度
+     * @param acceptedAlgorithms 系統接受的簽章 algorithm，例如 HS512
+     *
+     * @return 檢查通過時回傳 null，否則回傳不合法的原因
+     */
+    public static Rejection check(String text, int tokenStart, int maxTokenLength, Set<String> acceptedAlgorithms) {
+        int tokenLength = text.length() - tokenStart;
+        if (tokenLength > maxTokenLength) {
+            return Rejection.OVERSIZED;
+        }
+
+        // token 必需是 header.payload.signature 三段 base64url，而且每一段都不能是空的(signature 是空的代表沒有簽章)
+        int firstDot = -1;
+        int secondDot = -1;
+        for (int i = tokenStart; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                if (firstDot < 0) {
+                    firstDot = i;
+                }
+                else if (secondDot < 0) {
+                    secondDot = i;
+                }
+                else {
+                    return Rejection.MALFORMED;
+                }
+            }
+            else if (!isBase64UrlChar(c)) {
+                return Rejection.MALFORMED;
+            }
+        }
+        if (firstDot <= tokenStart || secondDot <= firstDot + 1 || secondDot == text.length() - 1) {
+            return Rejection.MALFORMED;
+        }
+
+        if (firstDot - tokenStart > MAX_HEADER_LENGTH) {
+            return Rejection.MALFORMED;
+        }
+        String algorithm = parseAlgorithm(text.substring(tokenStart, firstDot));
+        if (algorithm == null) {
+            return Rejection.MALFORMED;
+        }
+        if (!acceptedAlgorithms.contains(algorithm)) {
+            return Rejection.UNSUPPORTED_ALGORITHM;
+        }
+
+        return null;
+    }
+
+    private static boolean isBase64UrlChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+    }
+
+    /**
+     * 從 base64url 編碼的 header 取出 alg 欄位的值。這裡只需要 alg 一個欄位，所以不用完整的 json parser
+     *
+     * @param encodedHeader
+     *
+     * @return 取不到 alg 時回傳 null
+     */
+    private static String parseAlgorithm(String encodedHeader) {
+        String header;
+        try {
+            header = new String(Base64.getUrlDecoder().decode(encodedHeader), StandardCharsets.UTF_8);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        int keyIndex = header.indexOf("\"alg\"");
+        if (keyIndex < 0) {
+            return null;
+        }
+        int colonIndex = header.indexOf(':', keyIndex + 5);
+        int valueStart = colonIndex < 0 ? -1 : header.indexOf('"', colonIndex + 1);
+        int valueEnd = valueStart < 0 ? -1 : header.indexOf('"', valueStart + 1);
+        if (valueEnd < 0) {
+            return null;
+        }
+        return header.substring(valueStart + 1, valueEnd);
+    }
+}
@@ -1,42 +1,180 @@
 package cloudtu.util;
 
+import cloudtu.util.bean.JwtPrincipal;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
-import io.jsonwebtoken.security.Keys;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.UnsupportedJwtException;
+import io.jsonwebtoken.security.SignatureException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Key;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.UUID;
 
 @Component
 public class JwtUtil {
     private static final Logger logger = LoggerFactory.getLogger(JwtUtil.class);
     private static final String CLAIMS_KEY_USER_ROLES = "userRoles";
+    // compact 格式用一個數字記錄角色組合的 bitmask(RoleRegistry)，取代 userRoles 字串 list
+    private static final String CLAIMS_KEY_ROLE_MASK = "r";
+
+    private static final Base64.Encoder JTI_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    /**
+     * 產生 token 時使用的 claims 格式。不管設定哪一種，解析時兩種格式都接受，切換格式時已發出的 token 仍然可以使用
+     */
+    public enum ClaimsFormat {
+        // userRoles 是角色名稱的 json array，jti 是 UUID 字串
+        STANDARD,
+        // 角色組合記成 r 這個數字(bitmask)，jti 是 22 個字元的 base64url。bit 對應 User.Role 的 ordinal，所以不能調整既有角色的順序
+        COMPACT
+    }
 
     private @Value("${jwt.signKey}") String jwtSignKey;
+    private @Value("${jwt.hmacAlgorithm}") SignatureAlgorithm jwtHmacAlgorithm;
+    private @Value("${jwt.keyDir}") String jwtKeyDir;
     private @Value("${jwt.expireTimeAsSec}") long jwtExpireTimeAsSec;
+    private @Value("${jwt.claimsFormat}") ClaimsFormat claimsFormat;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // keyRing 與 jwtParser 在啟動時建立一次，之後每個 http request 共用，不用每次都重新推導 key 與建立 parser。
+    // jjwt 建出來的 JwtParser 是 immutable 且 thread safe。換 key 時只會把整個 keyRing 換掉，jwtParser 不用重建
+    private volatile JwtKeyRing keyRing;
+    private String keyDirFingerprint;
+    private JwtParser jwtParser;
+
+    private Timer createTokenTimer;
+    private Timer verifyTokenTimer;
+
+    @PostConstruct
+    public void init() {
+        if (jwtKeyDir.isBlank()) {
+            keyRing = JwtKeyRing.hmac(jwtSignKey, jwtHmacAlgorithm);
+        }
+        else {
+            reloadKeyRing();
+            if (keyRing == null) {
+                throw new IllegalStateException("can not load jwt key ring from '" + jwtKeyDir + "'");
+            }
+        }
+
+        jwtParser = Jwts.parserBuilder()
+                .setSigningKeyResolver(new KeyRingSigningKeyResolver())
+                .build();
+
+        createTokenTimer = Timer.builder("auth.jwt.create").description("產生 JWT 花費的時間").register(meterRegistry);
+        verifyTokenTimer = Timer.builder("auth.jwt.verify").description("驗證 JWT 簽章與解析 claims 花費的時間").register(meterRegistry);
+    }
+
+    /**
+     * 用非對稱式 key 時，定期檢查 key 目錄，目錄裡的檔案有變動時重新載入 key ring，換 key 不用重啟系統。
+     * 新的 key ring 載入失敗時繼續使用原本的 key ring
+     */
+    @Scheduled(fixedDelayString = "${jwt.keyRingReloadIntervalMs}", initialDelayString = "${jwt.keyRingReloadIntervalMs}")
+    public void reloadKeyRing() {
+        if (jwtKeyDir.isBlank()) {
+            return;
+        }
+
+        try {
+            Path keyDir = Paths.get(jwtKeyDir);
+            String fingerprint = fingerprintOf(keyDir);
+            if (fingerprint.equals(keyDirFingerprint)) {
+                return;
+            }
+
+            keyRing = JwtKeyRing.load(keyDir);
+            keyDirFingerprint = fingerprint;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("reload jwt key ring fail, keep using current key ring : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 用目錄裡每個 key 檔的檔名、大小、修改時間判斷目錄內容有沒有變動，沒變動時不用重新讀取 key 檔
+     */
+    private static String fingerprintOf(Path keyDir) throws IOException {
+        StringBuilder fingerprint = new StringBuilder();
+        try (DirectoryStream<Path> keyFiles = Files.newDirectoryStream(keyDir, "*.pem")) {
+            List<Path> sortedKeyFiles = new ArrayList<>();
+            keyFiles.forEach(sortedKeyFiles::add);
+            sortedKeyFiles.sort(null);
+            for (Path keyFile : sortedKeyFiles) {
+                fingerprint.append(keyFile.getFileName()).append('|')
+                        .append(Files.size(keyFile)).append('|')
+                        .append(Files.getLastModifiedTime(keyFile).toMillis()).append('\n');
+            }
+        }
+        return fingerprint.toString();
+    }
 
     public String createToken(String userName, List<String> userRoles){
-        String token = Jwts.builder()
-                .setSubject(userName)
-                .addClaims(Map.of(CLAIMS_KEY_USER_ROLES, userRoles)) // 把 userRoles 也記錄進來
-                .setIssuedAt(new Date()) //產生 JWT 的時間
-                .setExpiration(Date.from(Instant.now().plusSeconds(jwtExpireTimeAsSec))) // JWT 過期時間
-                .signWith(Keys.hmacShaKeyFor(jwtSignKey.getBytes(StandardCharsets.UTF_8)), SignatureAlgorithm.HS512)
-                .compact();
-        logger.debug("token : {}", token);
-        return token;
+        JwtKeyRing currentKeyRing = keyRing;
+        String token = createTokenTimer.record(() -> {
+            JwtBuilder jwtBuilder = Jwts.builder();
+            if (currentKeyRing.getSigningKid() != null) {
+                jwtBuilder.setHeaderParam(JwsHeader.KEY_ID, currentKeyRing.getSigningKid()); // 驗證 token 時用 kid 找出對應的 key
+            }
+            if (claimsFormat == ClaimsFormat.COMPACT) {
+                jwtBuilder.setId(compactTokenId())
+                        .claim(CLAIMS_KEY_ROLE_MASK, RoleRegistry.maskOfNames(userRoles));
+            }
+            else {
+                jwtBuilder.setId(UUID.randomUUID().toString()) // jti，撤銷 token 時用它識別是哪一個 token
+                        .addClaims(Map.of(CLAIMS_KEY_USER_ROLES, userRoles)); // 把 userRoles 也記錄進來
+            }
+            return jwtBuilder
+                    .setSubject(userName)
+                    .setIssuedAt(new Date()) //產生 JWT 的時間
+                    .setExpiration(Date.from(Instant.now().plusSeconds(jwtExpireTimeAsSec))) // JWT 過期時間
+                    .signWith(currentKeyRing.getSigningKey(), currentKeyRing.getSigningAlgorithm())
+                    .compact();
+        });
+        return token; // token 就是登入憑證，不能寫到 log
+    }
+
+    /**
+     * @return 目前使用中的 key ring
+     */
+    public JwtKeyRing getKeyRing() {
+        return keyRing;
     }
 
+    /**
+     * @return 簽章驗證時接受的 algorithm，例如 HS512
+     */
+    public Set<String> getAcceptedAlgorithms() {
+        return keyRing.getAcceptedAlgorithms();
+    }
 
     /**
      * 當 token 解析失敗時，會丟出對應的 Exception。一般來說會遇到失敗是因為 token 過期、token 內容被竄改。
@@ -46,13 +184,24 @@ public class JwtUtil {
      * @return
      */
     private Claims parseToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(Keys.hmacShaKeyFor(jwtSignKey.getBytes(StandardCharsets.UTF_8)))
-                .build()
+        return verifyTokenTimer.record(() -> jwtParser
                 .parseClaimsJws(token)
-                .getBody();
-        logger.debug("claims : {}", claims);
-        return claims;
+                .getBody());
+    }
+
+    /**
+     * 只做一次簽章驗證與 claims 解析，就取回 token 裡的 userName、userAuthorities 與過期時間。
+     * 當 token 解析失敗時，會丟出對應的 Exception。
+     *
+     * @param token
+     *
+     * @return
+     */
+    public JwtPrincipal parsePrincipalFromToken(String token) {
+        Claims claims = parseToken(token);
+        Instant issuedTime = claims.getIssuedAt() == null ? null : claims.getIssuedAt().toInstant();
+        return new JwtPrincipal(claims.getSubject(), toRoleMask(claims), claims.getId(), issuedTime,
+                claims.getExpiration().toInstant());
     }
 
     public String parseUserNameFromToken(String token) {
@@ -60,8 +209,51 @@ public class JwtUtil {
     }
 
     public List<SimpleGrantedAuthority> parseUserAuthoritiesFromToken(String token) {
-        List<String> userRoles = parseToken(token).get(CLAIMS_KEY_USER_ROLES, List.class);
-        logger.debug("userRoles : {}", userRoles);
-        return userRoles.stream().map(SimpleGrantedAuthority::new).collect(Collectors.toList());
+        return RoleRegistry.authoritiesOf(toRoleMask(parseToken(token)));
+    }
+
+    /**
+     * 把 token 裡的角色轉成 bitmask，之後直接用 RoleRegistry 共用的 authority list，不用每次建立新的 SimpleGrantedAuthority。
+     * compact 格式直接讀 r 這個數字，舊格式(standard)才要逐一比對 userRoles 裡的角色名稱
+     */
+    private int toRoleMask(Claims claims) {
+        Object roleMask = claims.get(CLAIMS_KEY_ROLE_MASK);
+        if (roleMask instanceof Number) {
+            return RoleRegistry.knownRolesOf(((Number) roleMask).intValue());
+        }
+
+        List<?> userRoles = claims.get(CLAIMS_KEY_USER_ROLES, List.class);
+        return userRoles == null ? 0 : RoleRegistry.maskOfNames(userRoles);
+    }
+
+    /**
+     * UUID 的 128 bit 亂數改用 base64url 表示，長度從 36 個字元減少到 22 個字元
+     */
+    private static String compactTokenId() {
+        UUID uuid = UUID.randomUUID();
+        byte[] bytes = ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+        return JTI_ENCODER.encodeToString(bytes);
+    }
+
+    /**
+     * 依 token header 的 kid 從目前的 key ring 找出驗證簽章用的 key，並確認 header 的 alg 與該 key 的 algorithm 一致
+     */
+    private class KeyRingSigningKeyResolver extends SigningKeyResolverAdapter {
+        @Override
+        public Key resolveSigningKey(JwsHeader header, Claims claims) {
+            JwtKeyRing currentKeyRing = keyRing;
+            String kid = header.getKeyId();
+            Key key = currentKeyRing.getVerificationKey(kid);
+            if (key == null) {
+                throw new SignatureException("unknown kid '" + kid + "'");
+            }
+            if (!currentKeyRing.getVerificationAlgorithm(kid).getValue().equals(header.getAlgorithm())) {
+                throw new UnsupportedJwtException("algorithm '" + header.getAlgorithm() + "' is not allowed for kid '" + kid + "'");
+            }
+            return key;
+        }
     }
 }
@@ -0,0 +1,118 @@
+package cloudtu.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 多個 thread 寫入、單一 thread 讀取(multi-producer single-consumer)的 lock-free ring buffer。
+ * <p>
+ * 每個位置的 element 在建立時就配置好，寫入時只改 element 的欄位，不會產生新的 object。寫入步驟 :
+ * <pre>
+ * long sequence = ringBuffer.tryClaim();   // 取得寫入位置，buffer 滿了回傳 -1
+ * if (sequence >= 0) {
+ *     ringBuffer.get(sequence).set(...);   // 填入資料
+ *     ringBuffer.publish(sequence);        // 讓讀取的 thread 看得到
+ * }
+ * </pre>
+ * buffer 滿了不會等待，由呼叫端決定要丟掉資料或是改用其它方式處理，寫入的 thread 永遠不會被 block
+ *
+ * @param <E> element 型別，每個位置的 element 會被重覆使用
+ */
+public final class MpscRingBuffer<E> {
+    private final int mask;
+    private final Object[] elements;
+
+    // 每個位置目前已寫好的 sequence，讀取時比對 sequence 才知道這個位置的資料是否已經寫好
+    private final AtomicLongArray publishedSequences;
+
+    // 下一個寫入位置的 sequence
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    // 下一個讀取位置的 sequence，只有讀取的 thread 會更新
+    private final AtomicLong consumedSequence = new AtomicLong();
+
+    /**
+     * @param capacity 容量，必須是 2 的次方
+     * @param elementFactory 產生每個位置的 element
+     */
+    public MpscRingBuffer(int capacity, Supplier<E> elementFactory) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2 : " + capacity);
+        }
+
+        mask = capacity - 1;
+        elements = new Object[capacity];
+        publishedSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            elements[i] = elementFactory.get();
+            publishedSequences.set(i, -1);
+        }
+    }
+
+    /**
+     * 取得一個寫入位置
+     *
+     * @return 寫入位置的 sequence，buffer 已滿時回傳 -1
+     */
+    public long tryClaim() {
+        while (true) {
+            long sequence = nextSequence.get();
+            if (sequence - consumedSequence.get() > mask) {
+                return -1;
+            }
+            if (nextSequence.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * @param sequence tryClaim 取得的 sequence
+     *
+     * @return 這個位置的 element，publish 之前可以修改它的欄位
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) elements[(int) sequence & mask];
+    }
+
+    /**
+     * element 的欄位都填好之後呼叫，之後讀取的 thread 才看得到這筆資料
+     *
+     * @param sequence tryClaim 取得的 sequence
+     */
+    public void publish(long sequence) {
+        publishedSequences.lazySet((int) sequence & mask, sequence);
+    }
+
+    /**
+     * 依寫入順序讀取已 publish 的資料，遇到還沒 publish 的位置就停止。只能由單一個 thread 呼叫
+     *
+     * @param handler 處理每一筆資料，回傳後這個位置就會被重覆使用，所以不能保留 element 的 reference
+     * @param maxCount 最多讀取幾筆
+     *
+     * @return 讀取的筆數
+     */
+    public int drain(Consumer<E> handler, int maxCount) {
+        long sequence = consumedSequence.get();
+        int count = 0;
+        while (count < maxCount && publishedSequences.get((int) sequence & mask) == sequence) {
+            handler.accept(get(sequence));
+            sequence++;
+            count++;
+        }
+        if (count > 0) {
+            consumedSequence.lazySet(sequence);
+        }
+        return count;
+    }
+
+    /**
+     * @return 已寫入但還沒被讀取的筆數(約略值)
+     */
+    public long size() {
+        return nextSequence.get() - consumedSequence.get();
+    }
+}
@@ -0,0 +1,47 @@
+package cloudtu.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 限制 log 輸出頻率。大量不合法 request 進來時，每個時間區間只放行一筆 log，避免 log 本身變成效能瓶頸
+ */
+public final class RateLimitedLogGate {
+    private final long intervalNanos;
+    private final AtomicLong nextAllowedNanos;
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    public RateLimitedLogGate(long interval, TimeUnit timeUnit) {
+        this(interval, timeUnit, System.nanoTime());
+    }
+
+    /**
+     * @param nowNanos System.nanoTime()，從這個時間開始就可以輸出 log
+     */
+    public RateLimitedLogGate(long interval, TimeUnit timeUnit, long nowNanos) {
+        intervalNanos = timeUnit.toNanos(interval);
+        nextAllowedNanos = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * @return 可以輸出 log 時回傳上次輸出 log 之後被略過的筆數(>= 0)，不能輸出 log 時回傳 -1
+     */
+    public long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * @param now System.nanoTime()
+     *
+     * @return 同 {@link #tryAcquire()}
+     */
+    public long tryAcquire(long now) {
+        long nextAllowed = nextAllowedNanos.get();
+        if (now - nextAllowed >= 0 && nextAllowedNanos.compareAndSet(nextAllowed, now + intervalNanos)) {
+            return suppressedCount.getAndSet(0);
+        }
+
+        suppressedCount.incrementAndGet();
+        return -1;
+    }
+}
@@ -0,0 +1,137 @@
+package cloudtu.util;
+
+import cloudtu.dao.bean.User;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 用 bitmask 表示用戶擁有的角色組合({@link User.Role} 的 ordinal 對應到第幾個 bit)。
+ * <p>
+ * 角色種類很少，所以啟動時就把每一種角色組合對應的 authority list 產生好，之後所有 request 共用同一個不會變動的 list，
+ * 驗證 token 時不用再為每個 request 建立 SimpleGrantedAuthority 與 list。角色檢查(hasRole)也只需要做 bit 運算
+ */
+public final class RoleRegistry {
+    private static final User.Role[] ROLES = User.Role.values();
+
+    private static final String ROLE_PREFIX = "ROLE_";
+
+    // index 是角色的 ordinal
+    private static final SimpleGrantedAuthority[] AUTHORITIES = new SimpleGrantedAuthority[ROLES.length];
+
+    // index 是角色組合的 bitmask
+    private static final List<SimpleGrantedAuthority>[] AUTHORITIES_BY_MASK;
+
+    // 所有角色都有的 bitmask
+    private static final int ALL_ROLES_MASK = (1 << ROLES.length) - 1;
+
+    // key 同時包含 "ROLE_ADMIN" 與 "ADMIN" 兩種寫法，value 是對應的 bit
+    private static final Map<String, Integer> MASK_BY_NAME = new HashMap<>();
+
+    static {
+        if (ROLES.length > Integer.SIZE - 2) {
+            throw new IllegalStateException("too many roles for an int bitmask : " + ROLES.length);
+        }
+
+        for (User.Role role : ROLES) {
+            AUTHORITIES[role.ordinal()] = new SimpleGrantedAuthority(role.name());
+            MASK_BY_NAME.put(role.name(), maskOf(role));
+            if (role.name().startsWith(ROLE_PREFIX)) {
+                MASK_BY_NAME.put(role.name().substring(ROLE_PREFIX.length()), maskOf(role));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<SimpleGrantedAuthority>[] authoritiesByMask = new List[1 << ROLES.length];
+        for (int mask = 0; mask < authoritiesByMask.length; mask++) {
+            List<SimpleGrantedAuthority> authorities = new ArrayList<>(Integer.bitCount(mask));
+            for (User.Role role : ROLES) {
+                if ((mask & maskOf(role)) != 0) {
+                    authorities.add(AUTHORITIES[role.ordinal()]);
+                }
+            }
+            authoritiesByMask[mask] = Collections.unmodifiableList(authorities);
+        }
+        AUTHORITIES_BY_MASK = authoritiesByMask;
+    }
+
+    private RoleRegistry() {
+    }
+
+    public static int maskOf(User.Role role) {
+        return 1 << role.ordinal();
+    }
+
+    /**
+     * @param roleName 角色名稱，"ROLE_ADMIN" 或 "ADMIN" 都可以
+     *
+     * @return 不認得的角色回傳 0
+     */
+    public static int maskOf(String roleName) {
+        Integer mask = MASK_BY_NAME.get(roleName);
+        return mask == null ? 0 : mask;
+    }
+
+    /**
+     * @param roleName 角色名稱，"ROLE_ADMIN" 或 "ADMIN" 都可以
+     *
+     * @return 不認得的角色回傳 null
+     */
+    public static User.Role roleOf(String roleName) {
+        int mask = maskOf(roleName);
+        return mask == 0 ? null : ROLES[Integer.numberOfTrailingZeros(mask)];
+    }
+
+    /**
+     * 不認得的角色會被忽略，不會授與任何權限
+     *
+     * @param roleNames 角色名稱，例如 JWT 裡記錄的 userRoles
+     *
+     * @return
+     */
+    public static int maskOfNames(Collection<?> roleNames) {
+        int mask = 0;
+        for (Object roleName : roleNames) {
+            mask |= maskOf(String.valueOf(roleName));
+        }
+        return mask;
+    }
+
+    /**
+     * 去掉不認得的 bit(例如其它版本的系統才有的角色)，不會授與任何權限
+     *
+     * @param mask 例如 JWT 裡記錄的角色 bitmask
+     *
+     * @return
+     */
+    public static int knownRolesOf(int mask) {
+        return mask & ALL_ROLES_MASK;
+    }
+
+    public static int maskOfAuthorities(Collection<? extends GrantedAuthority> authorities) {
+        int mask = 0;
+        for (GrantedAuthority authority : authorities) {
+            mask |= maskOf(authority.getAuthority());
+        }
+        return mask;
+    }
+
+    /**
+     * @param mask 角色組合的 bitmask
+     *
+     * @return 所有 request 共用、不會變動的 authority list
+     */
+    public static List<SimpleGrantedAuthority> authoritiesOf(int mask) {
+        return AUTHORITIES_BY_MASK[mask];
+    }
+
+    public static SimpleGrantedAuthority authorityOf(User.Role role) {
+        return AUTHORITIES[role.ordinal()];
+    }
+}
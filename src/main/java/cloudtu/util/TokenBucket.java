@@ -0,0 +1,52 @@
+package cloudtu.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lock-free 的 token bucket。bucket 最多存 capacity 個 token，每 refillIntervalNanos 補回一個 token。
+ * <p>
+ * 實作上不另外記錄 token 數量與上次補 token 的時間，而是只用一個 AtomicLong 記錄「bucket 補滿的時間」(GCRA 演算法)：
+ * 取一個 token 就把補滿時間往後推 refillIntervalNanos，補滿時間超過現在 capacity 個 refillIntervalNanos 以上代表 token 已經用完。
+ * 這樣只要一次 CAS 就能更新狀態，多個 thread 同時存取不需要 lock
+ */
+public final class TokenBucket {
+    private final long refillIntervalNanos;
+    private final long burstNanos;
+
+    // bucket 補滿的時間(System.nanoTime())，小於現在時代表 bucket 是滿的
+    private final AtomicLong fullAtNanos;
+
+    public TokenBucket(int capacity, long refillIntervalNanos) {
+        this(capacity, refillIntervalNanos, System.nanoTime());
+    }
+
+    /**
+     * @param nowNanos System.nanoTime()，bucket 從這個時間開始是滿的
+     */
+    public TokenBucket(int capacity, long refillIntervalNanos, long nowNanos) {
+        this.refillIntervalNanos = refillIntervalNanos;
+        this.burstNanos = capacity * refillIntervalNanos;
+        this.fullAtNanos = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * 取一個 token
+     *
+     * @param nowNanos System.nanoTime()
+     *
+     * @return 取得 token 時回傳 true，token 已經用完時回傳 false
+     */
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            long base = fullAt - nowNanos > 0 ? fullAt : nowNanos;
+            long nextFullAt = base + refillIntervalNanos;
+            if (nextFullAt - nowNanos > burstNanos) {
+                return false;
+            }
+            if (fullAtNanos.compareAndSet(fullAt, nextFullAt)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package cloudtu.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 產生 virtual thread(JDK 21 以上)用的 ThreadFactory 與 ExecutorService。
+ * <p>
+ * 專案仍以 Java 11 編譯，所以用 reflection 呼叫 JDK 21 才有的 API。在舊版 JDK 上執行時 {@link #isAvailable()} 回傳 false，
+ * 呼叫端要改用一般的 platform thread
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private static final Method BUILDER_NAME = findMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method BUILDER_FACTORY = findMethod("java.lang.Thread$Builder", "factory");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private static final boolean AVAILABLE = probe();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return 執行中的 JDK 可以建立 virtual thread 時回傳 true
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @param namePrefix thread 名稱的前綴，後面會接上流水號
+     *
+     * @return 產生 virtual thread 的 ThreadFactory
+     *
+     * @throws UnsupportedOperationException 執行中的 JDK 不支援 virtual thread 時丟出
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+        if (!AVAILABLE) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21 or later, current : " + Runtime.version());
+        }
+        Object builder = invoke(OF_VIRTUAL, null);
+        builder = invoke(BUILDER_NAME, builder, namePrefix, 0L);
+        return (ThreadFactory) invoke(BUILDER_FACTORY, builder);
+    }
+
+    /**
+     * @param namePrefix thread 名稱的前綴，後面會接上流水號
+     *
+     * @return 每個 task 都用一個新的 virtual thread 執行的 ExecutorService，沒有 thread 數量上限
+     *
+     * @throws UnsupportedOperationException 執行中的 JDK 不支援 virtual thread 時丟出
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, newThreadFactory(namePrefix));
+    }
+
+    // JDK 19, 20 有 API 但要加 --enable-preview 才能使用，實際建立一次 ThreadFactory 確認
+    private static boolean probe() {
+        if (OF_VIRTUAL == null || BUILDER_NAME == null || BUILDER_FACTORY == null || NEW_THREAD_PER_TASK_EXECUTOR == null) {
+            return false;
+        }
+        try {
+            invoke(BUILDER_FACTORY, invoke(OF_VIRTUAL, null));
+            return true;
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static Method findMethod(String className, String methodName, Class<?>... parameterTypes) {
+        try {
+            return findMethod(Class.forName(className), methodName, parameterTypes);
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
+        try {
+            return clazz.getMethod(methodName, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package cloudtu.util.bean;
+
+import cloudtu.util.RoleRegistry;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * JWT(Json Web Token) 驗證成功後解析出來的用戶資料。instance 建立後內容不會再變動，可以安全的在多個 thread 之間共用
+ */
+public final class JwtPrincipal {
+    private final String userName;
+
+    // 用戶角色組合的 bitmask，對應的 authority list 由 RoleRegistry 統一提供，不用每個 JwtPrincipal 各自建立
+    private final int roleMask;
+
+    // JWT 的 jti，撤銷 token 時用它識別是哪一個 token
+    private final String tokenId;
+
+    private final Instant issuedTime;
+
+    private final Instant expireTime;
+
+    public JwtPrincipal(String userName, int roleMask, String tokenId, Instant issuedTime, Instant expireTime) {
+        this.userName = userName;
+        this.roleMask = roleMask;
+        this.tokenId = tokenId;
+        this.issuedTime = issuedTime;
+        this.expireTime = expireTime;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public int getRoleMask() {
+        return roleMask;
+    }
+
+    public List<SimpleGrantedAuthority> getUserAuthorities() {
+        return RoleRegistry.authoritiesOf(roleMask);
+    }
+
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    public Instant getIssuedTime() {
+        return issuedTime;
+    }
+
+    public Instant getExpireTime() {
+        return expireTime;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", JwtPrincipal.class.getSimpleName() + "[", "]")
+                .add("userName='" + userName + "'")
+                .add("userAuthorities=" + getUserAuthorities())
+                .add("tokenId='" + tokenId + "'")
+                .add("issuedTime=" + issuedTime)
+                .add("expireTime=" + expireTime)
+                .toString();
+    }
+}
@@ -0,0 +1,47 @@
+package cloudtu;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.Map;
+
+/**
+ * tomcat 與 reactive(webflux) 兩種模式共用的 actuator 存取權限測試流程
+ */
+final class ActuatorAccessScenario {
+
+    private ActuatorAccessScenario() {
+    }
+
+    /**
+     * 只有 /actuator/health 不用 jwt，metrics 只有 ADMIN 角色可以讀取
+     */
+    static void onlyHealthIsPublic(WebTestClient webTestClient) {
+        register(webTestClient, "actuatorAdmin", "ROLE_ADMIN");
+        register(webTestClient, "actuatorUser", "ROLE_USER");
+        String adminToken = login(webTestClient, "actuatorAdmin");
+        String userToken = login(webTestClient, "actuatorUser");
+
+        webTestClient.get().uri("/actuator/health").exchange().expectStatus().isOk();
+        for (String uri : new String[]{"/actuator/prometheus", "/actuator/metrics"}) {
+            webTestClient.get().uri(uri).exchange().expectStatus().isUnauthorized();
+            webTestClient.get().uri(uri).header(HttpHeaders.AUTHORIZATION, "Bearer " + userToken)
+                    .exchange().expectStatus().isForbidden();
+            webTestClient.get().uri(uri).header(HttpHeaders.AUTHORIZATION, "Bearer " + adminToken)
+                    .exchange().expectStatus().isOk();
+        }
+    }
+
+    private static void register(WebTestClient webTestClient, String userName, String userRole) {
+        webTestClient.post().uri("/auth/register").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("userName", userName, "userPassword", "pw", "userRole", userRole))
+                .exchange().expectStatus().isOk();
+    }
+
+    private static String login(WebTestClient webTestClient, String userName) {
+        return (String) webTestClient.post().uri("/auth/login?userName=" + userName + "&userPassword=pw")
+                .exchange().expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody().get("token");
+    }
+}
@@ -0,0 +1,53 @@
+package cloudtu;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.Map;
+
+/**
+ * auth.preAuthorize.compiled=true 時，{@code @PreAuthorize} 改用編譯後的角色 bitmask 檢查，結果要跟 SpEL 相同
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "auth.preAuthorize.compiled=true")
+class CompiledPreAuthorizeTests {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Test
+    void compiledRoleChecksAllowAndDenyLikeSpel() {
+        register("compiledAdmin", "ROLE_ADMIN");
+        register("compiledUser", "ROLE_USER");
+        String adminToken = login("compiledAdmin");
+        String userToken = login("compiledUser");
+
+        // hasRole('USER') or hasRole('ADMIN')
+        get("/user/myInfo", userToken).expectStatus().isOk();
+        get("/user/myInfo", adminToken).expectStatus().isOk();
+        // hasRole('ADMIN')
+        get("/user/findAllUsers", adminToken).expectStatus().isOk();
+        get("/user/findAllUsers", userToken).expectStatus().isForbidden();
+        // 沒有帶 jwt
+        webTestClient.get().uri("/user/findAllUsers").exchange().expectStatus().isUnauthorized();
+    }
+
+    private WebTestClient.ResponseSpec get(String uri, String token) {
+        return webTestClient.get().uri(uri).header(HttpHeaders.AUTHORIZATION, "Bearer " + token).exchange();
+    }
+
+    private void register(String userName, String userRole) {
+        webTestClient.post().uri("/auth/register").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("userName", userName, "userPassword", "pw", "userRole", userRole))
+                .exchange().expectStatus().isOk();
+    }
+
+    private String login(String userName) {
+        return (String) webTestClient.post().uri("/auth/login?userName=" + userName + "&userPassword=pw")
+                .exchange().expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody().get("token");
+    }
+}
@@ -0,0 +1,37 @@
+package cloudtu;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * tomcat 與 reactive(webflux) 兩種模式共用的登入頻率限制測試流程
+ */
+final class LoginRateLimitScenario {
+
+    private LoginRateLimitScenario() {
+    }
+
+    /**
+     * 同一個 userName 登入太頻繁時回傳 429，結尾多一個 / 的 /auth/login/ 也一樣會被限制
+     *
+     * @param perUserCapacity auth.loginRateLimit.perUser.capacity
+     */
+    static void tooManyLoginsAreRejected(WebTestClient webTestClient, int perUserCapacity) {
+        for (int i = 0; i < perUserCapacity; i++) {
+            String uri = (i % 2 == 0 ? "/auth/login/" : "/auth/login") + "?userName=rateLimitedUser&userPassword=wrong";
+            HttpStatus status = webTestClient.post().uri(uri).exchange().returnResult(Void.class).getStatus();
+            assertEquals(HttpStatus.UNAUTHORIZED, status);
+        }
+
+        for (String loginPath : new String[]{"/auth/login", "/auth/login/"}) {
+            webTestClient.post().uri(loginPath + "?userName=rateLimitedUser&userPassword=wrong")
+                    .exchange().expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+                    .expectHeader().value(HttpHeaders.RETRY_AFTER, retryAfter -> assertNotNull(retryAfter))
+                    .expectBody().jsonPath("$.error").exists();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cloudtu;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+// 測試時預設不會產生 /actuator/prometheus，要打開才能驗證它的存取權限
+@AutoConfigureMetrics
+@ActiveProfiles("reactive")
+class ReactiveProfileTests {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Test
+    void loginAndAccessUserApiWithJwt() {
+        webTestClient.post().uri("/auth/register").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("userName", "reactiveUser", "userPassword", "pw", "userRole", "ROLE_USER"))
+                .exchange().expectStatus().isOk();
+
+        webTestClient.post().uri("/auth/login?userName=reactiveUser&userPassword=wrong")
+                .exchange().expectStatus().isUnauthorized();
+
+        Map<?, ?> loginResp = webTestClient.post().uri("/auth/login?userName=reactiveUser&userPassword=pw")
+                .exchange().expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody();
+        String token = (String) loginResp.get("token");
+
+        webTestClient.get().uri("/user/myInfo").header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .exchange().expectStatus().isOk()
+                .expectBody().jsonPath("$.myInfo.name").isEqualTo("reactiveUser");
+
+        // USER 角色不能存取只開放給 ADMIN 的 api
+        webTestClient.get().uri("/user/findUser/reactiveUser").header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .exchange().expectStatus().isEqualTo(HttpStatus.FORBIDDEN);
+    }
+
+    @Test
+    void revokedUserCannotRefresh() {
+        RevokeTokensScenario.revokedUserCannotRefresh(webTestClient);
+    }
+
+    @Test
+    void tooManyLoginsAreRejected(@Value("${auth.loginRateLimit.perUser.capacity}") int perUserCapacity) {
+        LoginRateLimitScenario.tooManyLoginsAreRejected(webTestClient, perUserCapacity);
+    }
+
+    @Test
+    void onlyHealthIsPublic() {
+        ActuatorAccessScenario.onlyHealthIsPublic(webTestClient);
+    }
+
+    @Test
+    void rejectRequestWithoutValidJwt() {
+        webTestClient.get().uri("/user/myInfo")
+                .exchange().expectStatus().isUnauthorized();
+
+        String errorBody = webTestClient.get().uri("/user/myInfo").header(HttpHeaders.AUTHORIZATION, "Bearer not-a-jwt")
+                .exchange().expectStatus().isUnauthorized()
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertEquals("{\"error\":\"JWT is malformed\"}", errorBody);
+    }
+}
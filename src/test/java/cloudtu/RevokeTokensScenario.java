@@ -0,0 +1,44 @@
+package cloudtu;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.Map;
+
+/**
+ * tomcat 與 reactive(webflux) 兩種模式共用的測試流程
+ */
+final class RevokeTokensScenario {
+
+    private RevokeTokensScenario() {
+    }
+
+    /**
+     * 管理者撤銷用戶的 token 後，用戶手上的 refresh token 也不能再換新的 token
+     */
+    static void revokedUserCannotRefresh(WebTestClient webTestClient) {
+        register(webTestClient, "revokeAdmin", "ROLE_ADMIN");
+        register(webTestClient, "revokeUser", "ROLE_USER");
+        String adminToken = (String) login(webTestClient, "revokeAdmin").get("token");
+        String refreshToken = (String) login(webTestClient, "revokeUser").get("refreshToken");
+
+        webTestClient.post().uri("/user/revokeTokens/revokeUser").header(HttpHeaders.AUTHORIZATION, "Bearer " + adminToken)
+                .exchange().expectStatus().isOk();
+
+        webTestClient.post().uri("/auth/refresh?refreshToken=" + refreshToken)
+                .exchange().expectStatus().isUnauthorized();
+    }
+
+    private static void register(WebTestClient webTestClient, String userName, String userRole) {
+        webTestClient.post().uri("/auth/register").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("userName", userName, "userPassword", "pw", "userRole", userRole))
+                .exchange().expectStatus().isOk();
+    }
+
+    private static Map<?, ?> login(WebTestClient webTestClient, String userName) {
+        return webTestClient.post().uri("/auth/login?userName=" + userName + "&userPassword=pw")
+                .exchange().expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody();
+    }
+}
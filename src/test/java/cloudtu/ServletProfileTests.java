@@ -0,0 +1,65 @@
+package cloudtu;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+// 測試時預設不會產生 /actuator/prometheus，要打開才能驗證它的存取權限
+@AutoConfigureMetrics
+class ServletProfileTests {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Test
+    void revokedUserCannotRefresh() {
+        RevokeTokensScenario.revokedUserCannotRefresh(webTestClient);
+    }
+
+    @Test
+    void tooManyLoginsAreRejected(@Value("${auth.loginRateLimit.perUser.capacity}") int perUserCapacity) {
+        LoginRateLimitScenario.tooManyLoginsAreRejected(webTestClient, perUserCapacity);
+    }
+
+    @Test
+    void onlyHealthIsPublic() {
+        ActuatorAccessScenario.onlyHealthIsPublic(webTestClient);
+    }
+
+    @Test
+    void tooLongUserNameIsRejectedPerRowInBulkImport() {
+        webTestClient.post().uri("/auth/register").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("userName", "bulkAdmin", "userPassword", "pw", "userRole", "ROLE_ADMIN"))
+                .exchange().expectStatus().isOk();
+        String adminToken = (String) webTestClient.post().uri("/auth/login?userName=bulkAdmin&userPassword=pw")
+                .exchange().expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody().get("token");
+
+        String rows = "{\"userName\":\"bulkUser1\",\"userPassword\":\"pw\",\"userRole\":\"ROLE_USER\"}\n"
+                + "{\"userName\":\"" + "x".repeat(0x10000) + "\",\"userPassword\":\"pw\",\"userRole\":\"ROLE_USER\"}\n"
+                + "{\"userName\":\"bulkUser2\",\"userPassword\":\"pw\",\"userRole\":\"ROLE_USER\"}\n";
+        String[] results = webTestClient.post().uri("/auth/registerBulk")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + adminToken)
+                .contentType(MediaType.parseMediaType("application/x-ndjson")).bodyValue(rows)
+                .exchange().expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody().split("\n");
+
+        // 太長的 userName 只有那一筆被拒絕，同一批的其它資料照常匯入
+        assertEquals(4, results.length);
+        assertTrue(results[0].contains("\"result\":\"created\""));
+        assertTrue(results[1].contains("\"result\":\"rejected\"") && results[1].contains("is longer than"));
+        assertTrue(results[2].contains("\"result\":\"created\""));
+        assertEquals("{\"created\":2,\"rejected\":1}", results[3]);
+    }
+}
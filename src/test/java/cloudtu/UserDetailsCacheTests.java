@@ -0,0 +1,81 @@
+package cloudtu;
+
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import cloudtu.util.JwtUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * auth.userDetailsCache.enabled=true 時，每個 request 都用目前的用戶資料授權，user 異動後 cache 馬上失效
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "auth.userDetailsCache.enabled=true")
+class UserDetailsCacheTests {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Autowired
+    private UserDao userDao;
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void userChangeTakesEffectWithOldToken() {
+        webTestClient.post().uri("/auth/register").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("userName", "cachedUser", "userPassword", "pw", "userRole", "ROLE_USER"))
+                .exchange().expectStatus().isOk();
+        String token = (String) webTestClient.post().uri("/auth/login?userName=cachedUser&userPassword=pw")
+                .exchange().expectStatus().isOk()
+                .expectBody(Map.class).returnResult().getResponseBody().get("token");
+        findAllUsers(token).expectStatus().isForbidden();
+
+        // 角色改變後，token 裡記錄的還是舊角色，但授權要改用新的角色
+        changeRole("cachedUser", User.Role.ROLE_ADMIN);
+        findAllUsers(token).expectStatus().isOk();
+        changeRole("cachedUser", User.Role.ROLE_USER);
+        findAllUsers(token).expectStatus().isForbidden();
+
+        // password 改變也會清掉 cache，下一個 request 重新查詢用戶資料
+        double missCount = cacheMissCount();
+        userDao.updatePassword("cachedUser", userDao.findUser("cachedUser").getPassword());
+        findAllUsers(token).expectStatus().isForbidden();
+        assertEquals(missCount + 1, cacheMissCount());
+    }
+
+    @Test
+    void unknownUserIsRejected() {
+        String token = jwtUtil.createToken("ghostUser", List.of(User.Role.ROLE_ADMIN.name()));
+
+        findAllUsers(token).expectStatus().isUnauthorized()
+                .expectBody().jsonPath("$.error").isEqualTo("JWT user does not exist");
+        assertEquals(1, meterRegistry.get("auth.filter.requests").tag("outcome", "unknown_user").counter().count());
+    }
+
+    private WebTestClient.ResponseSpec findAllUsers(String token) {
+        return webTestClient.get().uri("/user/findAllUsers").header(HttpHeaders.AUTHORIZATION, "Bearer " + token).exchange();
+    }
+
+    private void changeRole(String userName, User.Role role) {
+        User user = userDao.findUser(userName);
+        userDao.addUser(new User(user.getName(), user.getPassword(), role));
+    }
+
+    private double cacheMissCount() {
+        return meterRegistry.get("cache.gets").tag("cache", "userDetailsCache").tag("result", "miss").functionCounter().count();
+    }
+}
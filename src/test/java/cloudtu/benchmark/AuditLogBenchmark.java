@@ -0,0 +1,79 @@
+package cloudtu.benchmark;
+
+import cloudtu.security.AuditEventType;
+import cloudtu.security.AuditLog;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量測 request thread 呼叫 AuditLog.record 的成本(寫入 ring buffer，不含 writer thread 寫檔)。
+ * benchmark 的呼叫速度比 writer thread 寫檔快很多，ring buffer 大部分時間是滿的，量到的是寫入與丟掉事件兩種情況混合的成本，
+ * 結束時輸出被丟掉的事件數量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuditLogBenchmark {
+    private Path auditDir;
+    private SimpleMeterRegistry meterRegistry;
+    private AuditLog auditLog;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.quietLogging();
+
+        auditDir = Files.createTempDirectory("audit-bench");
+        meterRegistry = new SimpleMeterRegistry();
+        auditLog = new AuditLog();
+        ReflectionTestUtils.setField(auditLog, "enabled", true);
+        ReflectionTestUtils.setField(auditLog, "auditDir", auditDir.toString());
+        ReflectionTestUtils.setField(auditLog, "bufferSize", 8192);
+        ReflectionTestUtils.setField(auditLog, "fsync", true);
+        ReflectionTestUtils.setField(auditLog, "maxFileSizeMb", 64L);
+        ReflectionTestUtils.setField(auditLog, "maxFiles", 2);
+        ReflectionTestUtils.setField(auditLog, "meterRegistry", meterRegistry);
+        auditLog.init();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        auditLog.close();
+        System.out.printf("%ndropped : %.0f%n", meterRegistry.get("auth.audit.dropped").counter().count());
+        FileSystemUtils.deleteRecursively(auditDir);
+    }
+
+    @Benchmark
+    public void record() {
+        auditLog.record(AuditEventType.LOGIN_FAILURE, "benchUser", "10.0.0.1", "BadCredentialsException");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AuditLogBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
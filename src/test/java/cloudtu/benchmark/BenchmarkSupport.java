@@ -0,0 +1,96 @@
+package cloudtu.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import cloudtu.security.AuditLog;
+import cloudtu.security.TokenRevocationList;
+import cloudtu.util.JwtUtil;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+
+/**
+ * benchmark 共用的輔助 method
+ */
+final class BenchmarkSupport {
+    static final String JWT_SIGN_KEY = "abcdefghijklmnopqrstuvwxyz1234567890abcdefghijklmnopqrstuvwxyz1234567890";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * benchmark 不是在 spring boot 環境下執行，logback 預設會把 DEBUG log 全部印出來，會嚴重影響量測結果，所以把 log level 調高
+     */
+    static void quietLogging() {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    }
+
+    /**
+     * 不透過 spring 建立 JwtUtil，設定值與 application.properties 相同，只是 token 過期時間拉長到 benchmark 跑完都不會過期
+     */
+    static JwtUtil newJwtUtil() {
+        return newJwtUtil("");
+    }
+
+    /**
+     * 不透過 spring 建立使用非對稱式 key 的 JwtUtil
+     *
+     * @param keyDir key 目錄，空字串時使用 HMAC key
+     */
+    static JwtUtil newJwtUtil(String keyDir) {
+        JwtUtil jwtUtil = new JwtUtil();
+        ReflectionTestUtils.setField(jwtUtil, "jwtSignKey", JWT_SIGN_KEY);
+        ReflectionTestUtils.setField(jwtUtil, "jwtHmacAlgorithm", SignatureAlgorithm.HS512);
+        ReflectionTestUtils.setField(jwtUtil, "jwtKeyDir", keyDir);
+        ReflectionTestUtils.setField(jwtUtil, "jwtExpireTimeAsSec", 3600L);
+        ReflectionTestUtils.setField(jwtUtil, "claimsFormat", JwtUtil.ClaimsFormat.STANDARD);
+        ReflectionTestUtils.setField(jwtUtil, "meterRegistry", new SimpleMeterRegistry());
+        jwtUtil.init();
+        return jwtUtil;
+    }
+
+    /**
+     * 不透過 spring 建立 TokenRevocationList，設定值與 application.properties 相同
+     */
+    static TokenRevocationList newTokenRevocationList() {
+        TokenRevocationList tokenRevocationList = new TokenRevocationList();
+        ReflectionTestUtils.setField(tokenRevocationList, "jwtExpireTimeAsSec", 3600L);
+        ReflectionTestUtils.setField(tokenRevocationList, "expectedEntries", 100_000L);
+        ReflectionTestUtils.setField(tokenRevocationList, "falsePositiveRate", 0.01);
+        ReflectionTestUtils.setField(tokenRevocationList, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(tokenRevocationList, "auditLog", new AuditLog()); // 沒有呼叫 init() 的 AuditLog 不會記錄事件
+        tokenRevocationList.init();
+        return tokenRevocationList;
+    }
+
+    /**
+     * 產生一組 key pair，以 JwtKeyRing 要求的檔名與 pem 格式寫到 keyDir
+     *
+     * @param keyDir
+     * @param kid
+     * @param keyAlgorithm RSA 或 EC
+     * @param keySize RSA 為 modulus 長度，EC 為曲線大小
+     */
+    static void writeKeyPair(Path keyDir, String kid, String keyAlgorithm, int keySize) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm);
+        keyPairGenerator.initialize(keySize);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        Files.writeString(keyDir.resolve(kid + ".pub.pem"), toPem("PUBLIC KEY", keyPair.getPublic().getEncoded()));
+        Files.writeString(keyDir.resolve(kid + ".key.pem"), toPem("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+    }
+
+    private static String toPem(String type, byte[] encodedKey) {
+        return "-----BEGIN " + type + "-----\n"
+                + Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(encodedKey)
+                + "\n-----END " + type + "-----\n";
+    }
+}
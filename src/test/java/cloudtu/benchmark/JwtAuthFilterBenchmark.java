@@ -0,0 +1,116 @@
+package cloudtu.benchmark;
+
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import cloudtu.security.JwtAuthFilter;
+import cloudtu.security.UserDetailsCache;
+import cloudtu.security.UserDetailsServiceImpl;
+import cloudtu.security.VerifiedTokenCache;
+import cloudtu.util.JwtUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量測 JwtAuthFilter 處理一個帶 token 的 http request 的完整成本(取出 token、驗證、產生 Authentication)。
+ * userDetailsCacheEnabled=true 時比較用 userName 反查目前用戶資料(透過 UserDetailsCache)與直接使用 token 裡角色的成本差異。
+ * 每次呼叫都會建立新的 mock request/response/filter chain，這部份的配置量在各組 benchmark 之間都相同
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtAuthFilterBenchmark {
+    @Param({"false", "true"})
+    private boolean tokenCacheEnabled;
+
+    @Param({"false", "true"})
+    private boolean userDetailsCacheEnabled;
+
+    private JwtAuthFilter jwtAuthFilter;
+    private String authHeader;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+
+        JwtUtil jwtUtil = BenchmarkSupport.newJwtUtil();
+
+        VerifiedTokenCache verifiedTokenCache = new VerifiedTokenCache();
+        ReflectionTestUtils.setField(verifiedTokenCache, "enabled", tokenCacheEnabled);
+        ReflectionTestUtils.setField(verifiedTokenCache, "maxSize", 10_000L);
+        ReflectionTestUtils.setField(verifiedTokenCache, "meterRegistry", new SimpleMeterRegistry());
+        verifiedTokenCache.init();
+
+        UserDao userDao = new UserDao();
+        userDao.addUser(new User("benchUser", "pw", User.Role.ROLE_USER));
+        UserDetailsServiceImpl userDetailsService = new UserDetailsServiceImpl();
+        ReflectionTestUtils.setField(userDetailsService, "userDao", userDao);
+
+        UserDetailsCache userDetailsCache = new UserDetailsCache();
+        ReflectionTestUtils.setField(userDetailsCache, "enabled", userDetailsCacheEnabled);
+        ReflectionTestUtils.setField(userDetailsCache, "maxSize", 10_000L);
+        ReflectionTestUtils.setField(userDetailsCache, "ttlSec", 300L);
+        ReflectionTestUtils.setField(userDetailsCache, "userDetailsService", userDetailsService);
+        ReflectionTestUtils.setField(userDetailsCache, "meterRegistry", new SimpleMeterRegistry());
+        userDetailsCache.init();
+
+        jwtAuthFilter = new JwtAuthFilter();
+        ReflectionTestUtils.setField(jwtAuthFilter, "jwtUtil", jwtUtil);
+        ReflectionTestUtils.setField(jwtAuthFilter, "verifiedTokenCache", verifiedTokenCache);
+        ReflectionTestUtils.setField(jwtAuthFilter, "tokenRevocationList", BenchmarkSupport.newTokenRevocationList());
+        ReflectionTestUtils.setField(jwtAuthFilter, "userDetailsCache", userDetailsCache);
+        ReflectionTestUtils.setField(jwtAuthFilter, "maxTokenLength", 4096);
+        ReflectionTestUtils.setField(jwtAuthFilter, "meterRegistry", new SimpleMeterRegistry());
+        jwtAuthFilter.init();
+
+        authHeader = "Bearer " + jwtUtil.createToken("benchUser", List.of("ROLE_USER"));
+    }
+
+    @Benchmark
+    public MockHttpServletResponse doFilter() throws ServletException, IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/user/myInfo");
+        request.addHeader("Authorization", authHeader);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        try {
+            jwtAuthFilter.doFilter(request, response, new MockFilterChain());
+        }
+        finally {
+            SecurityContextHolder.clearContext();
+        }
+        return response;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtAuthFilterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,79 @@
+package cloudtu.benchmark;
+
+import cloudtu.util.JwtUtil;
+import cloudtu.util.bean.JwtPrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比較 JwtAuthFilter 每個 http request 解析 token 的成本：
+ * 舊做法呼叫 parseUserNameFromToken 與 parseUserAuthoritiesFromToken 做兩次簽章驗證，
+ * 新做法呼叫 parsePrincipalFromToken 只做一次。另外也量測產生 token 的成本。用 gc profiler 看每次呼叫配置的記憶體量(gc.alloc.rate.norm)。
+ * claimsFormat 比較 STANDARD 與 COMPACT 兩種 claims 格式，setup 時輸出 token 長度
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtUtilBenchmark {
+    private static final List<String> USER_ROLES = List.of("ROLE_USER");
+
+    @Param({"STANDARD", "COMPACT"})
+    private JwtUtil.ClaimsFormat claimsFormat;
+
+    private JwtUtil jwtUtil;
+    private String token;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+
+        jwtUtil = BenchmarkSupport.newJwtUtil();
+        ReflectionTestUtils.setField(jwtUtil, "claimsFormat", claimsFormat);
+        token = jwtUtil.createToken("benchUser", USER_ROLES);
+        System.out.printf("%n%s token length : %d%n", claimsFormat, token.length());
+    }
+
+    @Benchmark
+    public String createToken() {
+        return jwtUtil.createToken("benchUser", USER_ROLES);
+    }
+
+    @Benchmark
+    public void parseTwice(Blackhole blackhole) {
+        blackhole.consume(jwtUtil.parseUserNameFromToken(token));
+        blackhole.consume(jwtUtil.parseUserAuthoritiesFromToken(token));
+    }
+
+    @Benchmark
+    public JwtPrincipal parseOnce() {
+        return jwtUtil.parsePrincipalFromToken(token);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtUtilBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
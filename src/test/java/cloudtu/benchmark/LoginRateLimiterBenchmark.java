@@ -0,0 +1,101 @@
+package cloudtu.benchmark;
+
+import cloudtu.security.AuditLog;
+import cloudtu.security.LoginRateLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量測 LoginRateLimiter 加在每個 /auth/login request 上的成本。
+ * allowed : bucket 的 token 用不完，每次都放行；rejected : bucket 的 token 已經用完，每次都拒絕。
+ * keyCount 是輪流使用的 client IP 與 userName 數量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginRateLimiterBenchmark {
+    @Param({"1", "100000"})
+    private int keyCount;
+
+    private LoginRateLimiter allowingLimiter;
+    private LoginRateLimiter rejectingLimiter;
+    private String[] clientIps;
+    private String[] userNames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+
+        // 每 1 ms 補回 1_000_000 個 token 的速度遠大於 benchmark 的呼叫速度，不會被拒絕
+        allowingLimiter = newLoginRateLimiter(1_000_000, 1);
+        rejectingLimiter = newLoginRateLimiter(1, TimeUnit.HOURS.toMillis(1));
+
+        clientIps = new String[keyCount];
+        userNames = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            clientIps[i] = "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+            userNames[i] = "user" + i;
+            rejectingLimiter.tryAcquire(clientIps[i], userNames[i]); // 用掉唯一的 token
+        }
+    }
+
+    @Benchmark
+    public boolean allowed() {
+        int i = nextIndex();
+        return allowingLimiter.tryAcquire(clientIps[i], userNames[i]);
+    }
+
+    @Benchmark
+    public boolean rejected() {
+        int i = nextIndex();
+        return rejectingLimiter.tryAcquire(clientIps[i], userNames[i]);
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = i + 1 == keyCount ? 0 : i + 1;
+        return i;
+    }
+
+    private static LoginRateLimiter newLoginRateLimiter(int capacity, long refillIntervalMs) {
+        LoginRateLimiter loginRateLimiter = new LoginRateLimiter();
+        ReflectionTestUtils.setField(loginRateLimiter, "enabled", true);
+        ReflectionTestUtils.setField(loginRateLimiter, "perIpCapacity", capacity);
+        ReflectionTestUtils.setField(loginRateLimiter, "perIpRefillIntervalMs", refillIntervalMs);
+        ReflectionTestUtils.setField(loginRateLimiter, "perUserCapacity", capacity);
+        ReflectionTestUtils.setField(loginRateLimiter, "perUserRefillIntervalMs", refillIntervalMs);
+        ReflectionTestUtils.setField(loginRateLimiter, "maxKeys", 1_000_000L);
+        ReflectionTestUtils.setField(loginRateLimiter, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(loginRateLimiter, "auditLog", new AuditLog()); // 沒有呼叫 init() 的 AuditLog 不會記錄事件，寫入成本另外由 AuditLogBenchmark 量測
+        loginRateLimiter.init();
+        return loginRateLimiter;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LoginRateLimiterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
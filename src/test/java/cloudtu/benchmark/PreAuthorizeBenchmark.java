@@ -0,0 +1,115 @@
+package cloudtu.benchmark;
+
+import cloudtu.dao.bean.User;
+import cloudtu.security.CompiledPreInvocationAdvice;
+import cloudtu.security.RoleMaskMethodSecurityExpressionRoot;
+import cloudtu.security.UserDetailsImpl;
+import cloudtu.util.RoleRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.ExpressionBasedAnnotationAttributeFactory;
+import org.springframework.security.access.expression.method.ExpressionBasedPreInvocationAdvice;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionOperations;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.access.prepost.PreInvocationAttribute;
+import org.springframework.security.access.prepost.PreInvocationAuthorizationAdvice;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.util.SimpleMethodInvocation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比較 {@code @PreAuthorize} 用 SpEL 執行(spel，目前的預設方式)與編譯成角色 bitmask 判斷(compiled，auth.preAuthorize.compiled=true)的成本。
+ * roleExpression 是 UserController 用的純角色運算式；ownerExpression 用到 method 參數與 principal，compiled 模式也會退回 SpEL
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreAuthorizeBenchmark {
+    private static final String ROLE_EXPRESSION = "hasRole('USER') or hasRole('ADMIN')";
+    private static final String OWNER_EXPRESSION = "hasRole('ADMIN') or #userName == principal.username";
+
+    @Param({"spel", "compiled"})
+    private String mode;
+
+    private PreInvocationAuthorizationAdvice advice;
+    private Authentication authentication;
+    private MethodInvocation roleInvocation;
+    private PreInvocationAttribute roleAttribute;
+    private MethodInvocation ownerInvocation;
+    private PreInvocationAttribute ownerAttribute;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        BenchmarkSupport.quietLogging();
+
+        DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler() {
+            @Override
+            protected MethodSecurityExpressionOperations createSecurityExpressionRoot(Authentication authentication,
+                                                                                      MethodInvocation invocation) {
+                return new RoleMaskMethodSecurityExpressionRoot(super.createSecurityExpressionRoot(authentication, invocation));
+            }
+        };
+        ExpressionBasedPreInvocationAdvice spelAdvice = new ExpressionBasedPreInvocationAdvice();
+        spelAdvice.setExpressionHandler(expressionHandler);
+        advice = "compiled".equals(mode) ? new CompiledPreInvocationAdvice(spelAdvice) : spelAdvice;
+
+        UserDetailsImpl userDetails = new UserDetailsImpl("benchUser", null, RoleRegistry.maskOf(User.Role.ROLE_USER));
+        authentication = new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+
+        ExpressionBasedAnnotationAttributeFactory attributeFactory = new ExpressionBasedAnnotationAttributeFactory(expressionHandler);
+        SecuredTarget target = new SecuredTarget();
+        roleInvocation = new SimpleMethodInvocation(target, SecuredTarget.class.getMethod("myInfo"));
+        roleAttribute = attributeFactory.createPreInvocationAttribute(null, null, ROLE_EXPRESSION);
+        ownerInvocation = new SimpleMethodInvocation(target, SecuredTarget.class.getMethod("findUser", String.class), "benchUser");
+        ownerAttribute = attributeFactory.createPreInvocationAttribute(null, null, OWNER_EXPRESSION);
+    }
+
+    @Benchmark
+    public boolean roleExpression() {
+        return advice.before(authentication, roleInvocation, roleAttribute);
+    }
+
+    @Benchmark
+    public boolean ownerExpression() {
+        return advice.before(authentication, ownerInvocation, ownerAttribute);
+    }
+
+    public static class SecuredTarget {
+        @PreAuthorize(ROLE_EXPRESSION)
+        public String myInfo() {
+            return "myInfo";
+        }
+
+        @PreAuthorize(OWNER_EXPRESSION)
+        public String findUser(String userName) {
+            return userName;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PreAuthorizeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
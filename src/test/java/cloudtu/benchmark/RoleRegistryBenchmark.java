@@ -0,0 +1,107 @@
+package cloudtu.benchmark;
+
+import cloudtu.security.RoleMaskMethodSecurityExpressionRoot;
+import cloudtu.security.UserDetailsImpl;
+import cloudtu.util.RoleRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.expression.Expression;
+import org.springframework.security.access.expression.ExpressionUtils;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionOperations;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.util.SimpleMethodInvocation;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 比較每個已認証 request 的授權成本：
+ * <ul>
+ *     <li>buildAuthenticationPerRequest / buildAuthenticationFromRoleMask : 從 token 的 userRoles 產生 Authentication，
+ *     每次建立新的 SimpleGrantedAuthority list，或是用 RoleRegistry 共用的 list</li>
+ *     <li>defaultHasRole / roleMaskHasRole : 執行 {@code @PreAuthorize("hasRole('USER') or hasRole('ADMIN')")}，
+ *     用 spring security 預設的運算式 root，或是用 bitmask 檢查角色的 RoleMaskMethodSecurityExpressionRoot</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoleRegistryBenchmark {
+    private static final String PRE_AUTHORIZE = "hasRole('USER') or hasRole('ADMIN')";
+
+    private final List<String> tokenUserRoles = List.of("ROLE_ADMIN");
+    private final int tokenRoleMask = RoleRegistry.maskOfNames(tokenUserRoles);
+
+    private DefaultMethodSecurityExpressionHandler defaultHandler;
+    private DefaultMethodSecurityExpressionHandler roleMaskHandler;
+    private Expression defaultExpression;
+    private Expression roleMaskExpression;
+    private MethodInvocation methodInvocation;
+    private Authentication authentication;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        defaultHandler = new DefaultMethodSecurityExpressionHandler();
+        roleMaskHandler = new DefaultMethodSecurityExpressionHandler() {
+            @Override
+            protected MethodSecurityExpressionOperations createSecurityExpressionRoot(Authentication authentication,
+                                                                                      MethodInvocation invocation) {
+                return new RoleMaskMethodSecurityExpressionRoot(super.createSecurityExpressionRoot(authentication, invocation));
+            }
+        };
+        defaultExpression = defaultHandler.getExpressionParser().parseExpression(PRE_AUTHORIZE);
+        roleMaskExpression = roleMaskHandler.getExpressionParser().parseExpression(PRE_AUTHORIZE);
+        methodInvocation = new SimpleMethodInvocation(this, RoleRegistryBenchmark.class.getMethod("setup"));
+        authentication = buildAuthenticationFromRoleMask();
+    }
+
+    @Benchmark
+    public Authentication buildAuthenticationPerRequest() {
+        List<SimpleGrantedAuthority> authorities = tokenUserRoles.stream().map(SimpleGrantedAuthority::new).collect(Collectors.toList());
+        UserDetailsImpl userDetails = new UserDetailsImpl("benchUser", null, authorities);
+        return new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+    }
+
+    @Benchmark
+    public Authentication buildAuthenticationFromRoleMask() {
+        UserDetailsImpl userDetails = new UserDetailsImpl("benchUser", null, tokenRoleMask);
+        return new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+    }
+
+    @Benchmark
+    public boolean defaultHasRole() {
+        return ExpressionUtils.evaluateAsBoolean(defaultExpression, defaultHandler.createEvaluationContext(authentication, methodInvocation));
+    }
+
+    @Benchmark
+    public boolean roleMaskHasRole() {
+        return ExpressionUtils.evaluateAsBoolean(roleMaskExpression, roleMaskHandler.createEvaluationContext(authentication, methodInvocation));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RoleRegistryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
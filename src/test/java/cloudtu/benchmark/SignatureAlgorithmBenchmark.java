@@ -0,0 +1,88 @@
+package cloudtu.benchmark;
+
+import cloudtu.util.JwtUtil;
+import cloudtu.util.bean.JwtPrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比較各種簽章 algorithm 產生與驗證 token 的成本。非對稱式 algorithm 讓其它系統只要有 public key 就能自行驗證 token，
+ * 這裡的數據可以用來挑選驗證成本最低、又能讓下游系統自行驗證的 algorithm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureAlgorithmBenchmark {
+    @Param({"HS512", "RS256", "ES256"})
+    private String algorithm;
+
+    private Path keyDir;
+    private JwtUtil jwtUtil;
+    private String token;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.quietLogging();
+
+        keyDir = Files.createTempDirectory("jwt-keys");
+        switch (algorithm) {
+            case "RS256":
+                BenchmarkSupport.writeKeyPair(keyDir, "rsa-key", "RSA", 2048);
+                jwtUtil = BenchmarkSupport.newJwtUtil(keyDir.toString());
+                break;
+            case "ES256":
+                BenchmarkSupport.writeKeyPair(keyDir, "ec-key", "EC", 256);
+                jwtUtil = BenchmarkSupport.newJwtUtil(keyDir.toString());
+                break;
+            default:
+                jwtUtil = BenchmarkSupport.newJwtUtil();
+        }
+
+        token = jwtUtil.createToken("benchUser", List.of("ROLE_USER"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileSystemUtils.deleteRecursively(keyDir);
+    }
+
+    @Benchmark
+    public String sign() {
+        return jwtUtil.createToken("benchUser", List.of("ROLE_USER"));
+    }
+
+    @Benchmark
+    public JwtPrincipal verify() {
+        return jwtUtil.parsePrincipalFromToken(token);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SignatureAlgorithmBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,122 @@
+package cloudtu.benchmark;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 比較 server.threads.mode=platform 與 virtual 的壓力測試，量測不同同時連線數下的 throughput 與 latency(p50, p99)。
+ * <p>
+ * 每個連線都是 closed loop，收到 response 後馬上送出下一個 request(GET /user/myInfo)，所以同時處理中的 request 數量等於連線數。
+ * 先用要比較的 server.threads.mode 啟動系統(virtual 需要 JDK 21 以上)，再執行這個 class
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; cloudtu.benchmark.ThreadModeComparison [baseUrl] [durationSec] [連線數,...]
+ * </pre>
+ */
+public class ThreadModeComparison {
+    private static final String USER_NAME = "loadTestUser";
+    private static final String USER_PASSWORD = "loadTestPassword";
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("\"token\":\"([^\"]+)\"");
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int durationSec = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int[] connectionCounts = args.length > 2
+                ? Arrays.stream(args[2].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[]{50, 200, 1000, 4000};
+
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        String token = login(httpClient, baseUrl);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/user/myInfo"))
+                .header("Authorization", "Bearer " + token)
+                .timeout(Duration.ofSeconds(30))
+                .build();
+
+        run(httpClient, request, 50, 5); // 暖機
+        System.out.printf("%12s %10s %12s %10s %10s %10s %8s%n", "connections", "requests", "req/sec", "p50(ms)", "p99(ms)", "max(ms)", "errors");
+        for (int connectionCount : connectionCounts) {
+            run(httpClient, request, connectionCount, durationSec).print(connectionCount, durationSec);
+        }
+    }
+
+    private static String login(HttpClient httpClient, String baseUrl) throws Exception {
+        HttpRequest registerRequest = HttpRequest.newBuilder(URI.create(baseUrl + "/auth/register"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"userName\":\"" + USER_NAME + "\",\"userPassword\":\"" + USER_PASSWORD
+                        + "\",\"userRole\":\"ROLE_USER\"}"))
+                .build();
+        httpClient.send(registerRequest, HttpResponse.BodyHandlers.discarding()); // user 已存在時回傳 400，不影響後續登入
+
+        HttpRequest loginRequest = HttpRequest.newBuilder(
+                URI.create(baseUrl + "/auth/login?userName=" + USER_NAME + "&userPassword=" + USER_PASSWORD))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        String loginResponse = httpClient.send(loginRequest, HttpResponse.BodyHandlers.ofString()).body();
+        Matcher matcher = TOKEN_PATTERN.matcher(loginResponse);
+        if (!matcher.find()) {
+            throw new IllegalStateException("login fail : " + loginResponse);
+        }
+        return matcher.group(1);
+    }
+
+    private static Result run(HttpClient httpClient, HttpRequest request, int connectionCount, int durationSec) throws InterruptedException {
+        Result result = new Result();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSec);
+        CountDownLatch finished = new CountDownLatch(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            sendNext(httpClient, request, deadline, result, finished);
+        }
+        finished.await();
+        return result;
+    }
+
+    private static void sendNext(HttpClient httpClient, HttpRequest request, long deadline, Result result, CountDownLatch finished) {
+        long startNanos = System.nanoTime();
+        if (startNanos - deadline >= 0) {
+            finished.countDown();
+            return;
+        }
+
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+            if (e == null && response.statusCode() == 200) {
+                result.latencyRecorder.recordValue(Math.min(System.nanoTime() - startNanos, Result.MAX_LATENCY_NANOS));
+            }
+            else {
+                result.errorCount.incrementAndGet();
+            }
+            sendNext(httpClient, request, deadline, result, finished);
+        });
+    }
+
+    private static class Result {
+        private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+        private final Recorder latencyRecorder = new Recorder(MAX_LATENCY_NANOS, 3);
+        private final AtomicLong errorCount = new AtomicLong();
+
+        private void print(int connectionCount, int durationSec) {
+            Histogram latency = latencyRecorder.getIntervalHistogram();
+            System.out.printf("%12d %10d %12.0f %10.2f %10.2f %10.2f %8d%n", connectionCount, latency.getTotalCount(),
+                    (double) latency.getTotalCount() / durationSec, toMillis(latency.getValueAtPercentile(50)),
+                    toMillis(latency.getValueAtPercentile(99)), toMillis(latency.getMaxValue()), errorCount.get());
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cloudtu.benchmark;
+
+import cloudtu.dao.bean.User;
+import cloudtu.security.TokenRevocationList;
+import cloudtu.util.RoleRegistry;
+import cloudtu.util.bean.JwtPrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量測 JwtAuthFilter 每個 request 都要做的撤銷檢查成本，以及撤銷記錄佔用的 heap。
+ * setup 時會印出 revokedCount 筆撤銷記錄佔用的 heap(GC 前後 used heap 的差值，只是約略值)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TokenRevocationListBenchmark {
+    @Param({"0", "1000000"})
+    private int revokedCount;
+
+    private TokenRevocationList tokenRevocationList;
+    private JwtPrincipal activePrincipal;
+    private JwtPrincipal revokedPrincipal;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+
+        Instant now = Instant.now();
+        Instant expireTime = now.plusSeconds(3600);
+        int roleMask = RoleRegistry.maskOf(User.Role.ROLE_USER);
+
+        long heapBefore = usedHeap();
+        tokenRevocationList = BenchmarkSupport.newTokenRevocationList();
+        for (int i = 0; i < revokedCount; i++) {
+            tokenRevocationList.revokeToken(new JwtPrincipal("user" + (i % 1000), roleMask,
+                    UUID.randomUUID().toString(), now, expireTime));
+        }
+        long heapAfter = usedHeap();
+        System.out.printf("%n%d revoked tokens use about %.1f MB heap%n", revokedCount, (heapAfter - heapBefore) / 1024.0 / 1024.0);
+
+        activePrincipal = new JwtPrincipal("benchUser", roleMask, UUID.randomUUID().toString(), now, expireTime);
+        revokedPrincipal = new JwtPrincipal("benchUser", roleMask, UUID.randomUUID().toString(), now, expireTime);
+        tokenRevocationList.revokeToken(revokedPrincipal);
+    }
+
+    @Benchmark
+    public boolean isRevokedForActiveToken() {
+        return tokenRevocationList.isRevoked(activePrincipal);
+    }
+
+    @Benchmark
+    public boolean isRevokedForRevokedToken() {
+        return tokenRevocationList.isRevoked(revokedPrincipal);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenRevocationListBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,110 @@
+package cloudtu.benchmark;
+
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量測 UserDao 在不同 user 數量與 thread 數量下的讀寫效能，並比較 ConcurrentHashMap 實作與原本 synchronized TreeMap 實作的讀取效能。
+ * 原本的 TreeMap 實作讀取時沒有同步，併發寫入時並不安全，這裡的 baseline 讀取時也加上 lock 才是正確的對照組
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserDaoBenchmark {
+    @Param({"1000", "100000"})
+    private int userCount;
+
+    private UserDao userDao;
+    private Map<String, User> treeMapUserDb;
+    private String[] userNames;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.quietLogging();
+
+        userDao = new UserDao();
+        treeMapUserDb = new TreeMap<>();
+        userNames = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            User user = new User("user" + i, "pw", User.Role.ROLE_USER);
+            userNames[i] = user.getName();
+            userDao.addUser(user);
+            treeMapUserDb.put(user.getName(), user);
+        }
+    }
+
+    private String randomUserName() {
+        return userNames[ThreadLocalRandom.current().nextInt(userNames.length)];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public User findUserConcurrentHashMap1Thread() {
+        return userDao.findUser(randomUserName());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public User findUserConcurrentHashMap8Threads() {
+        return userDao.findUser(randomUserName());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public User findUserSynchronizedTreeMap1Thread() {
+        synchronized (treeMapUserDb) {
+            return treeMapUserDb.get(randomUserName());
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public User findUserSynchronizedTreeMap8Threads() {
+        synchronized (treeMapUserDb) {
+            return treeMapUserDb.get(randomUserName());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void updateUser1Thread() {
+        userDao.addUser(new User(randomUserName(), "pw", User.Role.ROLE_USER));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void updateUser8Threads() {
+        userDao.addUser(new User(randomUserName(), "pw", User.Role.ROLE_USER));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UserDaoBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
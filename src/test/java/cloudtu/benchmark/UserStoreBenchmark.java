@@ -0,0 +1,146 @@
+package cloudtu.benchmark;
+
+import cloudtu.dao.UserDao;
+import cloudtu.dao.bean.User;
+import cloudtu.dao.store.FileUserStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量測 FileUserStore 在 userCount 個 user 時的系統啟動回復時間，以及 16 個 thread 同時註冊 userCount 個 user 花費的時間(fsync 開啟)。
+ * 註冊時的 password 是事先 hash 好的固定字串，只量測 UserDao 與 FileUserStore 的成本，不含 BCrypt。
+ * 10M user 需要約 3GB heap，記憶體不夠時可以用 -Dbenchmark.include 或 -p userCount=1000000 只跑 1M
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UserStoreBenchmark {
+    private static final String ENCODED_PASSWORD = "$2a$10$7EqJtq98hPqEX7fNZaFWoO5xkqJbV6sS0ZqhzVxWn2ZbxkZkDg7mK";
+    private static final int REGISTER_THREAD_COUNT = 16;
+
+    /**
+     * 事先產生的資料目錄，90% 的 user 在 snapshot 裡，10% 只在 log 裡，回復時兩種檔案都要讀
+     */
+    @State(Scope.Benchmark)
+    public static class RecoverState {
+        @Param({"1000000", "10000000"})
+        private int userCount;
+
+        private Path dataDir;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            BenchmarkSupport.quietLogging();
+
+            dataDir = Files.createTempDirectory("user-store-benchmark");
+            FileUserStore userStore = new FileUserStore(dataDir, false);
+            UserDao userDao = new UserDao(userStore);
+            userDao.init();
+            int snapshotUserCount = userCount / 10 * 9;
+            for (int i = 0; i < userCount; i++) {
+                userDao.addUser(new User("user" + i, ENCODED_PASSWORD, User.Role.ROLE_USER));
+                if (i == snapshotUserCount) {
+                    userDao.snapshot();
+                }
+            }
+            userStore.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            FileSystemUtils.deleteRecursively(dataDir);
+        }
+    }
+
+    /**
+     * 每次量測都從空的資料目錄開始註冊
+     */
+    @State(Scope.Benchmark)
+    public static class RegisterState {
+        @Param({"1000000", "10000000"})
+        private int userCount;
+
+        private Path dataDir;
+        private FileUserStore userStore;
+        private UserDao userDao;
+        private ExecutorService executor;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            BenchmarkSupport.quietLogging();
+
+            dataDir = Files.createTempDirectory("user-store-benchmark");
+            userStore = new FileUserStore(dataDir, true);
+            userDao = new UserDao(userStore);
+            userDao.init();
+            executor = Executors.newFixedThreadPool(REGISTER_THREAD_COUNT);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            executor.shutdownNow();
+            userStore.close();
+            userDao = null; // 讓下一次量測前可以回收這次的資料
+            FileSystemUtils.deleteRecursively(dataDir);
+        }
+    }
+
+    @Benchmark
+    public boolean recover(RecoverState state) throws IOException {
+        FileUserStore userStore = new FileUserStore(state.dataDir, false);
+        UserDao userDao = new UserDao(userStore);
+        userDao.init();
+        userStore.close();
+        return userDao.isUserExist("user" + (state.userCount - 1));
+    }
+
+    @Benchmark
+    public int register(RegisterState state) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < REGISTER_THREAD_COUNT; t++) {
+            int threadIndex = t;
+            futures.add(state.executor.submit(() -> {
+                for (int i = threadIndex; i < state.userCount; i += REGISTER_THREAD_COUNT) {
+                    state.userDao.addUserIfAbsent(new User("user" + i, ENCODED_PASSWORD, User.Role.ROLE_USER));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return state.userCount;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UserStoreBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,140 @@
+package cloudtu.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RefreshTokenDaoTests {
+
+    @Test
+    void purgeCompactsLogWhileRunning(@TempDir Path dataDir) throws Exception {
+        Path storeFile = dataDir.resolve("refresh-tokens.log");
+        RefreshTokenDao refreshTokenDao = newRefreshTokenDao(storeFile, 3600);
+        List<String> refreshTokens = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            refreshTokens.add(refreshTokenDao.issue("user" + i));
+        }
+        for (int i = 10; i < refreshTokens.size(); i++) {
+            assertEquals("user" + i, refreshTokenDao.consume(refreshTokens.get(i)));
+        }
+        long sizeBeforePurge = Files.size(storeFile);
+
+        // 只剩 10 個有效的 refresh token，purge 時 compact 成只有 10 筆記錄的 log 檔，之後新增的記錄接在後面
+        refreshTokenDao.purgeExpired();
+        assertTrue(Files.size(storeFile) < sizeBeforePurge / 100);
+        String newRefreshToken = refreshTokenDao.issue("newUser");
+        refreshTokenDao.close();
+
+        RefreshTokenDao reloadedRefreshTokenDao = newRefreshTokenDao(storeFile, 3600);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("user" + i, reloadedRefreshTokenDao.consume(refreshTokens.get(i)));
+        }
+        assertNull(reloadedRefreshTokenDao.consume(refreshTokens.get(10)));
+        assertEquals("newUser", reloadedRefreshTokenDao.consume(newRefreshToken));
+        reloadedRefreshTokenDao.close();
+    }
+
+    @Test
+    void purgeRemovesExpiredTokens(@TempDir Path dataDir) throws Exception {
+        Path storeFile = dataDir.resolve("refresh-tokens.log");
+        RefreshTokenDao refreshTokenDao = newRefreshTokenDao(storeFile, 0);
+        for (int i = 0; i < 100; i++) {
+            refreshTokenDao.issue("user" + i);
+        }
+
+        refreshTokenDao.purgeExpired();
+        assertEquals(0, Files.size(storeFile));
+        refreshTokenDao.close();
+    }
+
+    @Test
+    void tooLongUserNameIsRejectedWithoutBreakingLog(@TempDir Path dataDir) throws Exception {
+        Path storeFile = dataDir.resolve("refresh-tokens.log");
+        RefreshTokenDao refreshTokenDao = newRefreshTokenDao(storeFile, 3600);
+        String firstRefreshToken = refreshTokenDao.issue("user1");
+
+        // userName 長度超過記錄格式的上限時直接拒絕，不會寫出長度被截斷的記錄，讓重啟時之後的記錄都被丟掉
+        assertThrows(IllegalArgumentException.class, () -> refreshTokenDao.issue("x".repeat(0x10000)));
+        String secondRefreshToken = refreshTokenDao.issue("user2");
+        refreshTokenDao.close();
+
+        RefreshTokenDao reloadedRefreshTokenDao = newRefreshTokenDao(storeFile, 3600);
+        assertEquals("user1", reloadedRefreshTokenDao.consume(firstRefreshToken));
+        assertEquals("user2", reloadedRefreshTokenDao.consume(secondRefreshToken));
+        reloadedRefreshTokenDao.close();
+    }
+
+    @Test
+    void concurrentWritesWithGroupCommitAreDurable(@TempDir Path dataDir) throws Exception {
+        Path storeFile = dataDir.resolve("refresh-tokens.log");
+        RefreshTokenDao refreshTokenDao = newRefreshTokenDao(storeFile, 3600, true);
+        int threadCount = 16;
+        int tokenCountPerThread = 200;
+        List<Future<List<String>>> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            // 多個 thread 同時發出與使用 refresh token(fsync 由 group commit 合併)，過程中也會做 compact
+            for (int t = 0; t < threadCount; t++) {
+                int threadNo = t;
+                results.add(executor.submit(() -> {
+                    List<String> keptRefreshTokens = new ArrayList<>();
+                    for (int i = 0; i < tokenCountPerThread; i++) {
+                        String refreshToken = refreshTokenDao.issue("user" + threadNo);
+                        if (i % 2 == 0) {
+                            keptRefreshTokens.add(refreshToken);
+                        }
+                        else {
+                            assertEquals("user" + threadNo, refreshTokenDao.consume(refreshToken));
+                        }
+                        if (i % 50 == 0) {
+                            refreshTokenDao.purgeExpired();
+                        }
+                    }
+                    return keptRefreshTokens;
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        refreshTokenDao.close();
+
+        RefreshTokenDao reloadedRefreshTokenDao = newRefreshTokenDao(storeFile, 3600, true);
+        for (int t = 0; t < threadCount; t++) {
+            for (String refreshToken : results.get(t).get()) {
+                assertEquals("user" + t, reloadedRefreshTokenDao.consume(refreshToken));
+            }
+        }
+        reloadedRefreshTokenDao.close();
+    }
+
+    private static RefreshTokenDao newRefreshTokenDao(Path storeFile, long expireTimeAsSec) throws Exception {
+        return newRefreshTokenDao(storeFile, expireTimeAsSec, false);
+    }
+
+    private static RefreshTokenDao newRefreshTokenDao(Path storeFile, long expireTimeAsSec, boolean fsync) throws Exception {
+        RefreshTokenDao refreshTokenDao = new RefreshTokenDao();
+        ReflectionTestUtils.setField(refreshTokenDao, "refreshTokenExpireTimeAsSec", expireTimeAsSec);
+        ReflectionTestUtils.setField(refreshTokenDao, "storeFile", storeFile.toString());
+        ReflectionTestUtils.setField(refreshTokenDao, "fsync", fsync);
+        refreshTokenDao.init();
+        return refreshTokenDao;
+    }
+}
@@ -0,0 +1,449 @@
+package cloudtu.dao;
+
+import cloudtu.dao.bean.User;
+import cloudtu.dao.store.FileUserStore;
+import cloudtu.dao.store.MemoryUserStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserDaoTests {
+    private static final int THREAD_COUNT = 16;
+    private static final int USER_COUNT = 20_000;
+
+    @Test
+    void addUserIfAbsentOnlyOneWinnerPerUserName() throws Exception {
+        UserDao userDao = new UserDao();
+        AtomicInteger addedCount = new AtomicInteger();
+
+        // 每個 thread 都嘗試註冊同一批 userName，每個 userName 只能有一個 thread 註冊成功
+        runConcurrently(threadIndex -> {
+            for (int i = 0; i < USER_COUNT; i++) {
+                if (userDao.addUserIfAbsent(new User("user" + i, "pw" + threadIndex, User.Role.ROLE_USER))) {
+                    addedCount.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(USER_COUNT, addedCount.get());
+        assertEquals(USER_COUNT, userDao.findAllUsers().size());
+    }
+
+    @Test
+    void readsSeeConsistentDataDuringConcurrentRegistration() throws Exception {
+        UserDao userDao = new UserDao();
+
+        // 一半的 thread 註冊 user，另一半的 thread 同時讀取，已存在的 user 一定要能查到完整資料
+        runConcurrently(threadIndex -> {
+            if (threadIndex % 2 == 0) {
+                for (int i = threadIndex; i < USER_COUNT; i += THREAD_COUNT) {
+                    userDao.addUserIfAbsent(new User("user" + i, "pw", User.Role.ROLE_USER));
+                }
+            }
+            else {
+                for (int i = 0; i < USER_COUNT; i++) {
+                    String userName = "user" + i;
+                    if (userDao.isUserExist(userName)) {
+                        User user = userDao.findUser(userName);
+                        assertNotNull(user);
+                        assertEquals(userName, user.getName());
+                    }
+                }
+            }
+        });
+
+        List<User> allUsers = userDao.findAllUsers();
+        for (int i = 1; i < allUsers.size(); i++) {
+            assertTrue(allUsers.get(i - 1).getName().compareTo(allUsers.get(i).getName()) < 0);
+        }
+    }
+
+    @Test
+    void findUsersPagesThroughAllUsersInNameOrder() throws Exception {
+        UserDao userDao = new UserDao();
+
+        // 一邊註冊一邊分頁讀取，每一頁都要依 userName 排序，而且不會讀到重覆的 user
+        runConcurrently(threadIndex -> {
+            if (threadIndex % 2 == 0) {
+                for (int i = threadIndex; i < USER_COUNT; i += THREAD_COUNT) {
+                    userDao.addUserIfAbsent(new User("user" + i, "pw", User.Role.ROLE_USER));
+                }
+            }
+            else {
+                String cursor = null;
+                List<User> page;
+                while (!(page = userDao.findUsers(cursor, 100)).isEmpty()) {
+                    for (User user : page) {
+                        assertTrue(cursor == null || cursor.compareTo(user.getName()) < 0);
+                        cursor = user.getName();
+                    }
+                }
+            }
+        });
+
+        List<String> pagedUserNames = new ArrayList<>();
+        String cursor = null;
+        List<User> page;
+        while (!(page = userDao.findUsers(cursor, 333)).isEmpty()) {
+            page.forEach(user -> pagedUserNames.add(user.getName()));
+            cursor = page.get(page.size() - 1).getName();
+        }
+        assertEquals(USER_COUNT / 2, pagedUserNames.size());
+        assertEquals(pagedUserNames, userDao.streamAllUsers().map(User::getName).collect(Collectors.toList()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void roleIndexNeverDisagreesWithUsers() throws Exception {
+        UserDao userDao = new UserDao();
+        int roundCount = 5;
+
+        // 一半的 thread 新增 user 並反覆改變角色，另一半的 thread 同時依角色分頁查詢，查到的 user 角色一定要正確而且依 userName 排序、不重覆
+        runConcurrently(threadIndex -> {
+            if (threadIndex % 2 == 0) {
+                for (int round = 0; round < roundCount; round++) {
+                    for (int i = threadIndex; i < USER_COUNT; i += THREAD_COUNT) {
+                        User.Role role = (i / THREAD_COUNT + round) % 2 == 0 ? User.Role.ROLE_USER : User.Role.ROLE_ADMIN;
+                        userDao.addUser(new User("user" + i, "pw", role));
+                    }
+                }
+            }
+            else {
+                for (int round = 0; round < roundCount; round++) {
+                    for (User.Role role : User.Role.values()) {
+                        String cursor = null;
+                        List<User> page;
+                        while (!(page = userDao.findUsersByRole(role, cursor, 100)).isEmpty()) {
+                            for (User user : page) {
+                                assertEquals(role, user.getRole());
+                                assertTrue(cursor == null || cursor.compareTo(user.getName()) < 0);
+                                cursor = user.getName();
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        // 全部更新完成後，每個角色的查詢結果要跟從全部 user 過濾出來的結果完全相同
+        for (User.Role role : User.Role.values()) {
+            List<String> pagedUserNames = new ArrayList<>();
+            String cursor = null;
+            List<User> page;
+            while (!(page = userDao.findUsersByRole(role, cursor, 333)).isEmpty()) {
+                page.forEach(user -> pagedUserNames.add(user.getName()));
+                cursor = page.get(page.size() - 1).getName();
+            }
+            List<String> expectedUserNames = userDao.streamAllUsers().filter(user -> user.getRole() == role)
+                    .map(User::getName).collect(Collectors.toList());
+            assertEquals(expectedUserNames, pagedUserNames);
+            assertFalse(pagedUserNames.isEmpty());
+            // 查詢時會以 userDb 為準過濾掉角色不符的 user，所以另外確認 index 本身沒有殘留角色已改變的 user
+            Map<User.Role, Set<String>> userNamesByRole = (Map<User.Role, Set<String>>) ReflectionTestUtils.getField(userDao, "userNamesByRole");
+            assertEquals(new ArrayList<>(userNamesByRole.get(role)), expectedUserNames);
+        }
+    }
+
+    @Test
+    void addUsersIfAbsentRacesWithSingleRegistration(@TempDir Path dataDir) throws Exception {
+        int batchSize = 500;
+        UserDao userDao = new UserDao(new FileUserStore(dataDir, true));
+        userDao.init();
+        AtomicInteger addedCount = new AtomicInteger();
+
+        // 一半的 thread 批次新增，另一半的 thread 一筆一筆新增同一批 userName，每個 userName 只能有一個 thread 新增成功
+        runConcurrently(threadIndex -> {
+            if (threadIndex % 2 == 0) {
+                for (int from = 0; from < USER_COUNT; from += batchSize) {
+                    List<User> batch = new ArrayList<>(batchSize);
+                    for (int i = from; i < from + batchSize; i++) {
+                        batch.add(new User("user" + i, "pw" + threadIndex, User.Role.ROLE_USER));
+                    }
+                    for (boolean added : userDao.addUsersIfAbsent(batch)) {
+                        if (added) {
+                            addedCount.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            else {
+                for (int i = 0; i < USER_COUNT; i++) {
+                    if (userDao.addUserIfAbsent(new User("user" + i, "pw" + threadIndex, User.Role.ROLE_USER))) {
+                        addedCount.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertEquals(USER_COUNT, addedCount.get());
+        assertEquals(USER_COUNT, userDao.findAllUsers().size());
+        // 同一批裡重覆的 userName 只有第一個會新增成功
+        boolean[] added = userDao.addUsersIfAbsent(List.of(new User("newUser", "pw", User.Role.ROLE_USER),
+                new User("newUser", "pw", User.Role.ROLE_ADMIN), new User("user0", "pw", User.Role.ROLE_USER)));
+        assertTrue(added[0]);
+        assertFalse(added[1]);
+        assertFalse(added[2]);
+        assertEquals(User.Role.ROLE_USER, userDao.findUser("newUser").getRole());
+        userDao.close();
+    }
+
+    @Test
+    void fileUserStoreRecoversSnapshotAndLogAfterRestart(@TempDir Path dataDir) throws Exception {
+        int userCount = 2_000;
+        FileUserStore userStore = new FileUserStore(dataDir, true);
+        UserDao userDao = new UserDao(userStore);
+        userDao.init();
+
+        // 前一半的 user 會寫進 snapshot，後一半與密碼更新只在 log 裡，重啟時要重播 log
+        runConcurrently(threadIndex -> {
+            for (int i = threadIndex; i < userCount / 2; i += THREAD_COUNT) {
+                userDao.addUserIfAbsent(new User("user" + i, "pw" + i, User.Role.ROLE_USER));
+            }
+        });
+        userDao.snapshot();
+        runConcurrently(threadIndex -> {
+            for (int i = userCount / 2 + threadIndex; i < userCount; i += THREAD_COUNT) {
+                userDao.addUserIfAbsent(new User("user" + i, "pw" + i, User.Role.ROLE_ADMIN));
+            }
+        });
+        userDao.updatePassword("user0", "newPw");
+        userStore.close(); // 模擬沒有在關閉前做 snapshot
+
+        UserDao recoveredUserDao = new UserDao(new FileUserStore(dataDir, true));
+        recoveredUserDao.init();
+
+        assertEquals(userCount, recoveredUserDao.findAllUsers().size());
+        assertEquals("newPw", recoveredUserDao.findUser("user0").getPassword());
+        assertEquals("pw1", recoveredUserDao.findUser("user1").getPassword());
+        assertEquals(User.Role.ROLE_ADMIN, recoveredUserDao.findUser("user" + (userCount - 1)).getRole());
+        recoveredUserDao.close();
+    }
+
+    @Test
+    void tooLongUserIsRejectedWithoutFailingOtherWrites(@TempDir Path dataDir) throws Exception {
+        FileUserStore userStore = new FileUserStore(dataDir, true);
+        UserDao userDao = new UserDao(userStore);
+        userDao.init();
+        User tooLongUser = new User("x".repeat(UserDao.MAX_FIELD_BYTES + 1), "pw", User.Role.ROLE_USER);
+
+        // UserDao 在更新 userDb 前就擋下不能保存的 user
+        assertThrows(IllegalArgumentException.class, () -> userDao.addUserIfAbsent(tooLongUser));
+        assertThrows(IllegalArgumentException.class, () -> userDao.addUsersIfAbsent(
+                List.of(new User("batchUser", "pw", User.Role.ROLE_USER), tooLongUser)));
+        assertNull(userDao.findUser(tooLongUser.getName()));
+        assertNull(userDao.findUser("batchUser"));
+
+        // 直接交給 userStore 時，也只有不能保存的那一筆寫入失敗，同時寫入的其它 user 不受影響
+        runConcurrently(threadIndex -> {
+            for (int i = threadIndex; i < 2_000; i += THREAD_COUNT) {
+                if (i % 100 == 0) {
+                    CompletableFuture<Void> stored = userStore.append(tooLongUser);
+                    assertThrows(CompletionException.class, stored::join);
+                }
+                assertTrue(userDao.addUserIfAbsent(new User("user" + i, "pw" + i, User.Role.ROLE_USER)));
+            }
+        });
+        userStore.close();
+
+        UserDao recoveredUserDao = new UserDao(new FileUserStore(dataDir, true));
+        recoveredUserDao.init();
+        assertEquals(2_000, recoveredUserDao.findAllUsers().size());
+        assertNull(recoveredUserDao.findUser(tooLongUser.getName()));
+        recoveredUserDao.close();
+    }
+
+    @Test
+    void userIsRolledBackWhenStoreFails() {
+        // 模擬 userStore 寫入失敗(例如磁碟滿了)
+        UserDao userDao = new UserDao(new MemoryUserStore() {
+            @Override
+            public CompletableFuture<Void> append(User user) {
+                return user.getPassword().startsWith("fail")
+                        ? CompletableFuture.failedFuture(new UncheckedIOException(new IOException("disk full")))
+                        : super.append(user);
+            }
+        });
+        userDao.addUser(new User("user1", "pw", User.Role.ROLE_USER));
+
+        assertThrows(UncheckedIOException.class, () -> userDao.addUserIfAbsent(new User("user2", "fail", User.Role.ROLE_ADMIN)));
+        assertNull(userDao.findUser("user2"));
+        assertEquals(List.of("user1"), userDao.findUsers(null, 10).stream().map(User::getName).collect(Collectors.toList()));
+        assertTrue(userDao.findUsersByRole(User.Role.ROLE_ADMIN, null, 10).isEmpty());
+
+        assertThrows(UncheckedIOException.class, () -> userDao.addUser(new User("user1", "failPw", User.Role.ROLE_ADMIN)));
+        assertEquals("pw", userDao.findUser("user1").getPassword());
+        assertEquals(1, userDao.findUsersByRole(User.Role.ROLE_USER, null, 10).size());
+        assertTrue(userDao.findUsersByRole(User.Role.ROLE_ADMIN, null, 10).isEmpty());
+    }
+
+    @Test
+    void changeIsInvisibleUntilStored() throws Exception {
+        ControlledUserStore userStore = new ControlledUserStore();
+        UserDao userDao = new UserDao(userStore);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<Boolean> added = executor.submit(() -> userDao.addUserIfAbsent(new User("user1", "pw1", User.Role.ROLE_USER)));
+            CompletableFuture<Void> firstWrite = userStore.nextAppend();
+
+            // 資料還沒寫入 userStore 前，其它 thread 查不到這個 user
+            assertNull(userDao.findUser("user1"));
+            assertFalse(userDao.isUserExist("user1"));
+            assertTrue(userDao.findUsers(null, 10).isEmpty());
+            assertTrue(userDao.findUsersByRole(User.Role.ROLE_USER, null, 10).isEmpty());
+
+            // 同一個 user 的下一次異動以還沒寫完的異動為基礎，不用等它寫完
+            Future<Boolean> updated = executor.submit(() -> userDao.updatePassword("user1", "pw2"));
+            CompletableFuture<Void> secondWrite = userStore.nextAppend();
+            Future<?> snapshot = executor.submit(userDao::snapshot);
+
+            // 後面的異動先寫完時以它為準，前面的異動寫完後不會蓋掉它
+            secondWrite.complete(null);
+            assertTrue(updated.get(10, TimeUnit.SECONDS));
+            assertEquals("pw2", userDao.findUser("user1").getPassword());
+            firstWrite.complete(null);
+            assertTrue(added.get(10, TimeUnit.SECONDS));
+            assertEquals("pw2", userDao.findUser("user1").getPassword());
+
+            snapshot.get(10, TimeUnit.SECONDS);
+            assertEquals(List.of("user1/pw2"), userStore.snapshotUsers);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedChangeIsNeverVisibleOrSnapshotted() throws Exception {
+        ControlledUserStore userStore = new ControlledUserStore();
+        UserDao userDao = new UserDao(userStore);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> added = executor.submit(() -> userDao.addUserIfAbsent(new User("user1", "pw1", User.Role.ROLE_USER)));
+            CompletableFuture<Void> write = userStore.nextAppend();
+            // snapshot 要等 startSnapshot 之前交給 userStore 的異動結束才讀取 userDb
+            Future<?> snapshot = executor.submit(userDao::snapshot);
+            assertThrows(TimeoutException.class, () -> snapshot.get(200, TimeUnit.MILLISECONDS));
+
+            write.completeExceptionally(new UncheckedIOException(new IOException("disk full")));
+            ExecutionException e = assertThrows(ExecutionException.class, () -> added.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+            snapshot.get(10, TimeUnit.SECONDS);
+            assertTrue(userStore.snapshotUsers.isEmpty());
+            assertNull(userDao.findUser("user1"));
+
+            // 失敗的異動丟掉之後，同一個 userName 可以重新新增
+            Future<Boolean> addedAgain = executor.submit(() -> userDao.addUserIfAbsent(new User("user1", "pw2", User.Role.ROLE_USER)));
+            userStore.nextAppend().complete(null);
+            assertTrue(addedAgain.get(10, TimeUnit.SECONDS));
+            assertEquals("pw2", userDao.findUser("user1").getPassword());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void snapshotFailureDoesNotEscape() {
+        UserDao userDao = new UserDao(new MemoryUserStore() {
+            @Override
+            public long startSnapshot() {
+                throw new UncheckedIOException(new IOException("disk full"));
+            }
+        });
+        userDao.addUser(new User("user1", "pw", User.Role.ROLE_USER));
+
+        // 排程與系統關閉時呼叫的 snapshot 只記錄錯誤，不丟出 exception
+        assertDoesNotThrow(userDao::snapshot);
+        assertDoesNotThrow(userDao::close);
+    }
+
+    /**
+     * 由測試決定每一筆 append 什麼時候寫入完成(或失敗)的 UserStore
+     */
+    private static class ControlledUserStore extends MemoryUserStore {
+        private final BlockingQueue<CompletableFuture<Void>> appends = new LinkedBlockingQueue<>();
+        private volatile List<String> snapshotUsers;
+
+        @Override
+        public CompletableFuture<Void> append(User user) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            appends.add(written);
+            return written;
+        }
+
+        @Override
+        public long startSnapshot() {
+            return 1;
+        }
+
+        @Override
+        public void finishSnapshot(long snapshotMark, Collection<User> users) {
+            snapshotUsers = users.stream().map(user -> user.getName() + "/" + user.getPassword()).collect(Collectors.toList());
+        }
+
+        CompletableFuture<Void> nextAppend() throws InterruptedException {
+            CompletableFuture<Void> written = appends.poll(10, TimeUnit.SECONDS);
+            assertNotNull(written);
+            return written;
+        }
+    }
+
+    private static void runConcurrently(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            CountDownLatch startLatch = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREAD_COUNT; t++) {
+                int threadIndex = t;
+                futures.add(executor.submit(() -> {
+                    startLatch.await();
+                    task.run(threadIndex);
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS); // thread 裡 assert 失敗時，這裡會丟出 exception
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThreadTask {
+        void run(int threadIndex);
+    }
+}
@@ -0,0 +1,371 @@
+package cloudtu.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.core.env.Environment;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 端對端壓力測試，用 random port 啟動整個系統後，以固定到達速率(open model)混合送出
+ * /auth/register、/auth/login、/user/myInfo、/user/findAllUsers，並用 HdrHistogram 記錄每個 api 的 latency。
+ * <p>
+ * 預設不會執行(surefire 排除 loadtest tag)，要用 loadtest maven profile 執行，結果以 json 格式存到 target/loadtest 目錄，
+ * 可以比較不同設定(例如 jwt.tokenCache.enabled 開或關)的結果
+ * <pre>
+ * mvn -Ploadtest test -Dloadtest.label=tokenCacheOn -Djwt.tokenCache.enabled=true -Dloadtest.ratePerSec=200
+ * </pre>
+ * <p>
+ * 每個 request 都依預定的送出時間排程，不等前一個 request 回來，latency 從預定的送出時間開始算(responseTime)，
+ * 系統變慢時排隊等待的時間也會算進去，不會有 coordinated omission。另外記錄從實際送出開始算的 serviceTime 作為對照
+ */
+@Tag("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        // 登入的 request 都來自同一個 IP，要關掉登入頻率限制
+        "auth.loginRateLimit.enabled=false",
+        "jwt.expireTimeAsSec=3600",
+        "logging.level.cloudtu=INFO"})
+class LoadTests {
+    private static final Logger logger = LoggerFactory.getLogger(LoadTests.class);
+
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final String USER_PASSWORD = "loadTestPassword";
+    private static final String ADMIN_NAME = "loadTestAdmin";
+    // 寫到 report 的系統設定，方便比較不同設定的壓測結果
+    private static final List<String> REPORTED_PROPERTIES = List.of("spring.profiles.active", "server.threads.mode",
+            "jwt.hmacAlgorithm", "jwt.keyDir", "jwt.claimsFormat", "jwt.tokenCache.enabled", "auth.userDetailsCache.enabled",
+            "auth.preAuthorize.compiled", "auth.audit.enabled", "auth.passwordEncoder.algorithm",
+            "auth.passwordEncoder.bcryptStrength", "userDao.store");
+
+    @LocalServerPort
+    private int port;
+    @Autowired
+    private Environment environment;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private @Value("${loadtest.ratePerSec:100}") int ratePerSec;
+    private @Value("${loadtest.warmupSec:10}") int warmupSec;
+    private @Value("${loadtest.durationSec:30}") int durationSec;
+    // api 名稱:權重，register 與 login 會做 BCrypt 運算，權重不要設太高
+    private @Value("${loadtest.mix:register:1,login:4,myInfo:75,findAllUsers:20}") String mix;
+    private @Value("${loadtest.userCount:20}") int userCount;
+    private @Value("${loadtest.seed:1}") long seed;
+    private @Value("${loadtest.label:default}") String label;
+    private @Value("${loadtest.reportDir:target/loadtest}") String reportDir;
+    private @Value("${loadtest.maxErrorRatio:0.01}") double maxErrorRatio;
+
+    private final AtomicInteger registerSeq = new AtomicInteger();
+    private HttpClient httpClient;
+    private String baseUrl;
+    private Map<Endpoint, Integer> weights;
+    private List<String> userTokens;
+    private String adminToken;
+
+    private enum Endpoint {
+        REGISTER("register"), LOGIN("login"), MY_INFO("myInfo"), FIND_ALL_USERS("findAllUsers");
+
+        private final String key;
+
+        Endpoint(String key) {
+            this.key = key;
+        }
+
+        private static Endpoint of(String key) {
+            for (Endpoint endpoint : values()) {
+                if (endpoint.key.equals(key)) {
+                    return endpoint;
+                }
+            }
+            throw new IllegalArgumentException("loadtest.mix has unknown api '" + key + "'");
+        }
+    }
+
+    @Test
+    void constantArrivalRateMix() throws Exception {
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        baseUrl = "http://localhost:" + port;
+        weights = parseMix(mix);
+        prepareUsers();
+
+        LocalDateTime startedAt = LocalDateTime.now();
+        runPhase(warmupSec); // 暖機，結果不列入 report
+        PhaseResult result = runPhase(durationSec);
+
+        Path reportFile = writeReport(startedAt, result);
+        logger.info("load test report : {}", reportFile.toAbsolutePath());
+
+        long totalCount = 0;
+        long totalErrorCount = 0;
+        for (Map.Entry<Endpoint, Integer> weight : weights.entrySet()) {
+            EndpointStats stats = result.statsOf(weight.getKey());
+            totalCount += stats.count.sum();
+            totalErrorCount += stats.errorCount.sum();
+            assertTrue(weight.getValue() == 0 || stats.count.sum() > 0, weight.getKey().key + " was never called");
+        }
+        assertTrue(totalErrorCount <= totalCount * maxErrorRatio,
+                "error count " + totalErrorCount + " of " + totalCount + " exceeds loadtest.maxErrorRatio " + maxErrorRatio);
+    }
+
+    private static Map<Endpoint, Integer> parseMix(String mix) {
+        Map<Endpoint, Integer> weights = new EnumMap<>(Endpoint.class);
+        for (String entry : mix.split(",")) {
+            String[] keyAndWeight = entry.trim().split(":");
+            weights.put(Endpoint.of(keyAndWeight[0].trim()), Integer.parseInt(keyAndWeight[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * 先註冊並登入壓測要用的 user 與 admin，取得呼叫 /user/** 時要帶的 jwt
+     */
+    private void prepareUsers() throws Exception {
+        userTokens = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String userName = "loadTestUser" + i;
+            sendOk(registerRequest(userName, "ROLE_USER"));
+            userTokens.add(login(userName));
+        }
+        sendOk(registerRequest(ADMIN_NAME, "ROLE_ADMIN"));
+        adminToken = login(ADMIN_NAME);
+    }
+
+    private String login(String userName) throws Exception {
+        Map<?, ?> loginResp = objectMapper.readValue(sendOk(loginRequest(userName)), Map.class);
+        return (String) loginResp.get("token");
+    }
+
+    private String sendOk(HttpRequest request) throws Exception {
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(request.uri() + " fail : " + response.statusCode() + " " + response.body());
+        }
+        return response.body();
+    }
+
+    private HttpRequest registerRequest(String userName, String userRole) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/auth/register"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"userName\":\"" + userName + "\",\"userPassword\":\"" + USER_PASSWORD
+                        + "\",\"userRole\":\"" + userRole + "\"}"))
+                .build();
+    }
+
+    private HttpRequest loginRequest(String userName) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/auth/login?userName=" + userName + "&userPassword=" + USER_PASSWORD))
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+    }
+
+    private HttpRequest getRequest(String path, String token) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", "Bearer " + token)
+                .timeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    private HttpRequest newRequest(Endpoint endpoint, long seq) {
+        switch (endpoint) {
+            case REGISTER:
+                return registerRequest("loadTestNewUser" + registerSeq.incrementAndGet(), "ROLE_USER");
+            case LOGIN:
+                return loginRequest("loadTestUser" + (seq % userCount));
+            case MY_INFO:
+                return getRequest("/user/myInfo", userTokens.get((int) (seq % userCount)));
+            case FIND_ALL_USERS:
+                return getRequest("/user/findAllUsers?limit=20", adminToken);
+            default:
+                throw new IllegalArgumentException(endpoint.toString());
+        }
+    }
+
+    /**
+     * 以 ratePerSec 的固定速率送出 request，每個 request 依權重隨機選一個 api。
+     * 送出後不等 response 回來就繼續排程下一個 request，最後等所有 request 都回來才結束
+     */
+    private PhaseResult runPhase(int seconds) {
+        Endpoint[] endpoints = weights.keySet().toArray(new Endpoint[0]);
+        int[] cumulativeWeights = new int[endpoints.length];
+        int totalWeight = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            totalWeight += weights.get(endpoints[i]);
+            cumulativeWeights[i] = totalWeight;
+        }
+
+        PhaseResult result = new PhaseResult(seconds);
+        Random random = new Random(seed);
+        Phaser inFlight = new Phaser(1);
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSec;
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        for (long seq = 0; ; seq++) {
+            long intendedNanos = startNanos + seq * periodNanos;
+            if (intendedNanos - endNanos >= 0) {
+                break;
+            }
+            long waitNanos;
+            while ((waitNanos = intendedNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+
+            int pick = random.nextInt(totalWeight);
+            int index = 0;
+            while (cumulativeWeights[index] <= pick) {
+                index++;
+            }
+            EndpointStats stats = result.statsOf(endpoints[index]);
+            HttpRequest request = newRequest(endpoints[index], seq);
+
+            inFlight.register();
+            result.maxInFlight = Math.max(result.maxInFlight, inFlight.getUnarrivedParties() - 1);
+            long sendNanos = System.nanoTime();
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+                long nowNanos = System.nanoTime();
+                stats.record(nowNanos - intendedNanos, nowNanos - sendNanos,
+                        e == null ? String.valueOf(response.statusCode()) : e.getClass().getSimpleName(),
+                        e == null && response.statusCode() == 200);
+                inFlight.arriveAndDeregister();
+            });
+        }
+        inFlight.arriveAndAwaitAdvance();
+        return result;
+    }
+
+    private Path writeReport(LocalDateTime startedAt, PhaseResult result) throws Exception {
+        Map<String, Object> config = new LinkedHashMap<>();
+        for (String property : REPORTED_PROPERTIES) {
+            config.put(property, environment.getProperty(property));
+        }
+
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        long totalCount = 0;
+        for (Endpoint endpoint : weights.keySet()) {
+            EndpointStats stats = result.statsOf(endpoint);
+            totalCount += stats.count.sum();
+            endpoints.put(endpoint.key, stats.toReport(result.seconds));
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("label", label);
+        report.put("startedAt", startedAt.toString());
+        report.put("ratePerSec", ratePerSec);
+        report.put("achievedRatePerSec", (double) totalCount / result.seconds);
+        report.put("warmupSec", warmupSec);
+        report.put("durationSec", durationSec);
+        report.put("mix", mix);
+        report.put("userCount", userCount);
+        report.put("maxInFlight", result.maxInFlight);
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("config", config);
+        report.put("endpoints", endpoints);
+
+        Path reportFile = Paths.get(reportDir,
+                label + "-" + startedAt.format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json");
+        Files.createDirectories(reportFile.getParent());
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(reportFile.toFile(), report);
+        return reportFile;
+    }
+
+    private static class PhaseResult {
+        private final int seconds;
+        private final Map<Endpoint, EndpointStats> endpointStats = new EnumMap<>(Endpoint.class);
+        // 只有排程 request 的 thread 會更新
+        private int maxInFlight;
+
+        private PhaseResult(int seconds) {
+            this.seconds = seconds;
+            for (Endpoint endpoint : Endpoint.values()) {
+                endpointStats.put(endpoint, new EndpointStats());
+            }
+        }
+
+        private EndpointStats statsOf(Endpoint endpoint) {
+            return endpointStats.get(endpoint);
+        }
+    }
+
+    private static class EndpointStats {
+        private final Recorder responseTimeRecorder = new Recorder(MAX_LATENCY_NANOS, 3);
+        private final Recorder serviceTimeRecorder = new Recorder(MAX_LATENCY_NANOS, 3);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errorCount = new LongAdder();
+        private final Map<String, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+        private void record(long responseTimeNanos, long serviceTimeNanos, String status, boolean ok) {
+            responseTimeRecorder.recordValue(Math.min(responseTimeNanos, MAX_LATENCY_NANOS));
+            serviceTimeRecorder.recordValue(Math.min(serviceTimeNanos, MAX_LATENCY_NANOS));
+            count.increment();
+            if (!ok) {
+                errorCount.increment();
+            }
+            statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+        }
+
+        private Map<String, Object> toReport(int seconds) {
+            Map<String, Object> statusCountReport = new LinkedHashMap<>();
+            statusCounts.forEach((status, statusCount) -> statusCountReport.put(status, statusCount.sum()));
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("count", count.sum());
+            report.put("errorCount", errorCount.sum());
+            report.put("throughputPerSec", (double) count.sum() / seconds);
+            report.put("statusCounts", statusCountReport);
+            report.put("responseTimeMs", percentiles(responseTimeRecorder.getIntervalHistogram()));
+            report.put("serviceTimeMs", percentiles(serviceTimeRecorder.getIntervalHistogram()));
+            return report;
+        }
+
+        private static Map<String, Object> percentiles(Histogram histogram) {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("mean", histogram.getMean() / 1_000_000.0);
+            report.put("p50", toMillis(histogram.getValueAtPercentile(50)));
+            report.put("p90", toMillis(histogram.getValueAtPercentile(90)));
+            report.put("p99", toMillis(histogram.getValueAtPercentile(99)));
+            report.put("p999", toMillis(histogram.getValueAtPercentile(99.9)));
+            report.put("max", toMillis(histogram.getMaxValue()));
+            return report;
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package cloudtu.security;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuditLogTests {
+    private static final int THREAD_COUNT = 16;
+    private static final int EVENT_COUNT_PER_THREAD = 5_000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void concurrentRecordsAreWrittenOrCountedAsDropped(@TempDir Path auditDir) throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AuditLog auditLog = newAuditLog(auditDir, meterRegistry);
+
+        // 多個 thread 同時寫入，每個事件不是寫到檔案就是被計入 auth.audit.dropped，不會遺失也不會重覆
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            CountDownLatch startLatch = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREAD_COUNT; t++) {
+                int threadIndex = t;
+                futures.add(executor.submit(() -> {
+                    startLatch.await();
+                    for (int i = 0; i < EVENT_COUNT_PER_THREAD; i++) {
+                        auditLog.record(AuditEventType.LOGIN_FAILURE, "user" + threadIndex, "10.0.0." + threadIndex, String.valueOf(i));
+                    }
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        auditLog.close();
+
+        List<String> lines = readAllLines(auditDir);
+        Set<String> distinctEvents = new HashSet<>();
+        for (String line : lines) {
+            JsonNode event = objectMapper.readTree(line);
+            assertEquals(AuditEventType.LOGIN_FAILURE.name(), event.get("type").asText());
+            assertTrue(distinctEvents.add(event.get("userName").asText() + "/" + event.get("detail").asText()));
+        }
+        double droppedCount = meterRegistry.get("auth.audit.dropped").counter().count();
+        assertEquals(THREAD_COUNT * EVENT_COUNT_PER_THREAD, lines.size() + (long) droppedCount);
+        assertFalse(lines.isEmpty());
+    }
+
+    @Test
+    void rotatesFileAndKeepsAtMostMaxFiles(@TempDir Path auditDir) throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AuditLog auditLog = newAuditLog(auditDir, meterRegistry);
+        ReflectionTestUtils.setField(auditLog, "maxFiles", 2);
+        String detail = "d".repeat(100);
+
+        // 每次寫入半個 ring buffer 的量，等 writer thread 寫完再繼續，不會有事件被丟掉。總共約 5MB，會 rotate 4 次以上
+        for (int chunk = 0; chunk < 50; chunk++) {
+            for (int i = 0; i < 512; i++) {
+                auditLog.record(AuditEventType.TOKEN_REJECTED, null, "10.0.0.1", detail);
+            }
+            while (meterRegistry.get("auth.audit.backlog").gauge().value() > 0) {
+                Thread.sleep(1);
+            }
+        }
+        auditLog.close();
+
+        List<Path> files = listFiles(auditDir);
+        assertEquals(0, meterRegistry.get("auth.audit.dropped").counter().count());
+        assertEquals(3, files.size()); // 2 個舊檔加上目前的 audit.ndjson
+        assertEquals("audit.ndjson", files.get(2).getFileName().toString());
+        for (Path file : files) {
+            assertTrue(Files.size(file) <= 1024 * 1024);
+        }
+    }
+
+    @Test
+    void fieldsAreEscapedAndTruncated(@TempDir Path auditDir) throws Exception {
+        AuditLog auditLog = newAuditLog(auditDir, new SimpleMeterRegistry());
+        String longUserName = "x".repeat(1_000);
+
+        auditLog.record(AuditEventType.LOGIN_SUCCESS, "a\"b\\c\nd", null, null);
+        auditLog.record(AuditEventType.LOGIN_RATE_LIMITED, longUserName, "10.0.0.1", "user");
+        auditLog.close();
+
+        List<String> lines = readAllLines(auditDir);
+        assertEquals(2, lines.size());
+        JsonNode first = objectMapper.readTree(lines.get(0));
+        assertEquals("a\"b\\c\nd", first.get("userName").asText());
+        assertFalse(first.has("clientIp"));
+        JsonNode second = objectMapper.readTree(lines.get(1));
+        assertEquals(longUserName.substring(0, 128), second.get("userName").asText());
+        assertEquals("user", second.get("detail").asText());
+    }
+
+    private static AuditLog newAuditLog(Path auditDir, SimpleMeterRegistry meterRegistry) throws Exception {
+        AuditLog auditLog = new AuditLog();
+        ReflectionTestUtils.setField(auditLog, "enabled", true);
+        ReflectionTestUtils.setField(auditLog, "auditDir", auditDir.toString());
+        ReflectionTestUtils.setField(auditLog, "bufferSize", 1024);
+        ReflectionTestUtils.setField(auditLog, "fsync", false);
+        ReflectionTestUtils.setField(auditLog, "maxFileSizeMb", 1L);
+        ReflectionTestUtils.setField(auditLog, "maxFiles", 100);
+        ReflectionTestUtils.setField(auditLog, "meterRegistry", meterRegistry);
+        auditLog.init();
+        return auditLog;
+    }
+
+    private static List<Path> listFiles(Path auditDir) throws Exception {
+        try (Stream<Path> files = Files.list(auditDir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> readAllLines(Path auditDir) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (Path file : listFiles(auditDir)) {
+            lines.addAll(Files.readAllLines(file));
+        }
+        return lines;
+    }
+}
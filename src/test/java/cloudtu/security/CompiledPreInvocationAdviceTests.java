@@ -0,0 +1,171 @@
+package cloudtu.security;
+
+import cloudtu.dao.bean.User;
+import cloudtu.util.RoleRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.ExpressionBasedAnnotationAttributeFactory;
+import org.springframework.security.access.expression.method.ExpressionBasedPreInvocationAdvice;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionOperations;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.access.prepost.PreFilter;
+import org.springframework.security.access.prepost.PreInvocationAttribute;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.util.SimpleMethodInvocation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompiledPreInvocationAdviceTests {
+    private final DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler() {
+        @Override
+        protected MethodSecurityExpressionOperations createSecurityExpressionRoot(Authentication authentication,
+                                                                                  MethodInvocation invocation) {
+            return new RoleMaskMethodSecurityExpressionRoot(super.createSecurityExpressionRoot(authentication, invocation));
+        }
+    };
+    private final ExpressionBasedAnnotationAttributeFactory attributeFactory = new ExpressionBasedAnnotationAttributeFactory(expressionHandler);
+
+    // 記錄交給 SpEL(fallback)執行的次數
+    private final AtomicInteger fallbackCount = new AtomicInteger();
+    private final CompiledPreInvocationAdvice advice;
+
+    CompiledPreInvocationAdviceTests() {
+        ExpressionBasedPreInvocationAdvice spelAdvice = new ExpressionBasedPreInvocationAdvice();
+        spelAdvice.setExpressionHandler(expressionHandler);
+        advice = new CompiledPreInvocationAdvice((authentication, mi, attribute) -> {
+            fallbackCount.incrementAndGet();
+            return spelAdvice.before(authentication, mi, attribute);
+        });
+    }
+
+    @Test
+    void roleExpressionsAreCompiled() throws Exception {
+        Authentication user = authentication(User.Role.ROLE_USER);
+        Authentication admin = authentication(User.Role.ROLE_ADMIN);
+        Authentication userAndAdmin = authentication(User.Role.ROLE_USER, User.Role.ROLE_ADMIN);
+
+        assertTrue(before(user, "userOrAdmin"));
+        assertTrue(before(admin, "userOrAdmin"));
+        assertFalse(before(user, "userAndAdmin"));
+        assertTrue(before(userAndAdmin, "userAndAdmin"));
+        assertTrue(before(admin, "anyRole"));
+        assertFalse(before(user, "adminOnly"));
+        assertTrue(before(admin, "adminOnly"));
+        assertEquals(0, fallbackCount.get());
+    }
+
+    @Test
+    void otherExpressionsFallBackToSpel() throws Exception {
+        Authentication user = authentication(User.Role.ROLE_USER);
+        Authentication admin = authentication(User.Role.ROLE_ADMIN);
+
+        // 不在 User.Role 裡的角色
+        assertFalse(before(user, "unknownRole"));
+        assertEquals(1, fallbackCount.get());
+        // not 運算
+        assertTrue(before(user, "notAdmin"));
+        assertFalse(before(admin, "notAdmin"));
+        assertEquals(3, fallbackCount.get());
+        // 有 @PreFilter 時要交給 SpEL 過濾參數
+        List<String> filtered = new ArrayList<>(List.of("a", "b"));
+        PreInvocationAttribute preFilterAttribute = attributeFactory.createPreInvocationAttribute("filterObject == 'a'", "", "hasRole('USER')");
+        assertTrue(advice.before(user, new SimpleMethodInvocation(new SecuredTarget(),
+                SecuredTarget.class.getMethod("preFiltered", List.class), filtered), preFilterAttribute));
+        assertEquals(List.of("a"), filtered);
+        assertEquals(4, fallbackCount.get());
+    }
+
+    @Test
+    void principalThatIsNotUserDetailsImplFallsBackToSpel() throws Exception {
+        Authentication authentication = new UsernamePasswordAuthenticationToken("user1", null,
+                RoleRegistry.authoritiesOf(RoleRegistry.maskOf(User.Role.ROLE_ADMIN)));
+
+        assertTrue(before(authentication, "adminOnly"));
+        assertFalse(before(authentication, "userAndAdmin"));
+        assertEquals(2, fallbackCount.get());
+    }
+
+    @Test
+    void implementationsOfSameMethodAreCompiledSeparately() throws Exception {
+        Authentication user = authentication(User.Role.ROLE_USER);
+        MethodInvocation userApiCall = new SimpleMethodInvocation(new UserApi(), Api.class.getMethod("call"));
+        MethodInvocation adminApiCall = new SimpleMethodInvocation(new AdminApi(), Api.class.getMethod("call"));
+
+        // 同一個 interface method，不同實作的 @PreAuthorize 不同，不能共用先編譯好的結果
+        assertTrue(advice.before(user, userApiCall, attributeFactory.createPreInvocationAttribute(null, null, "hasRole('USER')")));
+        assertFalse(advice.before(user, adminApiCall, attributeFactory.createPreInvocationAttribute(null, null, "hasRole('ADMIN')")));
+        assertEquals(0, fallbackCount.get());
+    }
+
+    private boolean before(Authentication authentication, String methodName) throws NoSuchMethodException {
+        MethodInvocation mi = new SimpleMethodInvocation(new SecuredTarget(), SecuredTarget.class.getMethod(methodName));
+        String expression = mi.getMethod().getAnnotation(PreAuthorize.class).value();
+        return advice.before(authentication, mi, attributeFactory.createPreInvocationAttribute(null, null, expression));
+    }
+
+    private static Authentication authentication(User.Role... roles) {
+        int roleMask = 0;
+        for (User.Role role : roles) {
+            roleMask |= RoleRegistry.maskOf(role);
+        }
+        UserDetailsImpl userDetails = new UserDetailsImpl("user1", null, roleMask);
+        return new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+    }
+
+    public static class SecuredTarget {
+        @PreAuthorize("hasRole('USER') or hasRole('ADMIN')")
+        public void userOrAdmin() {
+        }
+
+        @PreAuthorize("hasRole('USER') and hasRole('ADMIN')")
+        public void userAndAdmin() {
+        }
+
+        @PreAuthorize("hasAnyRole('USER', 'ADMIN')")
+        public void anyRole() {
+        }
+
+        @PreAuthorize("hasRole('ADMIN')")
+        public void adminOnly() {
+        }
+
+        @PreAuthorize("hasRole('AUDITOR')")
+        public void unknownRole() {
+        }
+
+        @PreAuthorize("!hasRole('ADMIN')")
+        public void notAdmin() {
+        }
+
+        @PreFilter("filterObject == 'a'")
+        @PreAuthorize("hasRole('USER')")
+        public void preFiltered(List<String> values) {
+        }
+    }
+
+    public interface Api {
+        void call();
+    }
+
+    public static class UserApi implements Api {
+        @Override
+        @PreAuthorize("hasRole('USER')")
+        public void call() {
+        }
+    }
+
+    public static class AdminApi implements Api {
+        @Override
+        @PreAuthorize("hasRole('ADMIN')")
+        public void call() {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cloudtu.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.server.PathContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoginRateLimiterTests {
+
+    @Test
+    void ipRejectionDoesNotUseUpUserTokens() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        LoginRateLimiter loginRateLimiter = newLoginRateLimiter(meterRegistry, 2, 5);
+
+        assertTrue(loginRateLimiter.tryAcquire("10.0.0.1", "user1"));
+        assertTrue(loginRateLimiter.tryAcquire("10.0.0.1", "user1"));
+        // 被 IP 限制擋下來的登入不會用掉 user1 的 token
+        assertFalse(loginRateLimiter.tryAcquire("10.0.0.1", "user1"));
+        assertFalse(loginRateLimiter.tryAcquire("10.0.0.1", "user1"));
+
+        // user1 還剩 3 個 token，從其它 IP 登入用完之後才被 user 限制擋下來
+        assertTrue(loginRateLimiter.tryAcquire("10.0.0.2", "user1"));
+        assertTrue(loginRateLimiter.tryAcquire("10.0.0.3", "user1"));
+        assertTrue(loginRateLimiter.tryAcquire("10.0.0.4", "user1"));
+        assertFalse(loginRateLimiter.tryAcquire("10.0.0.5", "user1"));
+        assertTrue(loginRateLimiter.tryAcquire("10.0.0.5", "user2"));
+
+        assertEquals(2, meterRegistry.get("auth.login.ratelimited").tag("limit", "ip").counter().count());
+        assertEquals(1, meterRegistry.get("auth.login.ratelimited").tag("limit", "user").counter().count());
+    }
+
+    @Test
+    void loginPathMatchesLikeControllerMapping() {
+        assertTrue(LoginRateLimiter.isLoginPath(PathContainer.parsePath("/auth/login")));
+        assertTrue(LoginRateLimiter.isLoginPath(PathContainer.parsePath("/auth/login/")));
+        assertFalse(LoginRateLimiter.isLoginPath(PathContainer.parsePath("/auth/logout")));
+        assertFalse(LoginRateLimiter.isLoginPath(PathContainer.parsePath("/auth/login/x")));
+    }
+
+    private static LoginRateLimiter newLoginRateLimiter(SimpleMeterRegistry meterRegistry, int perIpCapacity, int perUserCapacity) {
+        AuditLog auditLog = new AuditLog();
+        LoginRateLimiter loginRateLimiter = new LoginRateLimiter();
+        ReflectionTestUtils.setField(loginRateLimiter, "enabled", true);
+        ReflectionTestUtils.setField(loginRateLimiter, "perIpCapacity", perIpCapacity);
+        // refill 時間設很長，測試過程中不會補 token
+        ReflectionTestUtils.setField(loginRateLimiter, "perIpRefillIntervalMs", 3_600_000L);
+        ReflectionTestUtils.setField(loginRateLimiter, "perUserCapacity", perUserCapacity);
+        ReflectionTestUtils.setField(loginRateLimiter, "perUserRefillIntervalMs", 3_600_000L);
+        ReflectionTestUtils.setField(loginRateLimiter, "maxKeys", 1_000L);
+        ReflectionTestUtils.setField(loginRateLimiter, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(loginRateLimiter, "auditLog", auditLog);
+        loginRateLimiter.init();
+        return loginRateLimiter;
+    }
+}
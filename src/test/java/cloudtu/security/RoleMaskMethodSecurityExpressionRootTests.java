@@ -0,0 +1,50 @@
+package cloudtu.security;
+
+import cloudtu.dao.bean.User;
+import cloudtu.util.RoleRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.Test;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.security.access.expression.ExpressionUtils;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionOperations;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.util.SimpleMethodInvocation;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoleMaskMethodSecurityExpressionRootTests {
+    private final DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler() {
+        @Override
+        protected MethodSecurityExpressionOperations createSecurityExpressionRoot(Authentication authentication,
+                                                                                  MethodInvocation invocation) {
+            return new RoleMaskMethodSecurityExpressionRoot(super.createSecurityExpressionRoot(authentication, invocation));
+        }
+    };
+
+    @Test
+    void propertyStyleExpressionsWork() throws Exception {
+        UserDetailsImpl userDetails = new UserDetailsImpl("user1", null, RoleRegistry.maskOf(User.Role.ROLE_USER));
+        Authentication authentication = new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
+        EvaluationContext context = expressionHandler.createEvaluationContext(authentication,
+                new SimpleMethodInvocation(this, Object.class.getMethod("toString")));
+
+        // 跟 spring security 預設的 SecurityExpressionRoot 一樣，屬性寫法的運算式都要能執行
+        assertTrue(evaluate("permitAll", context));
+        assertFalse(evaluate("denyAll", context));
+        assertTrue(evaluate("hasRole('USER') and principal.username == 'user1'", context));
+        assertTrue(evaluate("authentication.name == 'user1'", context));
+        assertTrue(evaluate("read == 'read' and write == 'write' and create == 'create' and delete == 'delete' "
+                + "and admin == 'administration'", context));
+        assertTrue(evaluate("this != null and returnObject == null and filterObject == null", context));
+        assertFalse(evaluate("hasRole('ADMIN')", context));
+    }
+
+    private boolean evaluate(String expression, EvaluationContext context) {
+        ExpressionParser expressionParser = expressionHandler.getExpressionParser();
+        return ExpressionUtils.evaluateAsBoolean(expressionParser.parseExpression(expression), context);
+    }
+}
@@ -0,0 +1,88 @@
+package cloudtu.util;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class JwtPrecheckTests {
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final int MAX_TOKEN_LENGTH = 1024;
+    private static final Set<String> ACCEPTED_ALGORITHMS = Set.of("HS512");
+
+    private static final String PAYLOAD = base64Url("{\"sub\":\"user1\"}");
+    private static final String SIGNATURE = "c2lnbmF0dXJl-_";
+
+    @Test
+    void validTokenPasses() {
+        String token = Jwts.builder().setSubject("user1")
+                .signWith(Keys.hmacShaKeyFor(new byte[64]), SignatureAlgorithm.HS512)
+                .compact();
+        assertNull(check(token));
+        assertNull(check(base64Url("{\"typ\":\"JWT\", \"alg\" : \"HS512\"}") + "." + PAYLOAD + "." + SIGNATURE));
+    }
+
+    @Test
+    void tooLongTokenIsOversized() {
+        String token = base64Url("{\"alg\":\"HS512\"}") + "." + PAYLOAD + "." + SIGNATURE;
+        String paddedToken = token + "A".repeat(MAX_TOKEN_LENGTH - token.length());
+        assertNull(check(paddedToken));
+        assertEquals(JwtPrecheck.Rejection.OVERSIZED, check(paddedToken + "A"));
+    }
+
+    @Test
+    void tokenMustHaveThreeNonEmptySegments() {
+        String header = base64Url("{\"alg\":\"HS512\"}");
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + "." + PAYLOAD));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + "." + PAYLOAD + "." + SIGNATURE + "." + SIGNATURE));
+        // signature 是空的代表沒有簽章(alg none)
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + "." + PAYLOAD + "."));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check("." + PAYLOAD + "." + SIGNATURE));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + ".." + SIGNATURE));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(""));
+    }
+
+    @Test
+    void nonBase64UrlCharactersAreMalformed() {
+        String header = base64Url("{\"alg\":\"HS512\"}");
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + "." + PAYLOAD + "." + SIGNATURE + "="));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + "." + PAYLOAD + "+." + SIGNATURE));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + "." + PAYLOAD + "." + "sig/nature"));
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(header + " ." + PAYLOAD + "." + SIGNATURE));
+    }
+
+    @Test
+    void unparseableHeaderIsMalformed() {
+        // 不是合法的 base64url 長度
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check("A." + PAYLOAD + "." + SIGNATURE));
+        // 沒有 alg 欄位
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(base64Url("{\"typ\":\"JWT\"}") + "." + PAYLOAD + "." + SIGNATURE));
+        // alg 沒有值
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(base64Url("{\"alg\":") + "." + PAYLOAD + "." + SIGNATURE));
+        // header 太長時不解碼
+        String longHeader = base64Url("{\"alg\":\"HS512\",\"x\":\"" + "a".repeat(600) + "\"}");
+        assertEquals(JwtPrecheck.Rejection.MALFORMED, check(longHeader + "." + PAYLOAD + "." + SIGNATURE));
+    }
+
+    @Test
+    void algorithmNotAcceptedIsUnsupported() {
+        assertEquals(JwtPrecheck.Rejection.UNSUPPORTED_ALGORITHM, check(base64Url("{\"alg\":\"none\"}") + "." + PAYLOAD + "." + SIGNATURE));
+        assertEquals(JwtPrecheck.Rejection.UNSUPPORTED_ALGORITHM, check(base64Url("{\"alg\":\"RS256\"}") + "." + PAYLOAD + "." + SIGNATURE));
+        assertEquals(JwtPrecheck.Rejection.UNSUPPORTED_ALGORITHM, check(base64Url("{\"alg\":\"hs512\"}") + "." + PAYLOAD + "." + SIGNATURE));
+    }
+
+    private static JwtPrecheck.Rejection check(String token) {
+        return JwtPrecheck.check(BEARER_PREFIX + token, BEARER_PREFIX.length(), MAX_TOKEN_LENGTH, ACCEPTED_ALGORITHMS);
+    }
+
+    private static String base64Url(String json) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,49 @@
+package cloudtu.util;
+
+import cloudtu.dao.bean.User;
+import cloudtu.util.bean.JwtPrincipal;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JwtUtilTests {
+    private static final List<String> ALL_ROLES = List.of(User.Role.ROLE_USER.name(), User.Role.ROLE_ADMIN.name());
+
+    @Test
+    void tokensOfBothClaimsFormatsAreAcceptedWhateverFormatIsConfigured() {
+        JwtUtil standardJwtUtil = newJwtUtil(JwtUtil.ClaimsFormat.STANDARD);
+        JwtUtil compactJwtUtil = newJwtUtil(JwtUtil.ClaimsFormat.COMPACT);
+        String standardToken = standardJwtUtil.createToken("user1", ALL_ROLES);
+        String compactToken = compactJwtUtil.createToken("user1", ALL_ROLES);
+
+        // 切換格式的過程中，新舊兩種格式的 token 都要能被任一種設定解析出相同的資料
+        for (JwtUtil jwtUtil : List.of(standardJwtUtil, compactJwtUtil)) {
+            for (String token : List.of(standardToken, compactToken)) {
+                JwtPrincipal jwtPrincipal = jwtUtil.parsePrincipalFromToken(token);
+                assertEquals("user1", jwtPrincipal.getUserName());
+                assertEquals(RoleRegistry.maskOf(User.Role.ROLE_USER) | RoleRegistry.maskOf(User.Role.ROLE_ADMIN), jwtPrincipal.getRoleMask());
+                assertEquals(RoleRegistry.authoritiesOf(jwtPrincipal.getRoleMask()), jwtUtil.parseUserAuthoritiesFromToken(token));
+            }
+        }
+        assertEquals(22, compactJwtUtil.parsePrincipalFromToken(compactToken).getTokenId().length());
+        assertTrue(compactToken.length() < standardToken.length());
+    }
+
+    private static JwtUtil newJwtUtil(JwtUtil.ClaimsFormat claimsFormat) {
+        JwtUtil jwtUtil = new JwtUtil();
+        ReflectionTestUtils.setField(jwtUtil, "jwtSignKey", "abcdefghijklmnopqrstuvwxyz1234567890abcdefghijklmnopqrstuvwxyz1234567890");
+        ReflectionTestUtils.setField(jwtUtil, "jwtHmacAlgorithm", SignatureAlgorithm.HS512);
+        ReflectionTestUtils.setField(jwtUtil, "jwtKeyDir", "");
+        ReflectionTestUtils.setField(jwtUtil, "jwtExpireTimeAsSec", 3600L);
+        ReflectionTestUtils.setField(jwtUtil, "claimsFormat", claimsFormat);
+        ReflectionTestUtils.setField(jwtUtil, "meterRegistry", new SimpleMeterRegistry());
+        jwtUtil.init();
+        return jwtUtil;
+    }
+}
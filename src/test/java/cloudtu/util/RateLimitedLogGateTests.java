@@ -0,0 +1,29 @@
+package cloudtu.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RateLimitedLogGateTests {
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void onlyOneLogPerIntervalWithSuppressedCount() {
+        long start = -SECOND_NANOS; // System.nanoTime() 可能是負數
+        RateLimitedLogGate logGate = new RateLimitedLogGate(1, TimeUnit.SECONDS, start);
+
+        assertEquals(0, logGate.tryAcquire(start));
+        // 同一個時間區間內的 log 都被略過
+        assertEquals(-1, logGate.tryAcquire(start + 1));
+        assertEquals(-1, logGate.tryAcquire(start + SECOND_NANOS / 2));
+        assertEquals(-1, logGate.tryAcquire(start + SECOND_NANOS - 1));
+
+        // 下一個時間區間放行的 log 帶出之前被略過的筆數，之後重新計算
+        assertEquals(3, logGate.tryAcquire(start + SECOND_NANOS));
+        assertEquals(-1, logGate.tryAcquire(start + SECOND_NANOS + 1));
+        assertEquals(1, logGate.tryAcquire(start + 10 * SECOND_NANOS));
+        assertEquals(0, logGate.tryAcquire(start + 20 * SECOND_NANOS));
+    }
+}
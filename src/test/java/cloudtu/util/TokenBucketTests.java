@@ -0,0 +1,43 @@
+package cloudtu.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTests {
+    private static final long REFILL_INTERVAL_NANOS = 1_000_000_000L;
+
+    @Test
+    void fullBucketAllowsBurstUpToCapacity() {
+        long start = 123_456_789L;
+        TokenBucket tokenBucket = new TokenBucket(3, REFILL_INTERVAL_NANOS, start);
+
+        // 滿的 bucket 可以一次用掉 capacity 個 token，之後就要等補 token
+        assertTrue(tokenBucket.tryAcquire(start));
+        assertTrue(tokenBucket.tryAcquire(start));
+        assertTrue(tokenBucket.tryAcquire(start));
+        assertFalse(tokenBucket.tryAcquire(start));
+        assertFalse(tokenBucket.tryAcquire(start + REFILL_INTERVAL_NANOS - 1));
+    }
+
+    @Test
+    void tokensAreRefilledOnePerIntervalUpToCapacity() {
+        long start = -5_000_000_000L; // System.nanoTime() 可能是負數
+        TokenBucket tokenBucket = new TokenBucket(2, REFILL_INTERVAL_NANOS, start);
+        assertTrue(tokenBucket.tryAcquire(start));
+        assertTrue(tokenBucket.tryAcquire(start));
+        assertFalse(tokenBucket.tryAcquire(start));
+
+        // 每過一個 refill interval 補回一個 token
+        long oneIntervalLater = start + REFILL_INTERVAL_NANOS;
+        assertTrue(tokenBucket.tryAcquire(oneIntervalLater));
+        assertFalse(tokenBucket.tryAcquire(oneIntervalLater));
+
+        // 閒置很久也最多只補滿 capacity 個 token
+        long longAfter = start + 100 * REFILL_INTERVAL_NANOS;
+        assertTrue(tokenBucket.tryAcquire(longAfter));
+        assertTrue(tokenBucket.tryAcquire(longAfter));
+        assertFalse(tokenBucket.tryAcquire(longAfter));
+    }
+}